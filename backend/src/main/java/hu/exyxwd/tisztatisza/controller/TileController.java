@@ -0,0 +1,50 @@
+package hu.exyxwd.tisztatisza.controller;
+
+import org.springframework.http.*;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
+
+import lombok.AllArgsConstructor;
+
+import hu.exyxwd.tisztatisza.service.TileService;
+import hu.exyxwd.tisztatisza.service.VectorTileEncoder;
+
+/** Controller for serving the wastes and the rivers as vector tiles. */
+@RestController
+@AllArgsConstructor
+@RequestMapping("/api/tiles")
+public class TileController {
+    private final TileService tileService;
+
+    /**
+     * Get a Mapbox Vector Tile of the wastes, and optionally of the rivers,
+     * tagged with the dataset version it was rendered from.
+     *
+     * @param z      The zoom level of the tile.
+     * @param x      The column of the tile, from the west.
+     * @param y      The row of the tile, from the north.
+     * @param rivers Whether to draw the rivers as well.
+     * @return Contains the encoded tile, or 304 if the client has its version.
+     */
+    @GetMapping("/{z}/{x}/{y}.mvt")
+    public ResponseEntity<?> getTile(@PathVariable int z, @PathVariable int x, @PathVariable int y,
+            @RequestParam(defaultValue = "false") boolean rivers, WebRequest request) {
+        if (z < 0 || z > TileService.MAX_ZOOM) {
+            return ResponseEntity.badRequest().body("The zoom should be between 0 and " + TileService.MAX_ZOOM);
+        }
+        if (x < 0 || y < 0 || x >= 1 << z || y >= 1 << z) {
+            return ResponseEntity.badRequest().body("The tile does not exist at zoom " + z + ": " + x + "/" + y);
+        }
+
+        TileService.Tile tile = tileService.getTile(z, x, y, rivers);
+        String eTag = "\"" + tile.getVersion() + "\"";
+        boolean notModified = request.checkNotModified(eTag);
+        ResponseEntity.BodyBuilder response = ResponseEntity
+                .status(notModified ? HttpStatus.NOT_MODIFIED : HttpStatus.OK).eTag(eTag)
+                .cacheControl(CacheControl.noCache().cachePublic());
+        if (notModified) {
+            return response.build();
+        }
+        return response.contentType(MediaType.parseMediaType(VectorTileEncoder.MEDIA_TYPE)).body(tile.getData());
+    }
+}
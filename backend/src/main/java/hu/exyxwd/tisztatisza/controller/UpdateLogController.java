@@ -8,6 +8,8 @@ import java.util.List;
 import lombok.AllArgsConstructor;
 
 import hu.exyxwd.tisztatisza.model.UpdateLog;
+import hu.exyxwd.tisztatisza.dto.PipelineStageDTO;
+import hu.exyxwd.tisztatisza.service.TrashOutService;
 import hu.exyxwd.tisztatisza.repository.UpdateLogRepository;
 
 /**
@@ -18,6 +20,7 @@ import hu.exyxwd.tisztatisza.repository.UpdateLogRepository;
 @RequestMapping("/api/logs")
 public class UpdateLogController {
     private final UpdateLogRepository updateLogRepository;
+    private final TrashOutService trashOutService;
 
     /**
      * Get all update logs with every detail.
@@ -30,6 +33,17 @@ public class UpdateLogController {
         return ResponseEntity.ok(logs);
     }
 
+    /**
+     * Get the throughput and queue depth counters of the stages of the last or
+     * currently running waste ingestion.
+     *
+     * @return Contains a list of the counters of every stage.
+     */
+    @GetMapping("/pipeline")
+    public ResponseEntity<List<PipelineStageDTO>> getPipelineStats() {
+        return ResponseEntity.ok(trashOutService.getPipelineStats());
+    }
+
     /**
      * Delete logs with the given ids.
      *
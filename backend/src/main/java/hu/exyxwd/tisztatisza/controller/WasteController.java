@@ -1,12 +1,11 @@
 package hu.exyxwd.tisztatisza.controller;
 
-import org.springframework.http.HttpStatus;
-import org.springframework.http.ResponseEntity;
+import org.springframework.http.*;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.util.*;
-import java.time.LocalDateTime;
 import lombok.AllArgsConstructor;
 import java.util.stream.Collectors;
 
@@ -14,12 +13,14 @@ import hu.exyxwd.tisztatisza.dto.*;
 import hu.exyxwd.tisztatisza.model.Waste;
 import hu.exyxwd.tisztatisza.dto.mapper.WasteMapper;
 import hu.exyxwd.tisztatisza.repository.WasteRepository;
+import hu.exyxwd.tisztatisza.service.*;
 
 /** Controller for handling waste related requests. */
 @RestController
 @AllArgsConstructor
 @RequestMapping("/api/wastes")
 public class WasteController {
+    private static final int MAX_ZOOM = 22;
 
     @Autowired
     private WasteRepository wasteRepository;
@@ -27,6 +28,9 @@ public class WasteController {
     @Autowired
     private WasteMapper wasteMapper;
 
+    @Autowired
+    private MapSnapshotService mapSnapshotService;
+
     /**
      * Get a waste's detailed data.
      * 
@@ -60,31 +64,167 @@ public class WasteController {
     }
 
     /**
-     * Get all wastes fitting the default filters.
+     * Get all wastes fitting the default filters from the map snapshot.
      *
-     * @return Contains data of the wastes fitting the default filters.
+     * @param accept         The media types accepted by the client.
+     * @param acceptEncoding The encodings accepted by the client.
+     * @param request        The request, for its conditional headers.
+     * @return Contains data of the wastes fitting the default filters as JSON or
+     *         as binary map data if the client accepts it, gzipped if the client
+     *         accepts it, or 304 if the client has it.
      */
     @GetMapping("/mapDataFiltered")
-    public ResponseEntity<List<MapDataDTO>> getFilteredWastes() {
-        LocalDateTime oneYearAgo = LocalDateTime.now().minusYears(1);
-        List<Waste> wastes = wasteRepository.findByFilters(Waste.WasteCountry.HUNGARY, Waste.WasteSize.BAG,
-                Waste.WasteStatus.STILLHERE, oneYearAgo);
-
-        return ResponseEntity.ok(wastes.stream().map(wasteMapper::toMapData).collect(Collectors.toList()));
+    public ResponseEntity<byte[]> getFilteredWastes(
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            WebRequest request) {
+        MapSnapshotService.Snapshot snapshot = mapSnapshotService.getSnapshot();
+        return toResponse(snapshot, snapshot.getFiltered(), accept, acceptEncoding, request);
     }
 
     /**
-     * Get all wastes not fitting default filters.
+     * Get all wastes not fitting default filters from the map snapshot.
      *
-     * @return Contains data of the wastes not fitting default filters.
+     * @param accept         The media types accepted by the client.
+     * @param acceptEncoding The encodings accepted by the client.
+     * @param request        The request, for its conditional headers.
+     * @return Contains data of the wastes not fitting default filters as JSON or
+     *         as binary map data if the client accepts it, gzipped if the client
+     *         accepts it, or 304 if the client has it.
      */
     @GetMapping("/mapDataFilteredInverse")
-    public ResponseEntity<List<MapDataDTO>> getInverseFilteredWastes() {
-        LocalDateTime oneYearAgo = LocalDateTime.now().minusYears(1);
-        List<Waste> wastes = wasteRepository.findByFiltersInverse(Waste.WasteCountry.HUNGARY, Waste.WasteSize.BAG,
-                Waste.WasteStatus.STILLHERE, oneYearAgo);
+    public ResponseEntity<byte[]> getInverseFilteredWastes(
+            @RequestHeader(value = HttpHeaders.ACCEPT, required = false) String accept,
+            @RequestHeader(value = HttpHeaders.ACCEPT_ENCODING, required = false) String acceptEncoding,
+            WebRequest request) {
+        MapSnapshotService.Snapshot snapshot = mapSnapshotService.getSnapshot();
+        return toResponse(snapshot, snapshot.getInverse(), accept, acceptEncoding, request);
+    }
+
+    /**
+     * Get the wastes inside the viewport of the map from the map snapshot.
+     *
+     * @param bbox The bounding box of the viewport as west, south, east and north
+     *             edges in degrees, the west edge is greater than the east edge if
+     *             the viewport crosses the antimeridian.
+     * @param zoom The zoom level of the map, wastes falling on the same pixel are
+     *             merged, or null to return every waste in the viewport.
+     * @return Contains data of the wastes inside the viewport.
+     */
+    @GetMapping("/map")
+    public ResponseEntity<?> getWastesInViewport(@RequestParam String bbox,
+            @RequestParam(required = false) Integer zoom) {
+        double[] box;
+        try {
+            box = parseBoundingBox(bbox, zoom);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
 
-        return ResponseEntity.ok(wastes.stream().map(wasteMapper::toMapData).collect(Collectors.toList()));
+        MapGrid grid = mapSnapshotService.getSnapshot().getGrid();
+        return ResponseEntity.ok(grid.query(box[0], box[1], box[2], box[3], zoom));
+    }
+
+    /**
+     * Get the clusters of the wastes inside the viewport of the map at a zoom
+     * level from the map snapshot. Above the highest cluster zoom level every
+     * waste is its own cluster.
+     *
+     * @param bbox The bounding box of the viewport as west, south, east and north
+     *             edges in degrees, the west edge is greater than the east edge if
+     *             the viewport crosses the antimeridian.
+     * @param zoom The zoom level of the map.
+     * @return Contains the clusters inside the viewport with their counts and
+     *         breakdowns.
+     */
+    @GetMapping("/clusters")
+    public ResponseEntity<?> getClustersInViewport(@RequestParam String bbox, @RequestParam int zoom) {
+        double[] box;
+        try {
+            box = parseBoundingBox(bbox, zoom);
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(e.getMessage());
+        }
+
+        MapClusters clusters = mapSnapshotService.getSnapshot().getClusters();
+        return ResponseEntity.ok(clusters.query(box[0], box[1], box[2], box[3], zoom));
+    }
+
+    /**
+     * Get the wastes fitting any combination of the map filters from the bitmap
+     * index of the map snapshot, e.g.
+     * ?countries=HUNGARY,SERBIA&amp;types=PLASTIC&amp;updatedFrom=2024-01-01T00:00:00
+     *
+     * @param filter The filters, the omitted ones do not restrict the wastes.
+     * @return Contains data of the wastes fitting the filters.
+     */
+    @GetMapping("/filter")
+    public ResponseEntity<List<MapDataDTO>> getWastesByFilter(WasteFilterDTO filter) {
+        MapFilterIndex filters = mapSnapshotService.getSnapshot().getFilters();
+        return ResponseEntity.ok(filters.query(filter));
+    }
+
+    /**
+     * Parses and validates a bounding box of west, south, east and north edges.
+     *
+     * @throws IllegalArgumentException If the box or the zoom level is invalid,
+     *                                  with a message for the client.
+     */
+    private static double[] parseBoundingBox(String bbox, Integer zoom) {
+        String[] edges = bbox.split(",");
+        double[] box = new double[4];
+        try {
+            if (edges.length != 4) {
+                throw new NumberFormatException();
+            }
+            for (int i = 0; i < 4; i++) {
+                box[i] = Double.parseDouble(edges[i].trim());
+            }
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("The bbox should be four numbers: west,south,east,north");
+        }
+        if (box[0] < -180 || box[2] > 180 || box[0] > 180 || box[2] < -180 || box[1] < -90 || box[3] > 90
+                || box[1] > box[3]) {
+            throw new IllegalArgumentException("The bbox is out of range: " + bbox);
+        }
+        if (zoom != null && (zoom < 0 || zoom > MAX_ZOOM)) {
+            throw new IllegalArgumentException("The zoom should be between 0 and " + MAX_ZOOM);
+        }
+        return box;
+    }
+
+    /**
+     * Creates a response of pre-serialized bytes, the binary map data if the
+     * client asks for it by its media type and the compressed bytes if the client
+     * accepts gzip. The ETag is the dataset version of the snapshot, so a client
+     * or cache that already has the version gets 304 without the bytes. Caches
+     * may store the response but have to revalidate it every time, as a hidden
+     * flag can change at any moment.
+     */
+    private static ResponseEntity<byte[]> toResponse(MapSnapshotService.Snapshot snapshot,
+            MapSnapshotService.Body body, String accept, String acceptEncoding, WebRequest request) {
+        boolean binary = accept != null && accept.toLowerCase().contains(MapDataCodec.MEDIA_TYPE);
+        boolean gzip = acceptEncoding != null && acceptEncoding.toLowerCase().contains("gzip");
+        // The representations differ in their bytes, so they need different strong ETags
+        String eTag = "\"" + snapshot.getVersion() + (binary ? "-binary" : "") + (gzip ? "-gzip" : "") + "\"";
+        long lastModified = snapshot.getLastModified().toEpochMilli();
+
+        boolean notModified = request.checkNotModified(eTag, lastModified);
+        ResponseEntity.BodyBuilder response = ResponseEntity
+                .status(notModified ? HttpStatus.NOT_MODIFIED : HttpStatus.OK).eTag(eTag).lastModified(lastModified)
+                .cacheControl(CacheControl.noCache().cachePublic())
+                .varyBy(HttpHeaders.ACCEPT, HttpHeaders.ACCEPT_ENCODING);
+        if (notModified) {
+            return response.build();
+        }
+        response.contentType(binary ? MediaType.parseMediaType(MapDataCodec.MEDIA_TYPE) : MediaType.APPLICATION_JSON);
+        if (gzip) {
+            response.header(HttpHeaders.CONTENT_ENCODING, "gzip");
+        }
+        if (binary) {
+            return response.body(gzip ? body.getBinaryGzip() : body.getBinary());
+        }
+        return response.body(gzip ? body.getGzip() : body.getJson());
     }
 
     /**
@@ -103,6 +243,8 @@ public class WasteController {
 
         waste.get().setHidden(body.get("hidden"));
         wasteRepository.save(waste.get());
+        // The hidden flag is part of the map data, the saved change does not wait for the new snapshot
+        mapSnapshotService.requestRebuild();
 
         return ResponseEntity.ok().build();
     }
@@ -1,11 +1,11 @@
 package hu.exyxwd.tisztatisza.dto;
 
 import lombok.*;
-import java.util.Set;
+import java.util.*;
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
 
-import hu.exyxwd.tisztatisza.model.Waste;
+import hu.exyxwd.tisztatisza.model.*;
 
 /** DTO for detailed wastes. */
 @Getter
@@ -27,5 +27,6 @@ public class DetailedWasteDTO {
     private String imageUrl;
     private String note;
     private String river;
+    private List<RiverProximity> riverProximities;
     private Boolean hidden;
 }
\ No newline at end of file
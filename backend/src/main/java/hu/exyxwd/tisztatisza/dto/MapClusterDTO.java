@@ -0,0 +1,25 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import lombok.*;
+
+import java.util.Map;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+
+/**
+ * DTO for a cluster of wastes at a zoom level of the map. The breakdowns count
+ * the wastes of the cluster by size, status and type, leaving out the zero
+ * counts.
+ */
+@Getter
+@AllArgsConstructor
+public class MapClusterDTO {
+    /** The id of the waste if the cluster is a single waste, null otherwise. */
+    private Long id;
+    private double latitude;
+    private double longitude;
+    private int count;
+    private Map<Waste.WasteSize, Integer> sizes;
+    private Map<Waste.WasteStatus, Integer> statuses;
+    private Map<Waste.WasteType, Integer> types;
+}
@@ -0,0 +1,267 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import java.io.*;
+import java.util.*;
+import java.math.BigDecimal;
+import java.time.ZoneOffset;
+import java.time.LocalDateTime;
+import java.nio.charset.StandardCharsets;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+
+/**
+ * Encodes map data into a compact columnar binary form, served instead of the
+ * JSON list to clients accepting MEDIA_TYPE. Every field is stored as one
+ * column for all wastes, so similar values sit next to each other and compress
+ * well.
+ *
+ * Layout, big-endian as written by DataOutputStream:
+ * <ul>
+ * <li>header: magic, version, waste count (ints)</li>
+ * <li>ids: zigzag varint deltas from the previous id</li>
+ * <li>latitudes, longitudes: ints in 1e-5 degrees, the scale of the database
+ * columns, NULL_COORDINATE if missing</li>
+ * <li>countries, sizes, statuses: enum ordinal bytes, NULL_ORDINAL if
+ * missing</li>
+ * <li>types: bitmask shorts of the type ordinals, NULL_TYPES if missing</li>
+ * <li>rivers: the distinct names as a varint count and length prefixed UTF-8
+ * strings, then a varint index per waste, 0 if missing and 1 + the index of
+ * the name otherwise</li>
+ * <li>flags: a byte per waste, see the FLAG constants</li>
+ * <li>update times: zigzag varint deltas of the UTC epoch seconds from the
+ * previous present time, only for the wastes with an update time</li>
+ * </ul>
+ * Update times are truncated to whole seconds, so the decoded times lose the
+ * fraction of a second the JSON list would carry.
+ */
+public final class MapDataCodec {
+    /** The media type of the binary map data. */
+    public static final String MEDIA_TYPE = "application/vnd.tisztatisza.map-data";
+    public static final int MAGIC = 0x54544d44; // "TTMD"
+    public static final int VERSION = 1;
+    public static final int NULL_COORDINATE = Integer.MIN_VALUE;
+    public static final int NULL_ORDINAL = 0xff;
+    public static final int NULL_TYPES = 0xffff;
+    public static final int FLAG_HIDDEN = 1;
+    public static final int FLAG_HIDDEN_NULL = 2;
+    public static final int FLAG_UPDATE_TIME_NULL = 4;
+    private static final int COORDINATE_SCALE = 5;
+
+    private MapDataCodec() {
+    }
+
+    /**
+     * Encodes the given map data.
+     *
+     * @param mapData The map data of the wastes.
+     * @return The binary map data.
+     */
+    public static byte[] encode(List<MapDataDTO> mapData) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(16 + 24 * mapData.size());
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(mapData.size());
+
+            long previousId = 0;
+            for (MapDataDTO waste : mapData) {
+                writeVarLong(out, zigzag(waste.getId() - previousId));
+                previousId = waste.getId();
+            }
+            for (MapDataDTO waste : mapData) {
+                out.writeInt(toFixedPoint(waste.getLatitude()));
+            }
+            for (MapDataDTO waste : mapData) {
+                out.writeInt(toFixedPoint(waste.getLongitude()));
+            }
+            for (MapDataDTO waste : mapData) {
+                out.writeByte(waste.getCountry() == null ? NULL_ORDINAL : waste.getCountry().ordinal());
+            }
+            for (MapDataDTO waste : mapData) {
+                out.writeByte(waste.getSize() == null ? NULL_ORDINAL : waste.getSize().ordinal());
+            }
+            for (MapDataDTO waste : mapData) {
+                out.writeByte(waste.getStatus() == null ? NULL_ORDINAL : waste.getStatus().ordinal());
+            }
+            for (MapDataDTO waste : mapData) {
+                out.writeShort(toBitmask(waste.getTypes()));
+            }
+
+            Map<String, Integer> rivers = new LinkedHashMap<>();
+            for (MapDataDTO waste : mapData) {
+                if (waste.getRiver() != null) {
+                    rivers.putIfAbsent(waste.getRiver(), rivers.size());
+                }
+            }
+            writeVarLong(out, rivers.size());
+            for (String river : rivers.keySet()) {
+                byte[] name = river.getBytes(StandardCharsets.UTF_8);
+                writeVarLong(out, name.length);
+                out.write(name);
+            }
+            for (MapDataDTO waste : mapData) {
+                writeVarLong(out, waste.getRiver() == null ? 0 : rivers.get(waste.getRiver()) + 1);
+            }
+
+            for (MapDataDTO waste : mapData) {
+                int flags = 0;
+                if (waste.getHidden() == null) {
+                    flags |= FLAG_HIDDEN_NULL;
+                } else if (waste.getHidden()) {
+                    flags |= FLAG_HIDDEN;
+                }
+                if (waste.getUpdateTime() == null) {
+                    flags |= FLAG_UPDATE_TIME_NULL;
+                }
+                out.writeByte(flags);
+            }
+            long previousTime = 0;
+            for (MapDataDTO waste : mapData) {
+                if (waste.getUpdateTime() != null) {
+                    long time = waste.getUpdateTime().toEpochSecond(ZoneOffset.UTC);
+                    writeVarLong(out, zigzag(time - previousTime));
+                    previousTime = time;
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not encode the map data", e);
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Decodes binary map data.
+     *
+     * @param data The binary map data.
+     * @return The map data of the wastes.
+     * @throws IllegalArgumentException If the data is not valid binary map data.
+     */
+    public static List<MapDataDTO> decode(byte[] data) {
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IllegalArgumentException("Not binary map data of version " + VERSION);
+            }
+            int count = in.readInt();
+            List<MapDataDTO> mapData = new ArrayList<>(count);
+
+            long id = 0;
+            for (int i = 0; i < count; i++) {
+                id += unzigzag(readVarLong(in));
+                MapDataDTO waste = new MapDataDTO();
+                waste.setId(id);
+                mapData.add(waste);
+            }
+            for (MapDataDTO waste : mapData) {
+                waste.setLatitude(fromFixedPoint(in.readInt()));
+            }
+            for (MapDataDTO waste : mapData) {
+                waste.setLongitude(fromFixedPoint(in.readInt()));
+            }
+            for (MapDataDTO waste : mapData) {
+                waste.setCountry(fromOrdinal(Waste.WasteCountry.values(), in.readUnsignedByte()));
+            }
+            for (MapDataDTO waste : mapData) {
+                waste.setSize(fromOrdinal(Waste.WasteSize.values(), in.readUnsignedByte()));
+            }
+            for (MapDataDTO waste : mapData) {
+                waste.setStatus(fromOrdinal(Waste.WasteStatus.values(), in.readUnsignedByte()));
+            }
+            for (MapDataDTO waste : mapData) {
+                waste.setTypes(fromBitmask(in.readUnsignedShort()));
+            }
+
+            String[] rivers = new String[(int) readVarLong(in)];
+            for (int i = 0; i < rivers.length; i++) {
+                byte[] name = new byte[(int) readVarLong(in)];
+                in.readFully(name);
+                rivers[i] = new String(name, StandardCharsets.UTF_8);
+            }
+            for (MapDataDTO waste : mapData) {
+                int river = (int) readVarLong(in);
+                waste.setRiver(river == 0 ? null : rivers[river - 1]);
+            }
+
+            int[] flags = new int[count];
+            for (int i = 0; i < count; i++) {
+                flags[i] = in.readUnsignedByte();
+                mapData.get(i).setHidden((flags[i] & FLAG_HIDDEN_NULL) != 0 ? null : (flags[i] & FLAG_HIDDEN) != 0);
+            }
+            long time = 0;
+            for (int i = 0; i < count; i++) {
+                if ((flags[i] & FLAG_UPDATE_TIME_NULL) == 0) {
+                    time += unzigzag(readVarLong(in));
+                    mapData.get(i).setUpdateTime(LocalDateTime.ofEpochSecond(time, 0, ZoneOffset.UTC));
+                }
+            }
+            return mapData;
+        } catch (IOException | IndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Invalid binary map data: " + e.getMessage(), e);
+        }
+    }
+
+    private static int toFixedPoint(BigDecimal coordinate) {
+        return coordinate == null ? NULL_COORDINATE : coordinate.movePointRight(COORDINATE_SCALE).intValue();
+    }
+
+    private static BigDecimal fromFixedPoint(int coordinate) {
+        return coordinate == NULL_COORDINATE ? null : BigDecimal.valueOf(coordinate, COORDINATE_SCALE);
+    }
+
+    private static int toBitmask(Set<Waste.WasteType> types) {
+        if (types == null) {
+            return NULL_TYPES;
+        }
+        int mask = 0;
+        for (Waste.WasteType type : types) {
+            mask |= 1 << type.ordinal();
+        }
+        return mask;
+    }
+
+    private static Set<Waste.WasteType> fromBitmask(int mask) {
+        if (mask == NULL_TYPES) {
+            return null;
+        }
+        Set<Waste.WasteType> types = EnumSet.noneOf(Waste.WasteType.class);
+        for (Waste.WasteType type : Waste.WasteType.values()) {
+            if ((mask & 1 << type.ordinal()) != 0) {
+                types.add(type);
+            }
+        }
+        return types;
+    }
+
+    private static <E extends Enum<E>> E fromOrdinal(E[] values, int ordinal) {
+        return ordinal == NULL_ORDINAL ? null : values[ordinal];
+    }
+
+    /** Maps signed values to unsigned ones, small magnitudes to small values. */
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    /** Writes an unsigned value in 7-bit groups, least significant first. */
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7fL) != 0) {
+            out.writeByte((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,16 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import lombok.*;
+
+/** DTO for the counters of one stage of the ingestion pipeline. */
+@Getter
+@AllArgsConstructor
+public class PipelineStageDTO {
+    private String stage;
+    private int workers;
+    private long received;
+    private long emitted;
+    private int queueDepth;
+    private int queueCapacity;
+    private double throughput;
+}
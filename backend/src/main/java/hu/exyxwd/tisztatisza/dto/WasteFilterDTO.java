@@ -0,0 +1,31 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import org.springframework.format.annotation.DateTimeFormat;
+
+import lombok.*;
+import java.util.Set;
+import java.time.LocalDateTime;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+
+/**
+ * DTO for the filters of the map, bound from the query parameters. A waste fits
+ * if it has one of the given countries, sizes, statuses and rivers, every given
+ * type, the given hidden flag and an update time within the given range, like
+ * the filters of the frontend. A null filter does not restrict the wastes, an
+ * empty set of countries, sizes, statuses or rivers fits none of them.
+ */
+@Getter
+@Setter
+public class WasteFilterDTO {
+    private Set<Waste.WasteCountry> countries;
+    private Set<Waste.WasteSize> sizes;
+    private Set<Waste.WasteStatus> statuses;
+    private Set<Waste.WasteType> types;
+    private Set<String> rivers;
+    private Boolean hidden;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime updatedFrom;
+    @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME)
+    private LocalDateTime updatedTo;
+}
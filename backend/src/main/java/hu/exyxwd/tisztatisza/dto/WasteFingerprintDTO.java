@@ -0,0 +1,12 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import lombok.*;
+
+/** DTO for the data needed to detect changes of stored wastes. */
+@Getter
+@AllArgsConstructor
+public class WasteFingerprintDTO {
+    private Long id;
+    private Long fingerprint;
+    private Boolean hidden;
+}
@@ -0,0 +1,14 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import lombok.*;
+
+import java.math.BigDecimal;
+
+/** DTO for the location of a waste, used to calculate its closest river. */
+@Getter
+@AllArgsConstructor
+public class WasteLocationDTO {
+    private Long id;
+    private BigDecimal latitude;
+    private BigDecimal longitude;
+}
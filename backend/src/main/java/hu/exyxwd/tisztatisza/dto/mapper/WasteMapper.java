@@ -2,8 +2,10 @@ package hu.exyxwd.tisztatisza.dto.mapper;
 
 import org.mapstruct.Mapper;
 
+import java.util.List;
+
 import hu.exyxwd.tisztatisza.dto.*;
-import hu.exyxwd.tisztatisza.model.Waste;
+import hu.exyxwd.tisztatisza.model.*;
 
 /** Interface for mapping Waste objects to DTOs. */
 @Mapper(componentModel = "spring")
@@ -11,4 +13,9 @@ public interface WasteMapper {
     MapDataDTO toMapData(Waste waste);
 
     DetailedWasteDTO toDetailedWasteDTO(Waste waste);
+
+    /** Expands the compact form of the closest rivers stored with the wastes. */
+    default List<RiverProximity> toRiverProximities(String riverProximities) {
+        return RiverProximity.parse(riverProximities);
+    }
 }
\ No newline at end of file
@@ -0,0 +1,74 @@
+package hu.exyxwd.tisztatisza.model;
+
+import lombok.*;
+
+import java.util.*;
+
+/**
+ * One of the closest rivers to a waste, stored in the compact text form of
+ * Waste.riverProximities: "NAME:distance:chainage" entries separated by
+ * semicolons, ordered by distance, with meters rounded to decimeters.
+ */
+@Getter
+@AllArgsConstructor
+public class RiverProximity {
+    /** The name of the river. */
+    private String river;
+
+    /** The distance of the waste from the river in meters on the ground. */
+    private double distance;
+
+    /**
+     * The position of the closest point along the river in meters on the ground,
+     * measured from the upstream end of the connected OSM ways of the river, as
+     * OSM waterways point downstream.
+     */
+    private double chainage;
+
+    /**
+     * Formats the given proximities into their compact text form.
+     *
+     * @param proximities The proximities ordered by distance.
+     * @return The compact text form, empty if there are no proximities.
+     */
+    public static String format(List<RiverProximity> proximities) {
+        StringJoiner joiner = new StringJoiner(";");
+        for (RiverProximity proximity : proximities) {
+            // The separators cannot appear in the names, the colon is parsed from the end
+            joiner.add(proximity.getRiver().replace(';', ' ') + ":" + round(proximity.getDistance()) + ":"
+                    + round(proximity.getChainage()));
+        }
+        return joiner.toString();
+    }
+
+    /**
+     * Parses the compact text form of proximities.
+     *
+     * @param value The compact text form, can be null.
+     * @return The proximities ordered by distance, empty if the value is null or
+     *         empty.
+     * @throws IllegalArgumentException If the value is not a valid compact form.
+     */
+    public static List<RiverProximity> parse(String value) {
+        List<RiverProximity> proximities = new ArrayList<>();
+        if (value == null || value.isEmpty()) {
+            return proximities;
+        }
+        for (String entry : value.split(";")) {
+            int chainageStart = entry.lastIndexOf(':');
+            int distanceStart = chainageStart < 0 ? -1 : entry.lastIndexOf(':', chainageStart - 1);
+            if (distanceStart < 0) {
+                throw new IllegalArgumentException("Invalid river proximity: " + entry);
+            }
+            proximities.add(new RiverProximity(entry.substring(0, distanceStart),
+                    Double.parseDouble(entry.substring(distanceStart + 1, chainageStart)),
+                    Double.parseDouble(entry.substring(chainageStart + 1))));
+        }
+        return proximities;
+    }
+
+    /** Rounds the given meters to decimeters. */
+    private static double round(double meters) {
+        return Math.round(meters * 10) / 10.0;
+    }
+}
@@ -0,0 +1,39 @@
+package hu.exyxwd.tisztatisza.model;
+
+import lombok.*;
+
+import java.time.LocalDateTime;
+
+import jakarta.persistence.*;
+
+/** Entity for the progress of the synchronizations with external data sources. */
+@Entity
+@Getter
+@Setter
+@NoArgsConstructor
+@AllArgsConstructor
+@Table(name = "sync_checkpoints")
+public class SyncCheckpoint {
+    @Id
+    private String name;
+
+    /** The latest update time of the synchronized records. */
+    private LocalDateTime highWaterMark;
+
+    /** The time of the last synchronization that fetched every record. */
+    private LocalDateTime lastFullSync;
+
+    /** The start time of the unfinished synchronization, null if none is running. */
+    private LocalDateTime runStartedAt;
+
+    /** Whether the unfinished synchronization fetches every record. */
+    private Boolean runFullSync;
+
+    /** The comma separated partitions already saved by the unfinished synchronization. */
+    @Column(columnDefinition = "text")
+    private String completedPartitions;
+
+    public SyncCheckpoint(String name) {
+        this.name = name;
+    }
+}
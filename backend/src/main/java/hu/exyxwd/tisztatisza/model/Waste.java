@@ -1,5 +1,6 @@
 package hu.exyxwd.tisztatisza.model;
 
+import java.time.ZoneOffset;
 import java.time.LocalDateTime;
 import java.math.BigDecimal;
 import java.util.*;
@@ -21,6 +22,9 @@ import lombok.*;
 @NoArgsConstructor
 @AllArgsConstructor
 public class Waste {
+    private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+    private static final long FNV_PRIME = 0x100000001b3L;
+
     public enum WasteCountry {
         HUNGARY,
         UKRAINE,
@@ -94,9 +98,74 @@ public class Waste {
     @Column(columnDefinition = "text")
     private String river;
 
+    /** The closest rivers in the compact form of RiverProximity. */
+    @Column(columnDefinition = "text")
+    private String riverProximities;
+
     @Column(columnDefinition = "boolean default false")
     private boolean hidden;
 
+    /** 64-bit hash of the fields compared by equals, see computeFingerprint. */
+    private Long fingerprint;
+
+    /**
+     * Computes a 64-bit FNV-1a hash over the fields compared by equals, so changes
+     * can be detected without loading the whole stored waste.
+     *
+     * @return The fingerprint of the waste.
+     */
+    public long computeFingerprint() {
+        long hash = FNV_OFFSET_BASIS;
+        hash = mix(hash, id == null ? -1 : id);
+        hash = mix(hash, country == null ? -1 : country.ordinal());
+        hash = mix(hash, locality);
+        hash = mix(hash, sublocality);
+        hash = mix(hash, size == null ? -1 : size.ordinal());
+        hash = mix(hash, status == null ? -1 : status.ordinal());
+
+        long typesMask = 0;
+        if (types != null) {
+            for (WasteType type : types) {
+                typesMask |= 1L << type.ordinal();
+            }
+        }
+        hash = mix(hash, typesMask);
+
+        hash = mix(hash, createTime);
+        hash = mix(hash, updateTime);
+        hash = mix(hash, note);
+        return hash;
+    }
+
+    private static long mix(long hash, long value) {
+        for (int i = 0; i < Long.BYTES; i++) {
+            hash ^= value & 0xff;
+            hash *= FNV_PRIME;
+            value >>>= 8;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, String value) {
+        if (value == null) {
+            return mix(hash, -1);
+        }
+        hash = mix(hash, value.length());
+        for (int i = 0; i < value.length(); i++) {
+            hash ^= value.charAt(i);
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+
+    private static long mix(long hash, LocalDateTime value) {
+        if (value == null) {
+            return mix(hash, Long.MIN_VALUE);
+        }
+        hash = mix(hash, value.toEpochSecond(ZoneOffset.UTC));
+        return mix(hash, value.getNano());
+    }
+
     @Override
     public int hashCode() {
         return Objects.hash(id, country, locality, sublocality, size,
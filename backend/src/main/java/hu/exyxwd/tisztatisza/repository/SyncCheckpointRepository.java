@@ -0,0 +1,10 @@
+package hu.exyxwd.tisztatisza.repository;
+
+import org.springframework.stereotype.Repository;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import hu.exyxwd.tisztatisza.model.SyncCheckpoint;
+
+@Repository
+public interface SyncCheckpointRepository extends JpaRepository<SyncCheckpoint, String> {
+}
@@ -0,0 +1,204 @@
+package hu.exyxwd.tisztatisza.repository;
+
+import org.springframework.stereotype.Repository;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.BatchPreparedStatementSetter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.sql.*;
+import java.util.*;
+import java.time.LocalDateTime;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+
+/**
+ * Repository for writing wastes in bulk with plain JDBC batches, bypassing the
+ * select-before-merge of JpaRepository.saveAll for entities with assigned ids.
+ * Every chunk is committed in its own transaction unless the caller already has
+ * one, so long runs never hold a single long transaction.
+ */
+@Repository
+public class WasteBatchRepository {
+    private static final long DELETE_CHUNK_SIZE = 10000;
+    private static final String[] COLUMNS = { "id", "latitude", "longitude", "country", "locality", "sublocality",
+            "size", "status", "create_time", "update_time", "image_url", "note", "river", "hidden", "fingerprint",
+            "river_proximities" };
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final int chunkSize;
+    private volatile String upsertSql;
+
+    public WasteBatchRepository(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+            @Value("${trashout.sync.chunk-size:1000}") int chunkSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Inserts the given wastes or updates them if they already exist, together
+     * with their types, in JDBC batches. Every chunk of wastes is committed on its
+     * own.
+     *
+     * @param wastes The wastes to save.
+     * @return The number of saved wastes.
+     */
+    public int upsertAll(List<Waste> wastes) {
+        for (int from = 0; from < wastes.size(); from += chunkSize) {
+            List<Waste> chunk = wastes.subList(from, Math.min(from + chunkSize, wastes.size()));
+            transactionTemplate.executeWithoutResult(status -> upsertChunk(chunk));
+        }
+        return wastes.size();
+    }
+
+    /**
+     * Upserts one chunk of wastes and replaces their types.
+     *
+     * @param wastes The wastes to save.
+     */
+    private void upsertChunk(List<Waste> wastes) {
+        jdbcTemplate.batchUpdate(getUpsertSql(), wastes, chunkSize, (ps, waste) -> {
+            ps.setLong(1, waste.getId());
+            ps.setBigDecimal(2, waste.getLatitude());
+            ps.setBigDecimal(3, waste.getLongitude());
+            ps.setString(4, waste.getCountry() == null ? null : waste.getCountry().name());
+            ps.setString(5, waste.getLocality());
+            ps.setString(6, waste.getSublocality());
+            ps.setString(7, waste.getSize() == null ? null : waste.getSize().name());
+            ps.setString(8, waste.getStatus() == null ? null : waste.getStatus().name());
+            ps.setTimestamp(9, toTimestamp(waste.getCreateTime()));
+            ps.setTimestamp(10, toTimestamp(waste.getUpdateTime()));
+            ps.setString(11, waste.getImageUrl());
+            ps.setString(12, waste.getNote());
+            ps.setString(13, waste.getRiver());
+            ps.setBoolean(14, waste.isHidden());
+            if (waste.getFingerprint() == null) {
+                ps.setNull(15, Types.BIGINT);
+            } else {
+                ps.setLong(15, waste.getFingerprint());
+            }
+            ps.setString(16, waste.getRiverProximities());
+        });
+
+        // The types of the saved wastes are replaced as a whole
+        jdbcTemplate.batchUpdate("DELETE FROM waste_types WHERE waste_id = ?", wastes, chunkSize,
+                (ps, waste) -> ps.setLong(1, waste.getId()));
+
+        List<Object[]> types = new ArrayList<>();
+        for (Waste waste : wastes) {
+            for (Waste.WasteType type : waste.getTypes()) {
+                types.add(new Object[] { waste.getId(), type.name() });
+            }
+        }
+        jdbcTemplate.batchUpdate("INSERT INTO waste_types (waste_id, types) VALUES (?, ?)", types, chunkSize,
+                (ps, type) -> {
+                    ps.setLong(1, (Long) type[0]);
+                    ps.setString(2, (String) type[1]);
+                });
+    }
+
+    /**
+     * Deletes all wastes updated before the given date together with their types.
+     * The deletion is done with two set-based statements per chunk of ids, so no
+     * entities are loaded and no statement touches too many rows at once. Every
+     * chunk is committed on its own.
+     *
+     * @param date The date to compare the waste's update time to.
+     * @return The number of deleted wastes.
+     */
+    public int deleteOlderThan(LocalDateTime date) {
+        Timestamp before = toTimestamp(date);
+        String nextIdSql = "SELECT MIN(id) FROM wastes WHERE update_time < ? AND id > ?";
+        int deleteCount = 0;
+
+        Long fromId = jdbcTemplate.queryForObject(nextIdSql, Long.class, before, Long.MIN_VALUE);
+        while (fromId != null) {
+            long firstId = fromId;
+            long toId = fromId + DELETE_CHUNK_SIZE - 1;
+            deleteCount += transactionTemplate.execute(status -> {
+                jdbcTemplate.update("DELETE FROM waste_types WHERE waste_id IN "
+                        + "(SELECT id FROM wastes WHERE update_time < ? AND id BETWEEN ? AND ?)", before, firstId, toId);
+                return jdbcTemplate.update("DELETE FROM wastes WHERE update_time < ? AND id BETWEEN ? AND ?",
+                        before, firstId, toId);
+            });
+            // Jump over the id gaps without expired wastes
+            fromId = jdbcTemplate.queryForObject(nextIdSql, Long.class, before, toId);
+        }
+        return deleteCount;
+    }
+
+    /**
+     * Sets the river and the closest rivers of the wastes with the given ids in
+     * JDBC batches. Every chunk of wastes is committed on its own.
+     *
+     * @param ids         The ids of the wastes to update.
+     * @param rivers      The rivers of the wastes, in the order of the ids.
+     * @param proximities The closest rivers of the wastes in the compact form of
+     *                    RiverProximity, in the order of the ids.
+     * @return The number of updated wastes.
+     */
+    public int updateRivers(long[] ids, String[] rivers, String[] proximities) {
+        int updateCount = 0;
+        for (int from = 0; from < ids.length; from += chunkSize) {
+            int first = from;
+            int size = Math.min(chunkSize, ids.length - from);
+            BatchPreparedStatementSetter setter = new BatchPreparedStatementSetter() {
+                @Override
+                public void setValues(PreparedStatement ps, int i) throws SQLException {
+                    ps.setString(1, rivers[first + i]);
+                    ps.setString(2, proximities[first + i]);
+                    ps.setLong(3, ids[first + i]);
+                }
+
+                @Override
+                public int getBatchSize() {
+                    return size;
+                }
+            };
+            int[] counts = transactionTemplate.execute(status -> jdbcTemplate
+                    .batchUpdate("UPDATE wastes SET river = ?, river_proximities = ? WHERE id = ?", setter));
+            for (int count : counts) {
+                // Drivers may report a successful batched statement without its row count
+                updateCount += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+            }
+        }
+        return updateCount;
+    }
+
+    /**
+     * Returns the upsert statement for the database in use. PostgreSQL gets
+     * INSERT ... ON CONFLICT, other databases (H2 in tests) get MERGE ... KEY.
+     */
+    private String getUpsertSql() {
+        String sql = upsertSql;
+        if (sql != null) {
+            return sql;
+        }
+
+        String product = jdbcTemplate
+                .execute((ConnectionCallback<String>) connection -> connection.getMetaData().getDatabaseProductName());
+        String columns = String.join(", ", COLUMNS);
+        String parameters = String.join(", ", Collections.nCopies(COLUMNS.length, "?"));
+
+        if ("PostgreSQL".equalsIgnoreCase(product)) {
+            StringJoiner updates = new StringJoiner(", ");
+            for (int i = 1; i < COLUMNS.length; i++) {
+                updates.add(COLUMNS[i] + " = EXCLUDED." + COLUMNS[i]);
+            }
+            sql = "INSERT INTO wastes (" + columns + ") VALUES (" + parameters + ") ON CONFLICT (id) DO UPDATE SET "
+                    + updates;
+        } else {
+            sql = "MERGE INTO wastes (" + columns + ") KEY (id) VALUES (" + parameters + ")";
+        }
+        upsertSql = sql;
+        return sql;
+    }
+
+    private static Timestamp toTimestamp(LocalDateTime time) {
+        return time == null ? null : Timestamp.valueOf(time);
+    }
+}
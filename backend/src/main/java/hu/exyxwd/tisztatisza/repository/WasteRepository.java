@@ -9,6 +9,8 @@ import org.springframework.stereotype.Repository;
 import org.springframework.data.repository.query.Param;
 
 import hu.exyxwd.tisztatisza.model.Waste;
+import hu.exyxwd.tisztatisza.dto.WasteLocationDTO;
+import hu.exyxwd.tisztatisza.dto.WasteFingerprintDTO;
 
 @Repository
 public interface WasteRepository extends JpaRepository<Waste, Long> {
@@ -16,6 +18,18 @@ public interface WasteRepository extends JpaRepository<Waste, Long> {
     @Query("SELECT w FROM Waste w WHERE w.updateTime < :date")
     List<Waste> findAllOlderThan(@Param("date") LocalDateTime date);
 
+    /** Find the id, fingerprint and hidden flag of all wastes. */
+    @Query("SELECT new hu.exyxwd.tisztatisza.dto.WasteFingerprintDTO(w.id, w.fingerprint, w.hidden) FROM Waste w")
+    List<WasteFingerprintDTO> findAllFingerprints();
+
+    /** Find the latest update time of all wastes. */
+    @Query("SELECT MAX(w.updateTime) FROM Waste w")
+    LocalDateTime findMaxUpdateTime();
+
+    /** Find the id and coordinates of all wastes without a calculated river or closest rivers. */
+    @Query("SELECT new hu.exyxwd.tisztatisza.dto.WasteLocationDTO(w.id, w.latitude, w.longitude) FROM Waste w WHERE w.river IS NULL OR w.riverProximities IS NULL")
+    List<WasteLocationDTO> findAllWithoutRiver();
+
     /** Find all wastes with the given country, size, status and update time. */
     @EntityGraph(attributePaths = { "types" })
     @Query("SELECT w FROM Waste w WHERE w.country = :country AND w.size = :size AND w.status = :status AND w.updateTime > :updateTime")
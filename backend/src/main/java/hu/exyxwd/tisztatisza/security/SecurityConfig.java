@@ -59,7 +59,8 @@ public class SecurityConfig {
                         .csrfTokenRequestHandler(requestHandler))
                 .authorizeHttpRequests(requests -> requests
                         .requestMatchers("/api/auth/login").permitAll()
-                        .requestMatchers("/api/auth/**", "/api/logs", "/api/wastes/{id}/hidden", "/api/wastes/hidden")
+                        .requestMatchers("/api/auth/**", "/api/logs", "/api/logs/pipeline", "/api/wastes/{id}/hidden",
+                                "/api/wastes/hidden")
                         .authenticated()
                         .anyRequest().permitAll())
                 .sessionManagement(management -> management.sessionCreationPolicy(SessionCreationPolicy.STATELESS))
@@ -0,0 +1,376 @@
+package hu.exyxwd.tisztatisza.service;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.databind.util.TokenBuffer;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.concurrent.atomic.*;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+import hu.exyxwd.tisztatisza.dto.PipelineStageDTO;
+
+/**
+ * Runs the ingestion of the TrashOut wastes as concurrent stages connected by
+ * bounded queues: fetch, parse, diff, river assignment and batched write. A full
+ * queue blocks the stage in front of it, so a slow database slows down the
+ * download instead of buffering the whole payload in memory.
+ *
+ * A country counts as saved once every one of its records is either written or
+ * dropped by a stage. Every pipeline is used for one run only.
+ */
+public class IngestionPipeline {
+    /** Reads the records of a country and passes them to the sink one by one. */
+    @FunctionalInterface
+    public interface Fetcher {
+        /**
+         * @param country The country to fetch the records of.
+         * @param sink    Receives the parser positioned at the start of every record.
+         * @return True if the country was fetched successfully, otherwise false.
+         */
+        boolean fetch(Waste.WasteCountry country, RecordSink sink);
+    }
+
+    /** Receives the raw records of the fetch stage. */
+    @FunctionalInterface
+    public interface RecordSink {
+        void accept(JsonParser parser) throws IOException;
+    }
+
+    /** Parses a raw record into a waste, or returns null if it is rejected. */
+    @FunctionalInterface
+    public interface RecordParser {
+        Waste parse(JsonParser parser) throws IOException;
+    }
+
+    private static final Item END = new Item(null);
+
+    private final int writeBatchSize;
+
+    private final RecordParser parser;
+    private final Predicate<Waste> diff;
+    private final Consumer<Waste> riverAssigner;
+    private final ToIntFunction<List<Waste>> writer;
+    private final Consumer<Waste.WasteCountry> onPartitionSaved;
+
+    private final Stage fetchStage;
+    private final Stage parseStage;
+    private final Stage diffStage;
+    private final Stage riverStage;
+    private final Stage writeStage;
+
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final List<ExecutorService> executors = new ArrayList<>();
+    private volatile long startTime;
+    private volatile long endTime;
+
+    public IngestionPipeline(int queueCapacity, int fetchWorkers, int parseWorkers, int riverWorkers,
+            int writeBatchSize, RecordParser parser, Predicate<Waste> diff, Consumer<Waste> riverAssigner,
+            ToIntFunction<List<Waste>> writer, Consumer<Waste.WasteCountry> onPartitionSaved) {
+        this.writeBatchSize = Math.max(1, writeBatchSize);
+        this.parser = parser;
+        this.diff = diff;
+        this.riverAssigner = riverAssigner;
+        this.writer = writer;
+        this.onPartitionSaved = onPartitionSaved;
+
+        int capacity = Math.max(1, queueCapacity);
+        this.fetchStage = new Stage("fetch", Math.max(1, fetchWorkers), null);
+        this.parseStage = new Stage("parse", Math.max(1, parseWorkers), new ArrayBlockingQueue<>(capacity));
+        this.diffStage = new Stage("diff", 1, new ArrayBlockingQueue<>(capacity));
+        this.riverStage = new Stage("river", Math.max(1, riverWorkers), new ArrayBlockingQueue<>(capacity));
+        this.writeStage = new Stage("write", 1, new ArrayBlockingQueue<>(capacity));
+    }
+
+    /**
+     * Runs every stage until the given countries are fetched and every record has
+     * left the pipeline, or until any stage fails.
+     *
+     * @param partitions The countries to fetch.
+     * @param fetcher    Reads the records of a country.
+     * @return True if every country was fetched and saved, otherwise false.
+     * @throws InterruptedException If the calling thread is interrupted.
+     */
+    public boolean run(Set<Waste.WasteCountry> partitions, Fetcher fetcher) throws InterruptedException {
+        startTime = System.nanoTime();
+        try {
+            startStage(writeStage, null, this::write);
+            startStage(riverStage, writeStage, this::assignRiver);
+            startStage(diffStage, riverStage, this::diff);
+            startStage(parseStage, diffStage, this::parse);
+            startFetchStage(partitions, fetcher);
+
+            finished.await();
+        } finally {
+            endTime = System.nanoTime();
+            executors.forEach(ExecutorService::shutdownNow);
+        }
+
+        if (failure.get() != null) {
+            System.out.println("The ingestion pipeline stopped because of an error: " + failure.get());
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns the counters of every stage, these can be read while the pipeline is
+     * running.
+     *
+     * @return The counters of the stages in the order of the pipeline.
+     */
+    public List<PipelineStageDTO> getStats() {
+        long end = endTime != 0 ? endTime : System.nanoTime();
+        double seconds = startTime == 0 ? 0 : (end - startTime) / 1e9;
+        List<PipelineStageDTO> stats = new ArrayList<>();
+        for (Stage stage : List.of(fetchStage, parseStage, diffStage, riverStage, writeStage)) {
+            stats.add(stage.toDTO(seconds));
+        }
+        return stats;
+    }
+
+    /** Starts the fetch workers, the parse stage is ended once all of them finished. */
+    private void startFetchStage(Set<Waste.WasteCountry> partitions, Fetcher fetcher) {
+        ExecutorService executor = newExecutor(fetchStage, true);
+        AtomicInteger remaining = new AtomicInteger(partitions.size());
+        if (partitions.isEmpty()) {
+            enqueue(parseStage, END);
+            return;
+        }
+
+        for (Waste.WasteCountry country : partitions) {
+            executor.execute(() -> {
+                try {
+                    Partition partition = new Partition(country);
+                    boolean fetched = fetcher.fetch(country, recordParser -> {
+                        TokenBuffer tokens = new TokenBuffer(recordParser);
+                        tokens.copyCurrentStructure(recordParser);
+                        fetchStage.received.incrementAndGet();
+                        partition.pending.incrementAndGet();
+                        try {
+                            parseStage.input.put(new Item(partition, tokens));
+                        } catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new InterruptedIOException("The ingestion pipeline was stopped");
+                        }
+                        fetchStage.emitted.incrementAndGet();
+                    });
+                    if (!fetched) {
+                        fail(new IllegalStateException("Could not fetch the wastes of " + country));
+                        return;
+                    }
+                    // Release the hold of the fetch stage now that every record is queued
+                    release(partition);
+                    if (remaining.decrementAndGet() == 0) {
+                        enqueue(parseStage, END);
+                    }
+                } catch (RuntimeException e) {
+                    fail(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Starts the workers of a stage. The workers pass the end of the stream on to
+     * each other, and the last one to finish passes it to the next stage.
+     */
+    private void startStage(Stage stage, Stage next, StageWorker worker) {
+        ExecutorService executor = newExecutor(stage, false);
+        AtomicInteger remaining = new AtomicInteger(stage.workers);
+        for (int i = 0; i < stage.workers; i++) {
+            executor.execute(() -> {
+                try {
+                    worker.run(stage, next);
+                    stage.input.put(END);
+                    if (remaining.decrementAndGet() == 0) {
+                        if (next == null) {
+                            finished.countDown();
+                        } else {
+                            next.input.put(END);
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (Exception e) {
+                    fail(e);
+                }
+            });
+        }
+    }
+
+    /** Parses the raw records into wastes, the rejected records are dropped. */
+    private void parse(Stage stage, Stage next) throws Exception {
+        Item item;
+        while ((item = stage.input.take()) != END) {
+            stage.received.incrementAndGet();
+            try (JsonParser recordParser = item.tokens.asParser()) {
+                recordParser.nextToken();
+                item.waste = parser.parse(recordParser);
+            }
+            item.tokens = null;
+            if (item.waste == null) {
+                release(item.partition);
+            } else {
+                next.input.put(item);
+                stage.emitted.incrementAndGet();
+            }
+        }
+    }
+
+    /** Drops the wastes that did not change since they were last saved. */
+    private void diff(Stage stage, Stage next) throws Exception {
+        Item item;
+        while ((item = stage.input.take()) != END) {
+            stage.received.incrementAndGet();
+            if (diff.test(item.waste)) {
+                next.input.put(item);
+                stage.emitted.incrementAndGet();
+            } else {
+                release(item.partition);
+            }
+        }
+    }
+
+    /** Assigns the closest river to the changed wastes. */
+    private void assignRiver(Stage stage, Stage next) throws Exception {
+        Item item;
+        while ((item = stage.input.take()) != END) {
+            stage.received.incrementAndGet();
+            riverAssigner.accept(item.waste);
+            next.input.put(item);
+            stage.emitted.incrementAndGet();
+        }
+    }
+
+    /**
+     * Writes the wastes in batches. A batch holds whatever is queued up to the
+     * batch size, so the batches grow when the database falls behind.
+     */
+    private void write(Stage stage, Stage next) throws Exception {
+        List<Item> batch = new ArrayList<>(writeBatchSize);
+        List<Waste> wastes = new ArrayList<>(writeBatchSize);
+        boolean ended = false;
+        while (!ended) {
+            Item item = stage.input.take();
+            batch.add(item);
+            stage.input.drainTo(batch, writeBatchSize - 1);
+
+            for (Item queued : batch) {
+                if (queued == END) {
+                    ended = true;
+                } else {
+                    wastes.add(queued.waste);
+                }
+            }
+            if (!wastes.isEmpty()) {
+                stage.received.addAndGet(wastes.size());
+                stage.emitted.addAndGet(writer.applyAsInt(wastes));
+                for (Item queued : batch) {
+                    if (queued != END) {
+                        release(queued.partition);
+                    }
+                }
+            }
+            batch.clear();
+            wastes.clear();
+        }
+    }
+
+    /** Releases one hold on the partition, the last release marks it as saved. */
+    private void release(Partition partition) {
+        if (partition.pending.decrementAndGet() == 0) {
+            synchronized (this) {
+                onPartitionSaved.accept(partition.country);
+            }
+        }
+    }
+
+    /** Records the first failure and stops every stage. */
+    private void fail(Throwable e) {
+        if (failure.compareAndSet(null, e)) {
+            finished.countDown();
+        }
+    }
+
+    /** Puts a record into the input of a stage, a stopped pipeline drops it. */
+    private void enqueue(Stage stage, Item item) {
+        try {
+            stage.input.put(item);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Creates the workers of a stage. The fetch stage waits on the network so it
+     * runs on virtual threads, the others are CPU or database bound.
+     */
+    private ExecutorService newExecutor(Stage stage, boolean virtual) {
+        String prefix = "ingest-" + stage.name + "-";
+        ThreadFactory threadFactory = virtual ? Thread.ofVirtual().name(prefix, 0).factory()
+                : Thread.ofPlatform().name(prefix, 0).daemon().factory();
+        ExecutorService executor = Executors.newFixedThreadPool(stage.workers, threadFactory);
+        executors.add(executor);
+        return executor;
+    }
+
+    @FunctionalInterface
+    private interface StageWorker {
+        void run(Stage stage, Stage next) throws Exception;
+    }
+
+    /** A waste record travelling through the pipeline. */
+    private static final class Item {
+        private final Partition partition;
+        private TokenBuffer tokens;
+        private Waste waste;
+
+        private Item(Partition partition) {
+            this.partition = partition;
+        }
+
+        private Item(Partition partition, TokenBuffer tokens) {
+            this.partition = partition;
+            this.tokens = tokens;
+        }
+    }
+
+    /**
+     * The records of a country still in the pipeline. The fetch stage holds one
+     * extra count until every record of the country is queued.
+     */
+    private static final class Partition {
+        private final Waste.WasteCountry country;
+        private final AtomicInteger pending = new AtomicInteger(1);
+
+        private Partition(Waste.WasteCountry country) {
+            this.country = country;
+        }
+    }
+
+    /** A stage with its input queue and counters. */
+    private static final class Stage {
+        private final String name;
+        private final int workers;
+        private final BlockingQueue<Item> input;
+        private final AtomicLong received = new AtomicLong();
+        private final AtomicLong emitted = new AtomicLong();
+
+        private Stage(String name, int workers, BlockingQueue<Item> input) {
+            this.name = name;
+            this.workers = workers;
+            this.input = input;
+        }
+
+        private PipelineStageDTO toDTO(double seconds) {
+            long count = received.get();
+            return new PipelineStageDTO(name, workers, count, emitted.get(), input == null ? 0 : input.size(),
+                    input == null ? 0 : input.size() + input.remainingCapacity(),
+                    seconds > 0 ? count / seconds : 0);
+        }
+    }
+}
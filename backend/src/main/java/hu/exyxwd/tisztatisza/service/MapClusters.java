@@ -0,0 +1,319 @@
+package hu.exyxwd.tisztatisza.service;
+
+import java.util.*;
+import java.util.function.IntConsumer;
+
+import hu.exyxwd.tisztatisza.dto.*;
+import hu.exyxwd.tisztatisza.model.Waste;
+
+/**
+ * Immutable hierarchical clusters of the wastes for every zoom level of the
+ * map, in the manner of supercluster. The wastes are projected to Web Mercator
+ * and the clusters of a zoom level are built from the ones of the next zoom
+ * level: every cluster absorbs the not yet absorbed clusters within RADIUS
+ * pixels and moves to their weighted centroid, summing their counts and
+ * breakdowns. Above MAX_ZOOM the wastes themselves are returned.
+ *
+ * Every level is sorted by grid cells of the clustering radius of the level
+ * below, like MapGrid, so both building a level and querying a viewport only
+ * visit the cells around the searched area.
+ */
+public final class MapClusters {
+    /** The highest zoom level with clusters. */
+    public static final int MAX_ZOOM = 16;
+    /** The clusters without wastes. */
+    public static final MapClusters EMPTY = new MapClusters(Collections.emptyList());
+    /** The clustering radius in pixels of the tile extent. */
+    private static final double RADIUS = 40;
+    /** The size of a tile in pixels, the radius is relative to it. */
+    private static final double EXTENT = 512;
+    private static final int SIZES = Waste.WasteSize.values().length;
+    private static final int STATUSES = Waste.WasteStatus.values().length;
+    private static final int TYPES = Waste.WasteType.values().length;
+    /** The number of breakdown counters of a cluster: sizes, statuses and types. */
+    private static final int STRIDE = SIZES + STATUSES + TYPES;
+
+    /** The clusters of every zoom level, the last one holds the wastes. */
+    private final Level[] levels = new Level[MAX_ZOOM + 2];
+
+    /**
+     * @param mapData The map data of the wastes, the ones without coordinates
+     *                are left out.
+     */
+    public MapClusters(List<MapDataDTO> mapData) {
+        int count = 0;
+        double[] xs = new double[mapData.size()];
+        double[] ys = new double[mapData.size()];
+        int[] counts = new int[mapData.size()];
+        long[] ids = new long[mapData.size()];
+        int[] breakdowns = new int[mapData.size() * STRIDE];
+        for (MapDataDTO waste : mapData) {
+            if (waste.getLatitude() == null || waste.getLongitude() == null) {
+                continue;
+            }
+            xs[count] = toX(waste.getLongitude().doubleValue());
+            ys[count] = toY(waste.getLatitude().doubleValue());
+            counts[count] = 1;
+            ids[count] = waste.getId();
+            int offset = count * STRIDE;
+            if (waste.getSize() != null) {
+                breakdowns[offset + waste.getSize().ordinal()] = 1;
+            }
+            if (waste.getStatus() != null) {
+                breakdowns[offset + SIZES + waste.getStatus().ordinal()] = 1;
+            }
+            if (waste.getTypes() != null) {
+                for (Waste.WasteType type : waste.getTypes()) {
+                    breakdowns[offset + SIZES + STATUSES + type.ordinal()] = 1;
+                }
+            }
+            count++;
+        }
+
+        levels[MAX_ZOOM + 1] = new Level(radius(MAX_ZOOM), xs, ys, counts, ids, breakdowns, count);
+        for (int zoom = MAX_ZOOM; zoom >= 0; zoom--) {
+            levels[zoom] = cluster(levels[zoom + 1], radius(zoom), zoom > 0 ? radius(zoom - 1) : 1);
+        }
+    }
+
+    /** @return The number of wastes in the clusters. */
+    public int size() {
+        return levels[MAX_ZOOM + 1].size;
+    }
+
+    /**
+     * Returns the clusters inside the given bounding box at the given zoom
+     * level. A box crossing the antimeridian has a western edge greater than
+     * its eastern edge.
+     *
+     * @param minLongitude The western edge of the box.
+     * @param minLatitude  The southern edge of the box.
+     * @param maxLongitude The eastern edge of the box.
+     * @param maxLatitude  The northern edge of the box.
+     * @param zoom         The zoom level of the map.
+     * @return The clusters inside the box.
+     */
+    public List<MapClusterDTO> query(double minLongitude, double minLatitude, double maxLongitude,
+            double maxLatitude, int zoom) {
+        Level level = levels[Math.max(0, Math.min(MAX_ZOOM + 1, zoom))];
+        List<MapClusterDTO> result = new ArrayList<>();
+        // The Y axis of Web Mercator points south
+        double minY = toY(maxLatitude);
+        double maxY = toY(minLatitude);
+        if (minLongitude > maxLongitude) {
+            level.forEachInBox(toX(minLongitude), minY, 1, maxY, i -> result.add(level.toCluster(i)));
+            level.forEachInBox(0, minY, toX(maxLongitude), maxY, i -> result.add(level.toCluster(i)));
+        } else {
+            level.forEachInBox(toX(minLongitude), minY, toX(maxLongitude), maxY, i -> result.add(level.toCluster(i)));
+        }
+        return result;
+    }
+
+    /**
+     * Clusters the given level with the given radius into the next lower zoom
+     * level, sorted by cells of the given size.
+     */
+    private static Level cluster(Level previous, double radius, double cellSize) {
+        int count = 0;
+        double[] xs = new double[previous.size];
+        double[] ys = new double[previous.size];
+        int[] counts = new int[previous.size];
+        long[] ids = new long[previous.size];
+        int[] breakdowns = new int[previous.size * STRIDE];
+        boolean[] absorbed = new boolean[previous.size];
+        double radiusSquared = radius * radius;
+        Accumulator cluster = new Accumulator(breakdowns);
+
+        for (int i = 0; i < previous.size; i++) {
+            if (absorbed[i]) {
+                continue;
+            }
+            absorbed[i] = true;
+            double x = previous.xs[i];
+            double y = previous.ys[i];
+            cluster.start(count, previous, i);
+            previous.forEachInBox(x - radius, y - radius, x + radius, y + radius, j -> {
+                double dx = previous.xs[j] - x;
+                double dy = previous.ys[j] - y;
+                if (!absorbed[j] && dx * dx + dy * dy <= radiusSquared) {
+                    absorbed[j] = true;
+                    cluster.add(previous, j);
+                }
+            });
+            xs[count] = cluster.weightedX / cluster.count;
+            ys[count] = cluster.weightedY / cluster.count;
+            counts[count] = cluster.count;
+            ids[count] = cluster.id;
+            count++;
+        }
+        return new Level(cellSize, xs, ys, counts, ids, breakdowns, count);
+    }
+
+    /** The clustering radius at the given zoom level in Web Mercator units. */
+    private static double radius(int zoom) {
+        return RADIUS / (EXTENT * (1L << zoom));
+    }
+
+    /** Projects a longitude to Web Mercator X between 0 and 1. */
+    private static double toX(double longitude) {
+        return Math.max(0, Math.min(1, ProjectionService.toWorldX(longitude)));
+    }
+
+    /** Projects a latitude to Web Mercator Y between 0 and 1, 0 being the north edge. */
+    private static double toY(double latitude) {
+        return Math.max(0, Math.min(1, ProjectionService.toWorldY(latitude)));
+    }
+
+    private static double toLongitude(double x) {
+        return ProjectionService.toLongitude((2 * x - 1) * ProjectionService.HALF_WORLD);
+    }
+
+    private static double toLatitude(double y) {
+        return ProjectionService.toLatitude((1 - 2 * y) * ProjectionService.HALF_WORLD);
+    }
+
+    /** Sums the clusters absorbed into a new cluster, writing its breakdown in place. */
+    private static final class Accumulator {
+        private final int[] breakdowns;
+        private int offset;
+        private double weightedX;
+        private double weightedY;
+        private int count;
+        private long id;
+
+        private Accumulator(int[] breakdowns) {
+            this.breakdowns = breakdowns;
+        }
+
+        private void start(int index, Level level, int first) {
+            offset = index * STRIDE;
+            weightedX = 0;
+            weightedY = 0;
+            count = 0;
+            add(level, first);
+            id = level.ids[first];
+        }
+
+        private void add(Level level, int index) {
+            int weight = level.counts[index];
+            weightedX += level.xs[index] * weight;
+            weightedY += level.ys[index] * weight;
+            count += weight;
+            // Only a single waste keeps its id
+            id = -1;
+            for (int k = 0; k < STRIDE; k++) {
+                breakdowns[offset + k] += level.breakdowns[index * STRIDE + k];
+            }
+        }
+    }
+
+    /** The clusters of one zoom level, sorted by their grid cell row by row. */
+    private static final class Level {
+        private final double cellSize;
+        private final int columns;
+        private final int size;
+        private final long[] cellKeys;
+        private final double[] xs;
+        private final double[] ys;
+        private final int[] counts;
+        private final long[] ids;
+        private final int[] breakdowns;
+
+        private Level(double cellSize, double[] xs, double[] ys, int[] counts, long[] ids, int[] breakdowns,
+                int size) {
+            this.cellSize = cellSize;
+            this.columns = (int) Math.ceil(1 / cellSize) + 1;
+            this.size = size;
+
+            long[] keys = new long[size];
+            Integer[] order = new Integer[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = cellKey(row(ys[i]), column(xs[i]));
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+
+            this.cellKeys = new long[size];
+            this.xs = new double[size];
+            this.ys = new double[size];
+            this.counts = new int[size];
+            this.ids = new long[size];
+            this.breakdowns = new int[size * STRIDE];
+            for (int i = 0; i < size; i++) {
+                int from = order[i];
+                this.cellKeys[i] = keys[from];
+                this.xs[i] = xs[from];
+                this.ys[i] = ys[from];
+                this.counts[i] = counts[from];
+                this.ids[i] = ids[from];
+                System.arraycopy(breakdowns, from * STRIDE, this.breakdowns, i * STRIDE, STRIDE);
+            }
+        }
+
+        /** Calls the action with the index of every cluster inside the given box. */
+        private void forEachInBox(double minX, double minY, double maxX, double maxY, IntConsumer action) {
+            int firstColumn = column(minX);
+            int lastColumn = column(maxX);
+            int lastRow = row(maxY);
+            for (int row = row(minY); row <= lastRow; row++) {
+                long lastKey = cellKey(row, lastColumn);
+                for (int i = lowerBound(cellKey(row, firstColumn)); i < size && cellKeys[i] <= lastKey; i++) {
+                    if (xs[i] >= minX && xs[i] <= maxX && ys[i] >= minY && ys[i] <= maxY) {
+                        action.accept(i);
+                    }
+                }
+            }
+        }
+
+        private MapClusterDTO toCluster(int index) {
+            Map<Waste.WasteSize, Integer> sizes = new EnumMap<>(Waste.WasteSize.class);
+            Map<Waste.WasteStatus, Integer> statuses = new EnumMap<>(Waste.WasteStatus.class);
+            Map<Waste.WasteType, Integer> types = new EnumMap<>(Waste.WasteType.class);
+            int offset = index * STRIDE;
+            for (Waste.WasteSize size : Waste.WasteSize.values()) {
+                putCount(sizes, size, breakdowns[offset + size.ordinal()]);
+            }
+            for (Waste.WasteStatus status : Waste.WasteStatus.values()) {
+                putCount(statuses, status, breakdowns[offset + SIZES + status.ordinal()]);
+            }
+            for (Waste.WasteType type : Waste.WasteType.values()) {
+                putCount(types, type, breakdowns[offset + SIZES + STATUSES + type.ordinal()]);
+            }
+            return new MapClusterDTO(counts[index] == 1 ? ids[index] : null, toLatitude(ys[index]),
+                    toLongitude(xs[index]), counts[index], sizes, statuses, types);
+        }
+
+        private static <K> void putCount(Map<K, Integer> map, K key, int count) {
+            if (count > 0) {
+                map.put(key, count);
+            }
+        }
+
+        /** Returns the index of the first cluster with a cell key not less than the given one. */
+        private int lowerBound(long key) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (cellKeys[middle] < key) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        private long cellKey(int row, int column) {
+            return (long) row * columns + column;
+        }
+
+        private int column(double x) {
+            return (int) Math.floor(Math.max(0, Math.min(1, x)) / cellSize);
+        }
+
+        private int row(double y) {
+            return (int) Math.floor(Math.max(0, Math.min(1, y)) / cellSize);
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package hu.exyxwd.tisztatisza.service;
+
+import java.util.*;
+import java.time.LocalDateTime;
+
+import hu.exyxwd.tisztatisza.dto.*;
+import hu.exyxwd.tisztatisza.model.Waste;
+
+/**
+ * An immutable bitmap index of the map data for arbitrary filter combinations.
+ * Every country, size, status, type and river has a bitmap of the wastes with
+ * it, so a filter is resolved by OR-ing the bitmaps of the values of a field and
+ * AND-ing the fields, a machine word of 64 wastes at a time. The wastes are
+ * ordered by their update time, so an update time range is a contiguous range
+ * of bits found by binary search.
+ */
+public final class MapFilterIndex {
+    /** The index without wastes. */
+    public static final MapFilterIndex EMPTY = new MapFilterIndex(Collections.emptyList());
+
+    /** The wastes, those without update time first, then by update time. */
+    private final MapDataDTO[] wastes;
+    /** The update times of the wastes with one, in the same order. */
+    private final LocalDateTime[] updateTimes;
+    private final BitSet[] countries = newBitmaps(Waste.WasteCountry.values().length);
+    private final BitSet[] sizes = newBitmaps(Waste.WasteSize.values().length);
+    private final BitSet[] statuses = newBitmaps(Waste.WasteStatus.values().length);
+    private final BitSet[] types = newBitmaps(Waste.WasteType.values().length);
+    private final Map<String, BitSet> rivers = new HashMap<>();
+    private final BitSet hidden = new BitSet();
+
+    /**
+     * @param mapData The map data of the wastes.
+     */
+    public MapFilterIndex(List<MapDataDTO> mapData) {
+        wastes = mapData.toArray(new MapDataDTO[0]);
+        Arrays.sort(wastes, Comparator.comparing(MapDataDTO::getUpdateTime,
+                Comparator.nullsFirst(Comparator.naturalOrder())));
+        int undated = 0;
+        while (undated < wastes.length && wastes[undated].getUpdateTime() == null) {
+            undated++;
+        }
+        updateTimes = new LocalDateTime[wastes.length - undated];
+
+        for (int i = 0; i < wastes.length; i++) {
+            MapDataDTO waste = wastes[i];
+            if (waste.getUpdateTime() != null) {
+                updateTimes[i - undated] = waste.getUpdateTime();
+            }
+            if (waste.getCountry() != null) {
+                countries[waste.getCountry().ordinal()].set(i);
+            }
+            if (waste.getSize() != null) {
+                sizes[waste.getSize().ordinal()].set(i);
+            }
+            if (waste.getStatus() != null) {
+                statuses[waste.getStatus().ordinal()].set(i);
+            }
+            if (waste.getTypes() != null) {
+                for (Waste.WasteType type : waste.getTypes()) {
+                    types[type.ordinal()].set(i);
+                }
+            }
+            if (waste.getRiver() != null) {
+                rivers.computeIfAbsent(waste.getRiver(), river -> new BitSet()).set(i);
+            }
+            if (Boolean.TRUE.equals(waste.getHidden())) {
+                hidden.set(i);
+            }
+        }
+    }
+
+    /** @return The number of wastes in the index. */
+    public int size() {
+        return wastes.length;
+    }
+
+    /**
+     * Returns the wastes fitting the given filter.
+     *
+     * @param filter The filter, see WasteFilterDTO for the meaning of its fields.
+     * @return The wastes fitting the filter, ordered by their update time.
+     */
+    public List<MapDataDTO> query(WasteFilterDTO filter) {
+        BitSet result = new BitSet(wastes.length);
+        result.set(0, wastes.length);
+        result.and(any(countries, filter.getCountries()));
+        result.and(any(sizes, filter.getSizes()));
+        result.and(any(statuses, filter.getStatuses()));
+        if (filter.getTypes() != null) {
+            for (Waste.WasteType type : filter.getTypes()) {
+                result.and(types[type.ordinal()]);
+            }
+        }
+        if (filter.getRivers() != null) {
+            BitSet anyRiver = new BitSet();
+            for (String river : filter.getRivers()) {
+                anyRiver.or(rivers.getOrDefault(river, new BitSet()));
+            }
+            result.and(anyRiver);
+        }
+        if (filter.getHidden() != null) {
+            if (filter.getHidden()) {
+                result.and(hidden);
+            } else {
+                result.andNot(hidden);
+            }
+        }
+        if (filter.getUpdatedFrom() != null || filter.getUpdatedTo() != null) {
+            int undated = wastes.length - updateTimes.length;
+            int from = filter.getUpdatedFrom() == null ? 0 : lowerBound(filter.getUpdatedFrom());
+            int to = filter.getUpdatedTo() == null ? updateTimes.length : upperBound(filter.getUpdatedTo());
+            result.clear(0, undated + from);
+            result.clear(undated + Math.max(from, to), wastes.length);
+        }
+
+        List<MapDataDTO> found = new ArrayList<>(result.cardinality());
+        for (int i = result.nextSetBit(0); i >= 0; i = result.nextSetBit(i + 1)) {
+            found.add(wastes[i]);
+        }
+        return found;
+    }
+
+    /** Returns the union of the bitmaps of the given values, every waste if the values are null. */
+    private <E extends Enum<E>> BitSet any(BitSet[] bitmaps, Set<E> values) {
+        BitSet union = new BitSet(wastes.length);
+        if (values == null) {
+            union.set(0, wastes.length);
+            return union;
+        }
+        for (E value : values) {
+            union.or(bitmaps[value.ordinal()]);
+        }
+        return union;
+    }
+
+    /** Returns the index of the first update time not before the given one. */
+    private int lowerBound(LocalDateTime time) {
+        int low = 0;
+        int high = updateTimes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (updateTimes[middle].isBefore(time)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    /** Returns the index of the first update time after the given one. */
+    private int upperBound(LocalDateTime time) {
+        int low = 0;
+        int high = updateTimes.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (!updateTimes[middle].isAfter(time)) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private static BitSet[] newBitmaps(int count) {
+        BitSet[] bitmaps = new BitSet[count];
+        for (int i = 0; i < count; i++) {
+            bitmaps[i] = new BitSet();
+        }
+        return bitmaps;
+    }
+}
@@ -0,0 +1,153 @@
+package hu.exyxwd.tisztatisza.service;
+
+import java.util.*;
+
+import hu.exyxwd.tisztatisza.dto.MapDataDTO;
+
+/**
+ * An immutable spatial grid over the map data of the wastes for viewport
+ * queries. The wastes are sorted by their grid cell, row by row, so the cells
+ * of a bounding box are a few contiguous ranges per row found by binary search,
+ * and only the wastes in those cells are compared with the box. The query cost
+ * depends on the size of the viewport, not on the number of wastes.
+ */
+public final class MapGrid {
+    /** The default size of the grid cells in degrees. */
+    public static final double DEFAULT_CELL_SIZE = 0.05;
+    /** The grid without wastes. */
+    public static final MapGrid EMPTY = new MapGrid(Collections.emptyList(), DEFAULT_CELL_SIZE);
+    /** The size of the map tiles in pixels, for merging the wastes of a pixel. */
+    private static final int TILE_SIZE = 256;
+
+    private final double cellSize;
+    private final int columns;
+    private final long[] cellKeys;
+    private final double[] longitudes;
+    private final double[] latitudes;
+    private final MapDataDTO[] wastes;
+
+    /**
+     * @param mapData  The map data of the wastes, the ones without coordinates
+     *                 are left out.
+     * @param cellSize The size of the grid cells in degrees.
+     */
+    public MapGrid(List<MapDataDTO> mapData, double cellSize) {
+        this.cellSize = cellSize;
+        this.columns = (int) Math.ceil(360 / cellSize) + 1;
+
+        List<MapDataDTO> located = new ArrayList<>(mapData.size());
+        for (MapDataDTO waste : mapData) {
+            if (waste.getLatitude() != null && waste.getLongitude() != null) {
+                located.add(waste);
+            }
+        }
+        long[] keys = new long[located.size()];
+        Integer[] order = new Integer[located.size()];
+        for (int i = 0; i < located.size(); i++) {
+            MapDataDTO waste = located.get(i);
+            keys[i] = cellKey(waste.getLongitude().doubleValue(), waste.getLatitude().doubleValue());
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+
+        this.cellKeys = new long[order.length];
+        this.longitudes = new double[order.length];
+        this.latitudes = new double[order.length];
+        this.wastes = new MapDataDTO[order.length];
+        for (int i = 0; i < order.length; i++) {
+            MapDataDTO waste = located.get(order[i]);
+            cellKeys[i] = keys[order[i]];
+            longitudes[i] = waste.getLongitude().doubleValue();
+            latitudes[i] = waste.getLatitude().doubleValue();
+            wastes[i] = waste;
+        }
+    }
+
+    /** @return The number of wastes in the grid. */
+    public int size() {
+        return wastes.length;
+    }
+
+    /**
+     * Returns the wastes inside the given bounding box. A box crossing the
+     * antimeridian has a western edge greater than its eastern edge. Wastes
+     * falling on the same pixel at the given zoom level are merged, only the
+     * first of them is returned.
+     *
+     * @param minLongitude The western edge of the box.
+     * @param minLatitude  The southern edge of the box.
+     * @param maxLongitude The eastern edge of the box.
+     * @param maxLatitude  The northern edge of the box.
+     * @param zoom         The zoom level of the map, or null to return every
+     *                     waste.
+     * @return The wastes inside the box.
+     */
+    public List<MapDataDTO> query(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude,
+            Integer zoom) {
+        List<MapDataDTO> result = new ArrayList<>();
+        Set<Long> pixels = zoom == null ? null : new HashSet<>();
+        if (minLongitude > maxLongitude) {
+            collect(minLongitude, minLatitude, 180, maxLatitude, zoom, pixels, result);
+            collect(-180, minLatitude, maxLongitude, maxLatitude, zoom, pixels, result);
+        } else {
+            collect(minLongitude, minLatitude, maxLongitude, maxLatitude, zoom, pixels, result);
+        }
+        return result;
+    }
+
+    /** Adds the wastes of a box not crossing the antimeridian to the result. */
+    private void collect(double minLongitude, double minLatitude, double maxLongitude, double maxLatitude,
+            Integer zoom, Set<Long> pixels, List<MapDataDTO> result) {
+        int firstColumn = column(minLongitude);
+        int lastColumn = column(maxLongitude);
+        for (int row = row(minLatitude); row <= row(maxLatitude); row++) {
+            long firstKey = (long) row * columns + firstColumn;
+            long lastKey = (long) row * columns + lastColumn;
+            for (int i = lowerBound(firstKey); i < cellKeys.length && cellKeys[i] <= lastKey; i++) {
+                if (longitudes[i] < minLongitude || longitudes[i] > maxLongitude || latitudes[i] < minLatitude
+                        || latitudes[i] > maxLatitude) {
+                    continue;
+                }
+                if (pixels == null || pixels.add(pixelKey(longitudes[i], latitudes[i], zoom))) {
+                    result.add(wastes[i]);
+                }
+            }
+        }
+    }
+
+    /** Returns the index of the first waste with a cell key not less than the given one. */
+    private int lowerBound(long key) {
+        int low = 0;
+        int high = cellKeys.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (cellKeys[middle] < key) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+        return low;
+    }
+
+    private long cellKey(double longitude, double latitude) {
+        return (long) row(latitude) * columns + column(longitude);
+    }
+
+    private int column(double longitude) {
+        return (int) Math.floor((Math.max(-180, Math.min(180, longitude)) + 180) / cellSize);
+    }
+
+    private int row(double latitude) {
+        return (int) Math.floor((Math.max(-90, Math.min(90, latitude)) + 90) / cellSize);
+    }
+
+    /** Returns the Web Mercator pixel of the given coordinates at the given zoom level as one number. */
+    private static long pixelKey(double longitude, double latitude, int zoom) {
+        double mapSize = (double) TILE_SIZE * (1L << zoom);
+        double clamped = Math.max(-ProjectionService.MAX_LATITUDE, Math.min(ProjectionService.MAX_LATITUDE, latitude));
+        long x = (long) Math.min(mapSize - 1, ProjectionService.toWorldX(longitude) * mapSize);
+        long y = (long) Math.min(mapSize - 1, ProjectionService.toWorldY(clamped) * mapSize);
+        return x << 32 | y;
+    }
+}
@@ -0,0 +1,200 @@
+package hu.exyxwd.tisztatisza.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.springframework.stereotype.Service;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import java.io.*;
+import java.util.*;
+import java.time.*;
+import java.util.concurrent.*;
+import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.atomic.AtomicBoolean;
+import jakarta.annotation.PreDestroy;
+import lombok.*;
+
+import hu.exyxwd.tisztatisza.dto.*;
+import hu.exyxwd.tisztatisza.model.Waste;
+import hu.exyxwd.tisztatisza.dto.mapper.WasteMapper;
+import hu.exyxwd.tisztatisza.repository.WasteRepository;
+
+/**
+ * This service keeps the map data responses as an immutable snapshot of
+ * pre-serialized and pre-compressed bytes. The snapshot is rebuilt after every
+ * synchronization, and in the background shortly after a hidden flag changes,
+ * so the map endpoints only copy bytes instead of querying, mapping and
+ * serializing the wastes on every request. The one year window of the default
+ * filters moves with the rebuilds. The spatial and bitmap indexes of the
+ * viewport, cluster and filter queries are built with the snapshot as well.
+ *
+ * Every snapshot with changed content gets a new dataset version, which the
+ * endpoints send as their ETag. The version combines the start time of the
+ * service with a counter, so versions are never reused after a restart.
+ */
+@Service
+@RequiredArgsConstructor
+public class MapSnapshotService {
+    private final WasteRepository wasteRepository;
+    private final WasteMapper wasteMapper;
+    private final ObjectMapper objectMapper;
+
+    private final String instance = Long.toString(System.currentTimeMillis(), 36);
+    private final ScheduledExecutorService rebuildExecutor = Executors
+            .newSingleThreadScheduledExecutor(Thread.ofPlatform().name("map-snapshot-rebuild").daemon().factory());
+    private final AtomicBoolean rebuildPending = new AtomicBoolean();
+    private long versionCounter;
+    private volatile Snapshot snapshot;
+
+    @Value("${map.snapshot.rebuild-delay:PT1S}")
+    private Duration rebuildDelay = Duration.ofSeconds(1);
+
+    /**
+     * A response body serialized as JSON and as binary map data, both plain and
+     * gzipped.
+     */
+    @Getter
+    @AllArgsConstructor
+    public static final class Body {
+        private final byte[] json;
+        private final byte[] gzip;
+        private final byte[] binary;
+        private final byte[] binaryGzip;
+    }
+
+    /** The map data responses at one point in time. */
+    @Getter
+    @AllArgsConstructor
+    public static final class Snapshot {
+        /** The wastes fitting the default filters. */
+        private final Body filtered;
+        /** The wastes not fitting the default filters. */
+        private final Body inverse;
+        /** Every waste of the snapshot, for viewport queries. */
+        private final MapGrid grid;
+        /** The clusters of every waste of the snapshot per zoom level. */
+        private final MapClusters clusters;
+        /** The bitmap index of every waste of the snapshot, for filter queries. */
+        private final MapFilterIndex filters;
+        /** The dataset version, only changed if the content changes. */
+        private final String version;
+        /** The time the content last changed. */
+        private final Instant lastModified;
+    }
+
+    /**
+     * Returns the current snapshot, building the first one if there is none yet.
+     *
+     * @return The current snapshot.
+     */
+    public Snapshot getSnapshot() {
+        Snapshot current = snapshot;
+        return current != null ? current : rebuild();
+    }
+
+    /**
+     * Builds a new snapshot from the database and replaces the current one at
+     * once, so requests running meanwhile get either of them. The current
+     * snapshot and its version are kept if the content did not change.
+     *
+     * @return The current snapshot.
+     */
+    public synchronized Snapshot rebuild() {
+        LocalDateTime oneYearAgo = LocalDateTime.now().minusYears(1);
+        List<Waste> filtered = wasteRepository.findByFilters(Waste.WasteCountry.HUNGARY, Waste.WasteSize.BAG,
+                Waste.WasteStatus.STILLHERE, oneYearAgo);
+        List<Waste> inverse = wasteRepository.findByFiltersInverse(Waste.WasteCountry.HUNGARY, Waste.WasteSize.BAG,
+                Waste.WasteStatus.STILLHERE, oneYearAgo);
+
+        List<MapDataDTO> filteredMapData = toMapData(filtered);
+        List<MapDataDTO> inverseMapData = toMapData(inverse);
+        Body filteredBody = serialize(filteredMapData);
+        Body inverseBody = serialize(inverseMapData);
+        Snapshot current = snapshot;
+        if (current != null && Arrays.equals(current.getFiltered().getJson(), filteredBody.getJson())
+                && Arrays.equals(current.getInverse().getJson(), inverseBody.getJson())) {
+            return current;
+        }
+
+        List<MapDataDTO> mapData = new ArrayList<>(filteredMapData);
+        mapData.addAll(inverseMapData);
+        versionCounter++;
+        Snapshot built = new Snapshot(filteredBody, inverseBody, new MapGrid(mapData, MapGrid.DEFAULT_CELL_SIZE),
+                new MapClusters(mapData), new MapFilterIndex(mapData), instance + "-" + versionCounter, Instant.now());
+        snapshot = built;
+        return built;
+    }
+
+    /**
+     * Rebuilds the snapshot in the background after the given delay, once the
+     * current transaction, if any, is committed. The changes requested until the
+     * rebuild starts are all picked up by one rebuild. A failed rebuild keeps the
+     * current snapshot and is only logged, so the change itself never fails
+     * because of it.
+     */
+    public void requestRebuild() {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    scheduleRebuild();
+                }
+            });
+        } else {
+            scheduleRebuild();
+        }
+    }
+
+    private void scheduleRebuild() {
+        if (!rebuildPending.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            rebuildExecutor.schedule(() -> {
+                // Changes from now on need another rebuild
+                rebuildPending.set(false);
+                try {
+                    rebuild();
+                } catch (RuntimeException e) {
+                    System.out.println("Could not rebuild the map snapshot: " + e.getMessage());
+                }
+            }, rebuildDelay.toMillis(), TimeUnit.MILLISECONDS);
+        } catch (RejectedExecutionException e) {
+            rebuildPending.set(false);
+        }
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        rebuildExecutor.shutdownNow();
+    }
+
+    private List<MapDataDTO> toMapData(List<Waste> wastes) {
+        List<MapDataDTO> mapData = new ArrayList<>(wastes.size());
+        for (Waste waste : wastes) {
+            mapData.add(wasteMapper.toMapData(waste));
+        }
+        return mapData;
+    }
+
+    /** Serializes the map data in both forms and compresses them. */
+    private Body serialize(List<MapDataDTO> mapData) {
+        try {
+            byte[] json = objectMapper.writeValueAsBytes(mapData);
+            byte[] binary = MapDataCodec.encode(mapData);
+            return new Body(json, compress(json), binary, compress(binary));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not serialize the map data", e);
+        }
+    }
+
+    private static byte[] compress(byte[] bytes) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(compressed)) {
+            gzip.write(bytes);
+        }
+        return compressed.toByteArray();
+    }
+}
@@ -0,0 +1,107 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.geom.impl.CoordinateArraySequence;
+
+import java.nio.DoubleBuffer;
+
+/**
+ * A read-only two dimensional coordinate sequence backed by a range of packed
+ * x, y pairs of a shared buffer, e.g. a memory-mapped river index file. The
+ * coordinates are read from the buffer on demand, only the accessors returning
+ * Coordinate objects allocate.
+ */
+final class MappedCoordinateSequence implements CoordinateSequence {
+    private final DoubleBuffer coordinates;
+    private final int start;
+    private final int size;
+
+    /**
+     * @param coordinates The packed x, y pairs, only read with absolute gets.
+     * @param start       The index of the first point of the sequence.
+     * @param size        The number of points of the sequence.
+     */
+    MappedCoordinateSequence(DoubleBuffer coordinates, int start, int size) {
+        this.coordinates = coordinates;
+        this.start = start;
+        this.size = size;
+    }
+
+    @Override
+    public int getDimension() {
+        return 2;
+    }
+
+    @Override
+    public Coordinate getCoordinate(int i) {
+        return getCoordinateCopy(i);
+    }
+
+    @Override
+    public Coordinate getCoordinateCopy(int i) {
+        return new CoordinateXY(getX(i), getY(i));
+    }
+
+    @Override
+    public void getCoordinate(int index, Coordinate coord) {
+        coord.setX(getX(index));
+        coord.setY(getY(index));
+    }
+
+    @Override
+    public double getX(int index) {
+        return coordinates.get(2 * (start + index));
+    }
+
+    @Override
+    public double getY(int index) {
+        return coordinates.get(2 * (start + index) + 1);
+    }
+
+    @Override
+    public double getOrdinate(int index, int ordinateIndex) {
+        return switch (ordinateIndex) {
+            case CoordinateSequence.X -> getX(index);
+            case CoordinateSequence.Y -> getY(index);
+            default -> Double.NaN;
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void setOrdinate(int index, int ordinateIndex, double value) {
+        throw new UnsupportedOperationException("The mapped coordinates are read-only");
+    }
+
+    @Override
+    public Coordinate[] toCoordinateArray() {
+        Coordinate[] array = new Coordinate[size];
+        for (int i = 0; i < size; i++) {
+            array[i] = getCoordinateCopy(i);
+        }
+        return array;
+    }
+
+    @Override
+    public Envelope expandEnvelope(Envelope env) {
+        for (int i = 0; i < size; i++) {
+            env.expandToInclude(getX(i), getY(i));
+        }
+        return env;
+    }
+
+    @Override
+    @Deprecated
+    public Object clone() {
+        return copy();
+    }
+
+    @Override
+    public CoordinateSequence copy() {
+        return new CoordinateArraySequence(toCoordinateArray(), 2, 0);
+    }
+}
@@ -0,0 +1,161 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.springframework.stereotype.Service;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+
+import java.nio.*;
+import java.util.*;
+
+import hu.exyxwd.tisztatisza.model.RiverProximity;
+
+/**
+ * A river engine computing the closest rivers in PostGIS. The river line
+ * strings are stored in Web Mercator in the rivers table, with the chainages of
+ * the river index in ground meters as their measures, and the wastes get a
+ * generated Web Mercator point column, both with GiST indexes, so the nearest
+ * rivers are found with ST_DWithin and the KNN operator, for all wastes
+ * without rivers in one statement. Wastes beyond the latitudes of Web Mercator
+ * get no point. Only created if rivers.engine is postgis.
+ */
+@Service
+@ConditionalOnProperty(name = "rivers.engine", havingValue = "postgis")
+public class PostgisRiverEngine implements RiverEngine {
+    private static final int INSERT_BATCH_SIZE = 1000;
+    private static final String[] SCHEMA = {
+            "CREATE EXTENSION IF NOT EXISTS postgis",
+            "CREATE TABLE IF NOT EXISTS rivers (id serial PRIMARY KEY, name text NOT NULL, "
+                    + "geom geometry(LineStringM, 3857) NOT NULL)",
+            // Tables created before the chainages were stored as measures, others are left alone
+            "DO $$ BEGIN IF EXISTS (SELECT 1 FROM pg_attribute WHERE attrelid = 'rivers'::regclass "
+                    + "AND attname = 'geom' AND format_type(atttypid, atttypmod) <> 'geometry(LineStringM,3857)') "
+                    + "THEN ALTER TABLE rivers ALTER COLUMN geom TYPE geometry(LineStringM, 3857) "
+                    + "USING ST_Force3DM(geom); END IF; END $$",
+            "CREATE INDEX IF NOT EXISTS rivers_geom_idx ON rivers USING GIST (geom)",
+            // Columns generated before the polar wastes were left out would fail on them, they are added again
+            "DO $$ BEGIN IF EXISTS (SELECT 1 FROM information_schema.columns WHERE table_schema = current_schema() "
+                    + "AND table_name = 'wastes' AND column_name = 'geom' AND generation_expression NOT LIKE '%CASE%') "
+                    + "THEN ALTER TABLE wastes DROP COLUMN geom; END IF; END $$",
+            // Web Mercator ends at 85.0511 degrees, wastes beyond it get no point instead of failing the upsert
+            "ALTER TABLE wastes ADD COLUMN IF NOT EXISTS geom geometry(Point, 3857) GENERATED ALWAYS AS "
+                    + "(CASE WHEN abs(latitude) <= " + ProjectionService.MAX_LATITUDE + " THEN ST_Transform(ST_SetSRID("
+                    + "ST_MakePoint(longitude::float8, latitude::float8), 4326), 3857) END) STORED",
+            "CREATE INDEX IF NOT EXISTS wastes_geom_idx ON wastes USING GIST (geom)" };
+    // The closest line string of every river within the threshold, then the closest rivers, with the Web
+    // Mercator distance scaled by the cosine of the latitude of the closest point as in the river index
+    private static final String CLOSEST_RIVERS_SQL = closestRiversSql("ST_SetSRID(ST_MakePoint(?, ?), 3857)");
+    // The same for every waste without rivers at once, formatted in the compact form of RiverProximity with
+    // the meters rounded to decimeters. Wastes without a point find no rivers.
+    private static final String UPDATE_NULL_RIVERS_SQL = "UPDATE wastes SET river = closest.river, "
+            + "river_proximities = closest.proximities FROM (SELECT w.id, "
+            + "coalesce((array_agg(c.name ORDER BY c.projected))[1], '') AS river, "
+            + "coalesce(string_agg(replace(c.name, ';', ' ') || ':' || round(c.distance::numeric, 1) || ':' "
+            + "|| round(c.chainage::numeric, 1), ';' ORDER BY c.projected), '') AS proximities "
+            + "FROM wastes w LEFT JOIN LATERAL (" + closestRiversSql("w.geom") + ") c ON true "
+            + "WHERE w.river IS NULL OR w.river_proximities IS NULL GROUP BY w.id) closest "
+            + "WHERE wastes.id = closest.id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private volatile RiverIndex loadedIndex;
+    private volatile boolean schemaCreated;
+
+    public PostgisRiverEngine(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+    }
+
+    /** @return True if the rivers of an index are stored in the database. */
+    public boolean isLoaded() {
+        return loadedIndex != null && !loadedIndex.isEmpty();
+    }
+
+    /**
+     * Replaces the rivers in the database with the rivers of the given index in
+     * one transaction, unless they are already stored. The tables and indexes are
+     * created the first time.
+     *
+     * @param index The river index to store.
+     */
+    public synchronized void load(RiverIndex index) {
+        if (index == loadedIndex) {
+            return;
+        }
+        if (!schemaCreated) {
+            for (String statement : SCHEMA) {
+                jdbcTemplate.execute(statement);
+            }
+            schemaCreated = true;
+        }
+
+        List<Integer> lines = new ArrayList<>();
+        for (int line = 0; line < index.getRivers().size(); line++) {
+            lines.add(line);
+        }
+        transactionTemplate.executeWithoutResult(status -> {
+            jdbcTemplate.execute("TRUNCATE rivers");
+            jdbcTemplate.batchUpdate("INSERT INTO rivers (name, geom) VALUES (?, ST_GeomFromText(?, 3857))", lines,
+                    INSERT_BATCH_SIZE, (ps, line) -> {
+                        ps.setString(1, index.getRivers().get(line).getName());
+                        ps.setString(2, toMeasuredText(index, line));
+                    });
+        });
+        // Keep the planner statistics right after replacing every row
+        jdbcTemplate.execute("ANALYZE rivers");
+        loadedIndex = index;
+    }
+
+    /**
+     * Returns the query of the closest rivers to the given location, taking the
+     * threshold and the maximum number of rivers as parameters.
+     */
+    private static String closestRiversSql(String location) {
+        return "SELECT name, projected, distance, chainage FROM ("
+                + "SELECT DISTINCT ON (name) name, ST_Distance(geom, location) AS projected, "
+                + "ST_Distance(geom, location) / cosh(ST_Y(ST_ClosestPoint(geom, location)) / "
+                + ProjectionService.EARTH_RADIUS + ") AS distance, ST_InterpolatePoint(geom, location) AS chainage "
+                + "FROM rivers, (SELECT " + location + " AS location) origin "
+                + "WHERE ST_DWithin(geom, location, ?) ORDER BY name, geom <-> location) closest "
+                + "ORDER BY projected LIMIT ?";
+    }
+
+    /** Formats a line string of the index with the chainages of its points as a measured WKT line string. */
+    private static String toMeasuredText(RiverIndex index, int line) {
+        DoubleBuffer coordinates = index.getCoordinates();
+        DoubleBuffer measures = index.getMeasures();
+        IntBuffer lineStarts = index.getLineStarts();
+        StringBuilder text = new StringBuilder("LINESTRING M (");
+        for (int point = lineStarts.get(line); point < lineStarts.get(line + 1); point++) {
+            if (point > lineStarts.get(line)) {
+                text.append(", ");
+            }
+            text.append(coordinates.get(2 * point)).append(' ').append(coordinates.get(2 * point + 1)).append(' ')
+                    .append(measures.get(point));
+        }
+        return text.append(')').toString();
+    }
+
+    @Override
+    public List<RiverProximity> findClosestRivers(double x, double y, double thresholdInMeters, int count) {
+        if (count <= 0) {
+            return new ArrayList<>();
+        }
+        return jdbcTemplate.query(CLOSEST_RIVERS_SQL, (rs, rowNum) -> new RiverProximity(rs.getString("name"),
+                rs.getDouble("distance"), rs.getDouble("chainage")), x, y, thresholdInMeters, count);
+    }
+
+    /**
+     * Sets the river and the closest rivers of every waste where they are not yet
+     * calculated in one statement, which finds the closest rivers of the stored
+     * waste points with the spatial indexes instead of a query per waste.
+     *
+     * @param thresholdInMeters The threshold in Web Mercator meters.
+     * @param count             The maximum number of closest rivers of a waste.
+     * @return The number of updated wastes.
+     */
+    public int updateNullRivers(double thresholdInMeters, int count) {
+        return jdbcTemplate.update(UPDATE_NULL_RIVERS_SQL, thresholdInMeters, Math.max(0, count));
+    }
+}
@@ -0,0 +1,175 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.locationtech.jts.geom.*;
+import org.geotools.referencing.CRS;
+import org.springframework.stereotype.Service;
+import org.opengis.referencing.operation.MathTransform;
+import org.opengis.referencing.operation.TransformException;
+
+import lombok.Getter;
+
+/**
+ * This service reprojects WGS84 longitude and latitude coordinates into Web
+ * Mercator (EPSG:3857) meters. The GeoTools transform is looked up once, and
+ * the closed-form spherical Mercator formula is used instead of it when it
+ * matches GeoTools on a grid of sample points. The closed-form formulas and
+ * their inverses are also available on their own for the tile and grid
+ * computations.
+ */
+@Getter
+@Service
+public class ProjectionService {
+    /** The radius of the Web Mercator sphere, the WGS84 semi-major axis. */
+    public static final double EARTH_RADIUS = 6378137.0;
+    /** Half the width of the Web Mercator world in meters. */
+    public static final double HALF_WORLD = Math.PI * EARTH_RADIUS;
+    /** The highest latitude of Web Mercator, where its world becomes a square. */
+    public static final double MAX_LATITUDE = 85.05112878;
+    /** The maximum deviation of the fast path from GeoTools in meters. */
+    public static final double FAST_PATH_TOLERANCE = 1e-3;
+
+    private final MathTransform transform;
+    private final boolean fastPath;
+
+    public ProjectionService() {
+        MathTransform geoToolsTransform = null;
+        try {
+            // Longitude first, the coordinates are always passed as x = longitude, y = latitude
+            geoToolsTransform = CRS.findMathTransform(CRS.decode("EPSG:4326", true), CRS.decode("EPSG:3857"), true);
+        } catch (Exception e) {
+            System.out.println("Could not create the GeoTools transform, using the closed-form projection: "
+                    + e.getMessage());
+        }
+        this.transform = geoToolsTransform;
+        this.fastPath = geoToolsTransform == null || checkFastPath(geoToolsTransform);
+    }
+
+    /**
+     * Reprojects interleaved longitude and latitude pairs into Web Mercator.
+     *
+     * @param lonLat    The coordinates as longitude, latitude pairs.
+     * @param mercator  Receives the coordinates as x, y pairs, can be the same
+     *                  array as the source.
+     * @param numPoints The number of points to reproject.
+     */
+    public void toWebMercator(double[] lonLat, double[] mercator, int numPoints) {
+        if (fastPath) {
+            for (int i = 0; i < 2 * numPoints; i += 2) {
+                double longitude = lonLat[i];
+                double latitude = lonLat[i + 1];
+                mercator[i] = projectX(longitude);
+                mercator[i + 1] = projectY(latitude);
+            }
+            return;
+        }
+
+        try {
+            transform.transform(lonLat, 0, mercator, 0, numPoints);
+        } catch (TransformException e) {
+            throw new IllegalArgumentException("Could not reproject the coordinates: " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Reprojects a single longitude and latitude into Web Mercator.
+     *
+     * @param longitude The longitude in degrees.
+     * @param latitude  The latitude in degrees.
+     * @return The coordinate in Web Mercator meters.
+     */
+    public Coordinate toWebMercator(double longitude, double latitude) {
+        double[] point = { longitude, latitude };
+        toWebMercator(point, point, 1);
+        return new Coordinate(point[0], point[1]);
+    }
+
+    /**
+     * Reprojects a line of longitude and latitude coordinates into Web Mercator
+     * in one pass.
+     *
+     * @param coordinates     The coordinates with x = longitude and y = latitude.
+     * @param geometryFactory The factory of the line string.
+     * @return The line string in Web Mercator meters.
+     */
+    public LineString toWebMercator(Coordinate[] coordinates, GeometryFactory geometryFactory) {
+        double[] points = new double[2 * coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            points[2 * i] = coordinates[i].x;
+            points[2 * i + 1] = coordinates[i].y;
+        }
+        toWebMercator(points, points, coordinates.length);
+
+        Coordinate[] projected = new Coordinate[coordinates.length];
+        for (int i = 0; i < coordinates.length; i++) {
+            projected[i] = new Coordinate(points[2 * i], points[2 * i + 1]);
+        }
+        return geometryFactory.createLineString(projected);
+    }
+
+    /** Returns the Web Mercator x in meters of the given longitude. */
+    public static double projectX(double longitude) {
+        return EARTH_RADIUS * Math.toRadians(longitude);
+    }
+
+    /** Returns the Web Mercator y in meters of the given latitude. */
+    public static double projectY(double latitude) {
+        return EARTH_RADIUS * Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude) / 2));
+    }
+
+    /** Returns the longitude of the given Web Mercator x in meters. */
+    public static double toLongitude(double x) {
+        return Math.toDegrees(x / EARTH_RADIUS);
+    }
+
+    /** Returns the latitude of the given Web Mercator y in meters. */
+    public static double toLatitude(double y) {
+        return Math.toDegrees(Math.atan(Math.sinh(y / EARTH_RADIUS)));
+    }
+
+    /** Returns the Web Mercator x of the given longitude as a fraction of the world, 0 being the west edge. */
+    public static double toWorldX(double longitude) {
+        return 0.5 + projectX(longitude) / (2 * HALF_WORLD);
+    }
+
+    /** Returns the Web Mercator y of the given latitude as a fraction of the world, 0 being the north edge. */
+    public static double toWorldY(double latitude) {
+        return 0.5 - projectY(latitude) / (2 * HALF_WORLD);
+    }
+
+    /**
+     * Compares the closed-form projection with GeoTools on a grid covering the
+     * valid Web Mercator range.
+     *
+     * @param geoToolsTransform The GeoTools transform to compare with.
+     * @return True if the closed-form projection is within the tolerance everywhere.
+     */
+    private static boolean checkFastPath(MathTransform geoToolsTransform) {
+        double[] lonLat = new double[2 * 37 * 35];
+        int numPoints = 0;
+        for (int longitude = -180; longitude <= 180; longitude += 10) {
+            for (int latitude = -85; latitude <= 85; latitude += 5) {
+                lonLat[2 * numPoints] = longitude;
+                lonLat[2 * numPoints + 1] = latitude;
+                numPoints++;
+            }
+        }
+
+        double[] expected = new double[lonLat.length];
+        try {
+            geoToolsTransform.transform(lonLat, 0, expected, 0, numPoints);
+        } catch (TransformException e) {
+            System.out.println("Could not check the closed-form projection, using GeoTools: " + e.getMessage());
+            return false;
+        }
+
+        for (int i = 0; i < 2 * numPoints; i += 2) {
+            if (Math.abs(projectX(lonLat[i]) - expected[i]) > FAST_PATH_TOLERANCE
+                    || Math.abs(projectY(lonLat[i + 1]) - expected[i + 1]) > FAST_PATH_TOLERANCE) {
+                System.out.println("The closed-form projection differs from GeoTools at " + lonLat[i] + ", "
+                        + lonLat[i + 1] + ", using GeoTools.");
+                return false;
+            }
+        }
+        return true;
+    }
+}
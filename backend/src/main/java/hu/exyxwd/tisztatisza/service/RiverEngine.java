@@ -0,0 +1,27 @@
+package hu.exyxwd.tisztatisza.service;
+
+import java.util.List;
+
+import hu.exyxwd.tisztatisza.model.RiverProximity;
+
+/**
+ * A strategy for finding the closest rivers to a location. The in-memory
+ * RiverIndex is the default engine, PostgisRiverEngine computes the same in the
+ * database when rivers.engine is set to postgis.
+ */
+public interface RiverEngine {
+    /**
+     * Returns the closest rivers to the given location within the given
+     * threshold, every river name at most once with its closest line string. The
+     * threshold is compared with Web Mercator distances, the returned distances
+     * and chainages are in meters on the ground.
+     *
+     * @param x                 The x of the location in Web Mercator meters.
+     * @param y                 The y of the location in Web Mercator meters.
+     * @param thresholdInMeters The threshold in Web Mercator meters.
+     * @param count             The maximum number of rivers to return.
+     * @return The closest rivers ordered by distance, empty if there is none
+     *         within the threshold.
+     */
+    List<RiverProximity> findClosestRivers(double x, double y, double thresholdInMeters, int count);
+}
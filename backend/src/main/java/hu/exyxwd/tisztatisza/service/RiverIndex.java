@@ -0,0 +1,486 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.nio.*;
+import java.util.*;
+import lombok.*;
+
+import hu.exyxwd.tisztatisza.model.RiverProximity;
+
+/**
+ * An immutable index of the river line strings in Web Mercator meters. The
+ * line strings are split into chunks of a few segments with tight envelopes,
+ * and the chunks are indexed in an STRtree built once in the constructor, so the
+ * index can be shared between threads without locking and replaced as a whole
+ * when the rivers change.
+ *
+ * The coordinates of every line string are kept as packed x, y pairs, on the
+ * heap or in a memory-mapped binary river index, and the closest river is found
+ * with a point to segment distance kernel over them without allocating.
+ *
+ * Web Mercator stretches lengths by 1/cos(latitude), about 1.46 times in
+ * Hungary, so the distances and chainages of the closest rivers are scaled back
+ * to meters on the ground. Every point also has a measure, its chainage in
+ * ground meters along its river, computed once when the index is built.
+ */
+public final class RiverIndex implements RiverEngine {
+    /** The index used until the rivers are loaded. */
+    public static final RiverIndex EMPTY = new RiverIndex(Collections.emptyList());
+    /** The maximum number of segments in a chunk. */
+    public static final int CHUNK_SEGMENTS = 16;
+
+    private static final byte UNVISITED = 0;
+    private static final byte VISITING = 1;
+    private static final byte VISITED = 2;
+
+    /** A river line string with the name of its river. */
+    @Getter
+    @AllArgsConstructor
+    public static final class River {
+        private final Geometry geometry;
+        private final String name;
+    }
+
+    private final List<River> rivers;
+    private final DoubleBuffer coordinates;
+    private final IntBuffer lineStarts;
+    private final DoubleBuffer measures;
+    private final IntBuffer chunkLines;
+    private final IntBuffer chunkStarts;
+    private final DoubleBuffer chunkEnvelopes;
+    private final STRtree tree;
+
+    /**
+     * Packs the coordinates of the given rivers and splits them into chunks.
+     *
+     * @param rivers The rivers to index.
+     */
+    public RiverIndex(List<River> rivers) {
+        this.rivers = List.copyOf(rivers);
+
+        int[] starts = new int[this.rivers.size() + 1];
+        int pointCount = 0;
+        for (int i = 0; i < this.rivers.size(); i++) {
+            starts[i] = pointCount;
+            pointCount += this.rivers.get(i).getGeometry().getNumPoints();
+        }
+        starts[this.rivers.size()] = pointCount;
+
+        double[] points = new double[2 * pointCount];
+        int position = 0;
+        for (River river : this.rivers) {
+            for (Coordinate coordinate : river.getGeometry().getCoordinates()) {
+                points[position++] = coordinate.x;
+                points[position++] = coordinate.y;
+            }
+        }
+        this.coordinates = DoubleBuffer.wrap(points);
+        this.lineStarts = IntBuffer.wrap(starts);
+        this.measures = DoubleBuffer.wrap(computeMeasures());
+
+        List<Integer> lines = new ArrayList<>();
+        List<Integer> chunks = new ArrayList<>();
+        for (int line = 0; line < this.rivers.size(); line++) {
+            for (int start = starts[line]; start < starts[line + 1] - 1; start += CHUNK_SEGMENTS) {
+                lines.add(line);
+                chunks.add(start);
+            }
+        }
+        this.chunkLines = IntBuffer.wrap(lines.stream().mapToInt(Integer::intValue).toArray());
+        this.chunkStarts = IntBuffer.wrap(chunks.stream().mapToInt(Integer::intValue).toArray());
+        this.chunkEnvelopes = DoubleBuffer.wrap(computeChunkEnvelopes());
+        this.tree = buildTree();
+    }
+
+    /**
+     * Creates the index from already packed coordinates, measures and chunks,
+     * e.g. the buffers of a memory-mapped binary river index, without copying
+     * them.
+     */
+    RiverIndex(List<River> rivers, DoubleBuffer coordinates, IntBuffer lineStarts, DoubleBuffer measures,
+            IntBuffer chunkLines, IntBuffer chunkStarts, DoubleBuffer chunkEnvelopes) {
+        this.rivers = List.copyOf(rivers);
+        this.coordinates = coordinates;
+        this.lineStarts = lineStarts;
+        this.measures = measures;
+        this.chunkLines = chunkLines;
+        this.chunkStarts = chunkStarts;
+        this.chunkEnvelopes = chunkEnvelopes;
+        this.tree = buildTree();
+    }
+
+    /** @return The indexed rivers, unmodifiable. */
+    public List<River> getRivers() {
+        return rivers;
+    }
+
+    /** @return True if no river is indexed. */
+    public boolean isEmpty() {
+        return rivers.isEmpty();
+    }
+
+    /** @return The packed x, y pairs of every line string, read-only. */
+    DoubleBuffer getCoordinates() {
+        return coordinates.asReadOnlyBuffer();
+    }
+
+    /** @return The first point of every line string followed by the point count. */
+    IntBuffer getLineStarts() {
+        return lineStarts.asReadOnlyBuffer();
+    }
+
+    /** @return The chainage of every point in ground meters. */
+    DoubleBuffer getMeasures() {
+        return measures.asReadOnlyBuffer();
+    }
+
+    /** @return The line string of every chunk. */
+    IntBuffer getChunkLines() {
+        return chunkLines.asReadOnlyBuffer();
+    }
+
+    /** @return The first point of every chunk. */
+    IntBuffer getChunkStarts() {
+        return chunkStarts.asReadOnlyBuffer();
+    }
+
+    /** @return The min x, min y, max x, max y of every chunk. */
+    DoubleBuffer getChunkEnvelopes() {
+        return chunkEnvelopes.asReadOnlyBuffer();
+    }
+
+    /**
+     * Returns the closest river to the given location within the given threshold.
+     *
+     * @param x                 The x of the location in Web Mercator meters.
+     * @param y                 The y of the location in Web Mercator meters.
+     * @param thresholdInMeters The threshold in Web Mercator meters.
+     * @return The closest river, or null if there is none within the threshold.
+     */
+    public River findClosest(double x, double y, double thresholdInMeters) {
+        Search search = search(x, y, thresholdInMeters, 1);
+        return search.size == 0 ? null : rivers.get(search.lines[0]);
+    }
+
+    @Override
+    public List<RiverProximity> findClosestRivers(double x, double y, double thresholdInMeters, int count) {
+        if (count <= 0) {
+            return new ArrayList<>();
+        }
+        Search search = search(x, y, thresholdInMeters, count);
+        List<RiverProximity> proximities = new ArrayList<>(search.size);
+        for (int i = 0; i < search.size; i++) {
+            int segment = search.points[i];
+            double t = projection(x, y, segment);
+            double closestY = coordinates.get(2 * segment + 1)
+                    + t * (coordinates.get(2 * segment + 3) - coordinates.get(2 * segment + 1));
+            double chainage = measures.get(segment) + t * (measures.get(segment + 1) - measures.get(segment));
+            proximities.add(new RiverProximity(rivers.get(search.lines[i]).getName(),
+                    Math.sqrt(search.distancesSquared[i]) * groundScale(closestY), chainage));
+        }
+        return proximities;
+    }
+
+    /**
+     * Returns the rivers with a chunk intersecting the given envelope, e.g. the
+     * rivers to draw on a map tile.
+     *
+     * @param envelope The envelope in Web Mercator meters.
+     * @return The rivers intersecting the envelope, in index order.
+     */
+    public List<River> findRivers(Envelope envelope) {
+        BitSet lines = new BitSet(rivers.size());
+        tree.query(envelope, item -> lines.set(chunkLines.get((Integer) item)));
+        List<River> found = new ArrayList<>(lines.cardinality());
+        for (int line = lines.nextSetBit(0); line >= 0; line = lines.nextSetBit(line + 1)) {
+            found.add(rivers.get(line));
+        }
+        return found;
+    }
+
+    /**
+     * Finds the closest segments of the given number of rivers. Only the chunks
+     * with an envelope within the threshold are visited, and a chunk is skipped
+     * without looking at its segments once its envelope is farther than the
+     * farthest of the closest rivers so far.
+     */
+    private Search search(double x, double y, double thresholdInMeters, int count) {
+        Search search = new Search(x, y, thresholdInMeters * thresholdInMeters, count);
+        tree.query(new Envelope(x - thresholdInMeters, x + thresholdInMeters, y - thresholdInMeters,
+                y + thresholdInMeters), item -> visitChunk(search, (Integer) item));
+        return search;
+    }
+
+    /** Measures the segments of a chunk unless its envelope cannot beat the closest rivers. */
+    private void visitChunk(Search search, int chunk) {
+        double dx = Math.max(0, Math.max(chunkEnvelopes.get(4 * chunk) - search.x,
+                search.x - chunkEnvelopes.get(4 * chunk + 2)));
+        double dy = Math.max(0, Math.max(chunkEnvelopes.get(4 * chunk + 1) - search.y,
+                search.y - chunkEnvelopes.get(4 * chunk + 3)));
+        if (!search.accepts(dx * dx + dy * dy)) {
+            return;
+        }
+
+        int line = chunkLines.get(chunk);
+        int start = chunkStarts.get(chunk);
+        int end = Math.min(start + CHUNK_SEGMENTS, lineStarts.get(line + 1) - 1);
+        for (int point = start; point < end; point++) {
+            double distanceSquared = segmentDistanceSquared(search.x, search.y, coordinates.get(2 * point),
+                    coordinates.get(2 * point + 1), coordinates.get(2 * point + 2), coordinates.get(2 * point + 3));
+            if (search.accepts(distanceSquared)) {
+                search.offer(distanceSquared, line, point, rivers.get(line).getName());
+                // The rest of the chunk belongs to the same river and cannot be closer
+                if (distanceSquared == 0) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the closest point of a segment to a location as
+     * the fraction of the segment from its first point.
+     */
+    private double projection(double x, double y, int segment) {
+        double dx = coordinates.get(2 * segment + 2) - coordinates.get(2 * segment);
+        double dy = coordinates.get(2 * segment + 3) - coordinates.get(2 * segment + 1);
+        double lengthSquared = dx * dx + dy * dy;
+        if (lengthSquared == 0) {
+            return 0;
+        }
+        double t = ((x - coordinates.get(2 * segment)) * dx + (y - coordinates.get(2 * segment + 1)) * dy)
+                / lengthSquared;
+        return Math.max(0, Math.min(1, t));
+    }
+
+    /**
+     * Returns the ratio of ground meters to Web Mercator meters at the given y,
+     * the cosine of its latitude.
+     *
+     * @param y The y in Web Mercator meters.
+     * @return The scale factor of the lengths around y.
+     */
+    static double groundScale(double y) {
+        // The latitude is gd(y / R), and cos(gd(u)) = 1 / cosh(u)
+        return 1 / Math.cosh(y / ProjectionService.EARTH_RADIUS);
+    }
+
+    /**
+     * Returns the squared distance between a point and a segment.
+     *
+     * @param px The x of the point.
+     * @param py The y of the point.
+     * @param ax The x of the start of the segment.
+     * @param ay The y of the start of the segment.
+     * @param bx The x of the end of the segment.
+     * @param by The y of the end of the segment.
+     * @return The squared distance of the point from the closest point of the
+     *         segment.
+     */
+    static double segmentDistanceSquared(double px, double py, double ax, double ay, double bx, double by) {
+        double dx = bx - ax;
+        double dy = by - ay;
+        double lengthSquared = dx * dx + dy * dy;
+        // The position of the projected point along the segment, clamped to the segment
+        double t = lengthSquared == 0 ? 0 : ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+        t = Math.max(0, Math.min(1, t));
+        double cx = ax + t * dx - px;
+        double cy = ay + t * dy - py;
+        return cx * cx + cy * cy;
+    }
+
+    /**
+     * Computes the chainage of every point in ground meters along its river,
+     * every segment scaled at the latitude of its midpoint. OSM splits a river
+     * into ways, so every line string is offset by the length of the ways of the
+     * same river upstream of it.
+     */
+    private double[] computeMeasures() {
+        double[] chainages = new double[coordinates.limit() / 2];
+        for (int line = 0; line < rivers.size(); line++) {
+            for (int point = lineStarts.get(line); point < lineStarts.get(line + 1) - 1; point++) {
+                double length = Math.hypot(coordinates.get(2 * point + 2) - coordinates.get(2 * point),
+                        coordinates.get(2 * point + 3) - coordinates.get(2 * point + 1));
+                chainages[point + 1] = chainages[point]
+                        + length * groundScale((coordinates.get(2 * point + 1) + coordinates.get(2 * point + 3)) / 2);
+            }
+        }
+        double[] offsets = computeOffsets(chainages);
+        for (int line = 0; line < rivers.size(); line++) {
+            for (int point = lineStarts.get(line); point < lineStarts.get(line + 1); point++) {
+                chainages[point] += offsets[line];
+            }
+        }
+        return chainages;
+    }
+
+    /**
+     * Computes the chainage of the first point of every line string by chaining
+     * the ways of a river: OSM waterways point downstream, so the ways of the same
+     * river ending at the first point of a way are upstream of it, and the way
+     * starts after the longest of them. Ways without an upstream way start from
+     * zero, and a way closing a loop is not followed again.
+     *
+     * @param lengths The chainages of the points from the first point of their
+     *                line string.
+     * @return The offset of every line string.
+     */
+    private double[] computeOffsets(double[] lengths) {
+        Map<Endpoint, List<Integer>> linesByEnd = new HashMap<>();
+        for (int line = 0; line < rivers.size(); line++) {
+            int last = lineStarts.get(line + 1) - 1;
+            if (last >= lineStarts.get(line)) {
+                linesByEnd.computeIfAbsent(endpoint(line, last), key -> new ArrayList<>()).add(line);
+            }
+        }
+
+        // Depth-first over the upstream ways without recursion, long rivers have thousands of ways
+        double[] offsets = new double[rivers.size()];
+        byte[] states = new byte[rivers.size()];
+        Deque<Integer> stack = new ArrayDeque<>();
+        for (int first = 0; first < rivers.size(); first++) {
+            if (states[first] != UNVISITED) {
+                continue;
+            }
+            stack.push(first);
+            while (!stack.isEmpty()) {
+                int line = stack.peek();
+                List<Integer> upstream = lineStarts.get(line + 1) > lineStarts.get(line)
+                        ? linesByEnd.getOrDefault(endpoint(line, lineStarts.get(line)), List.of())
+                        : List.of();
+                if (states[line] == UNVISITED) {
+                    states[line] = VISITING;
+                    for (int previous : upstream) {
+                        if (states[previous] == UNVISITED) {
+                            stack.push(previous);
+                        }
+                    }
+                    continue;
+                }
+                stack.pop();
+                if (states[line] == VISITING) {
+                    for (int previous : upstream) {
+                        if (states[previous] == VISITED) {
+                            offsets[line] = Math.max(offsets[line],
+                                    offsets[previous] + lengths[lineStarts.get(previous + 1) - 1]);
+                        }
+                    }
+                    states[line] = VISITED;
+                }
+            }
+        }
+        return offsets;
+    }
+
+    /** Returns the given point of a line string with the name of its river. */
+    private Endpoint endpoint(int line, int point) {
+        return new Endpoint(rivers.get(line).getName(), coordinates.get(2 * point), coordinates.get(2 * point + 1));
+    }
+
+    /** Computes the envelope of every chunk from the packed coordinates. */
+    private double[] computeChunkEnvelopes() {
+        double[] envelopes = new double[4 * chunkStarts.limit()];
+        for (int chunk = 0; chunk < chunkStarts.limit(); chunk++) {
+            int start = chunkStarts.get(chunk);
+            int end = Math.min(start + CHUNK_SEGMENTS, lineStarts.get(chunkLines.get(chunk) + 1) - 1);
+            double minX = Double.POSITIVE_INFINITY;
+            double minY = Double.POSITIVE_INFINITY;
+            double maxX = Double.NEGATIVE_INFINITY;
+            double maxY = Double.NEGATIVE_INFINITY;
+            for (int point = start; point <= end; point++) {
+                minX = Math.min(minX, coordinates.get(2 * point));
+                minY = Math.min(minY, coordinates.get(2 * point + 1));
+                maxX = Math.max(maxX, coordinates.get(2 * point));
+                maxY = Math.max(maxY, coordinates.get(2 * point + 1));
+            }
+            envelopes[4 * chunk] = minX;
+            envelopes[4 * chunk + 1] = minY;
+            envelopes[4 * chunk + 2] = maxX;
+            envelopes[4 * chunk + 3] = maxY;
+        }
+        return envelopes;
+    }
+
+    /** Indexes the envelopes of the chunks. */
+    private STRtree buildTree() {
+        STRtree chunkTree = new STRtree();
+        for (int chunk = 0; chunk < chunkStarts.limit(); chunk++) {
+            chunkTree.insert(new Envelope(chunkEnvelopes.get(4 * chunk), chunkEnvelopes.get(4 * chunk + 2),
+                    chunkEnvelopes.get(4 * chunk + 1), chunkEnvelopes.get(4 * chunk + 3)), chunk);
+        }
+        // Build the tree up front, it is read concurrently and cannot be modified later
+        chunkTree.build();
+        return chunkTree;
+    }
+
+    /** A point where the ways of a river can meet. */
+    private record Endpoint(String name, double x, double y) {
+    }
+
+    /**
+     * The state of a closest rivers lookup: the closest segment of every river
+     * found so far, ordered by distance.
+     */
+    private static final class Search {
+        private final double x;
+        private final double y;
+        private final double thresholdSquared;
+        private final String[] names;
+        private final double[] distancesSquared;
+        private final int[] lines;
+        private final int[] points;
+        private int size;
+
+        private Search(double x, double y, double thresholdSquared, int count) {
+            this.x = x;
+            this.y = y;
+            this.thresholdSquared = thresholdSquared;
+            this.names = new String[count];
+            this.distancesSquared = new double[count];
+            this.lines = new int[count];
+            this.points = new int[count];
+        }
+
+        /**
+         * Decides whether a squared distance can be among the closest rivers, the
+         * threshold itself is accepted until enough rivers are found.
+         */
+        private boolean accepts(double distanceSquared) {
+            return size < names.length ? distanceSquared <= thresholdSquared
+                    : distanceSquared < distancesSquared[size - 1];
+        }
+
+        /** Records an accepted segment unless its river already has a closer one. */
+        private void offer(double distanceSquared, int line, int point, String name) {
+            int index = 0;
+            while (index < size && !names[index].equals(name)) {
+                index++;
+            }
+            if (index < size) {
+                if (distanceSquared >= distancesSquared[index]) {
+                    return;
+                }
+            } else if (size == names.length) {
+                // The farthest river is pushed out
+                index = size - 1;
+            } else {
+                index = size++;
+            }
+
+            // Move the farther rivers back and insert the segment in its place
+            while (index > 0 && distancesSquared[index - 1] > distanceSquared) {
+                names[index] = names[index - 1];
+                distancesSquared[index] = distancesSquared[index - 1];
+                lines[index] = lines[index - 1];
+                points[index] = points[index - 1];
+                index--;
+            }
+            names[index] = name;
+            distancesSquared[index] = distanceSquared;
+            lines[index] = line;
+            points[index] = point;
+        }
+    }
+}
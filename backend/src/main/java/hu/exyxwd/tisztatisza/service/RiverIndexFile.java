@@ -0,0 +1,263 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.locationtech.jts.geom.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes the precompiled binary river index. The file holds the
+ * rivers already projected to Web Mercator, so loading it needs neither JSON
+ * parsing nor reprojection. It is memory-mapped and the line strings read
+ * their coordinates straight from the mapping, as does the segment-level
+ * distance kernel of the river index together with the stored chunks.
+ *
+ * Layout, little-endian, every section aligned to 8 bytes:
+ * <ul>
+ * <li>header: magic, version, name count, line count, chunk count, padding
+ * (ints), point count and the modification time of the source geojson file
+ * (longs)</li>
+ * <li>interned river names: length prefixed UTF-8 strings</li>
+ * <li>lines: name index per line, then first point index per line followed by
+ * the total point count (ints)</li>
+ * <li>chunks: line index per chunk, then first point index per chunk
+ * (ints)</li>
+ * <li>chunk envelopes: min x, min y, max x, max y per chunk (doubles)</li>
+ * <li>coordinates: x, y per point (doubles)</li>
+ * <li>measures: chainage in ground meters per point (doubles)</li>
+ * </ul>
+ */
+public final class RiverIndexFile {
+    private static final int MAGIC = 0x54545249; // "TTRI"
+    private static final int VERSION = 4;
+    private static final int HEADER_SIZE = 40;
+
+    private RiverIndexFile() {
+    }
+
+    /**
+     * Compiles the geojson river file into a binary river index.
+     *
+     * @param args The path of the geojson file and the path of the binary file.
+     * @throws IOException If either file cannot be accessed.
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2) {
+            System.out.println("Usage: RiverIndexFile <osm_rivers.geojson> <osm_rivers.bin>");
+            return;
+        }
+        Path source = Path.of(args[0]);
+        RiverService riverService = new RiverService();
+        riverService.projectionService = new ProjectionService();
+        RiverIndex index = riverService.parseRivers(Files.readAllBytes(source));
+        write(index, Files.getLastModifiedTime(source).toMillis(), Path.of(args[1]));
+        System.out.println("Compiled " + index.getRivers().size() + " river line strings into " + args[1]);
+    }
+
+    /**
+     * Writes the given river index into a binary file. The file is written next
+     * to the target and moved in place, so readers never see a partial file.
+     *
+     * @param index          The river index to write.
+     * @param sourceModified The modification time of the source geojson file.
+     * @param file           The path of the binary file.
+     * @throws IOException If the file cannot be written.
+     */
+    public static void write(RiverIndex index, long sourceModified, Path file) throws IOException {
+        List<RiverIndex.River> rivers = index.getRivers();
+        Map<String, Integer> nameIndexes = new LinkedHashMap<>();
+        long pointCount = 0;
+        for (RiverIndex.River river : rivers) {
+            nameIndexes.putIfAbsent(river.getName(), nameIndexes.size());
+            pointCount += river.getGeometry().getNumPoints();
+        }
+        if (pointCount > Integer.MAX_VALUE / 2) {
+            throw new IOException("Too many river points for a binary river index: " + pointCount);
+        }
+
+        List<byte[]> names = new ArrayList<>();
+        int namesSize = 0;
+        for (String name : nameIndexes.keySet()) {
+            byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+            names.add(bytes);
+            namesSize += Integer.BYTES + bytes.length;
+        }
+        IntBuffer chunkLines = index.getChunkLines();
+        IntBuffer chunkStarts = index.getChunkStarts();
+        DoubleBuffer chunkEnvelopes = index.getChunkEnvelopes();
+        int chunkCount = chunkStarts.remaining();
+        long size = HEADER_SIZE + align(namesSize) + align((long) Integer.BYTES * (2 * rivers.size() + 1))
+                + align((long) Integer.BYTES * 2 * chunkCount) + (long) Double.BYTES * 4 * chunkCount
+                + (long) Double.BYTES * 3 * pointCount;
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException("The binary river index would be too large to map: " + size);
+        }
+
+        ByteBuffer buffer = ByteBuffer.allocate((int) size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC).putInt(VERSION).putInt(names.size()).putInt(rivers.size()).putInt(chunkCount).putInt(0);
+        buffer.putLong(pointCount).putLong(sourceModified);
+
+        for (byte[] name : names) {
+            buffer.putInt(name.length).put(name);
+        }
+        pad(buffer);
+        for (RiverIndex.River river : rivers) {
+            buffer.putInt(nameIndexes.get(river.getName()));
+        }
+        int firstPoint = 0;
+        for (RiverIndex.River river : rivers) {
+            buffer.putInt(firstPoint);
+            firstPoint += river.getGeometry().getNumPoints();
+        }
+        buffer.putInt(firstPoint);
+        pad(buffer);
+        for (int i = 0; i < chunkCount; i++) {
+            buffer.putInt(chunkLines.get(i));
+        }
+        for (int i = 0; i < chunkCount; i++) {
+            buffer.putInt(chunkStarts.get(i));
+        }
+        pad(buffer);
+        for (int i = 0; i < 4 * chunkCount; i++) {
+            buffer.putDouble(chunkEnvelopes.get(i));
+        }
+        DoubleBuffer coordinates = index.getCoordinates();
+        for (int i = 0; i < 2 * pointCount; i++) {
+            buffer.putDouble(coordinates.get(i));
+        }
+        DoubleBuffer measures = index.getMeasures();
+        for (int i = 0; i < pointCount; i++) {
+            buffer.putDouble(measures.get(i));
+        }
+        buffer.flip();
+
+        Path temporary = file.resolveSibling(file.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+        Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Returns the modification time of the source geojson file the binary file
+     * was compiled from, reading only the header.
+     *
+     * @param file The path of the binary file.
+     * @return The modification time of the source geojson file.
+     * @throws IOException If the file cannot be read or is not a binary river index.
+     */
+    public static long readSourceModified(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    break;
+                }
+            }
+            header.flip();
+            checkHeader(header, file);
+            return header.getLong(32);
+        }
+    }
+
+    /**
+     * Memory-maps a binary river index. Only one object per line string is
+     * allocated, the coordinates and the chunks stay in the mapping.
+     *
+     * @param file            The path of the binary file.
+     * @param geometryFactory The factory of the line strings.
+     * @return The river index of the file.
+     * @throws IOException If the file cannot be read or is not a binary river index.
+     */
+    public static RiverIndex read(Path file, GeometryFactory geometryFactory) throws IOException {
+        MappedByteBuffer mapping;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IOException("The binary river index is too large to map: " + file);
+            }
+            // The mapping stays valid after the channel is closed
+            mapping = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        ByteBuffer buffer = mapping.order(ByteOrder.LITTLE_ENDIAN);
+        checkHeader(buffer, file);
+        int nameCount = buffer.getInt(8);
+        int lineCount = buffer.getInt(12);
+        int chunkCount = buffer.getInt(16);
+        int pointCount = (int) buffer.getLong(24);
+
+        buffer.position(HEADER_SIZE);
+        String[] names = new String[nameCount];
+        for (int i = 0; i < nameCount; i++) {
+            byte[] bytes = new byte[buffer.getInt()];
+            buffer.get(bytes);
+            names[i] = new String(bytes, StandardCharsets.UTF_8);
+        }
+        buffer.position((int) align(buffer.position()));
+
+        long expectedSize = buffer.position() + align((long) Integer.BYTES * (2 * lineCount + 1))
+                + align((long) Integer.BYTES * 2 * chunkCount) + (long) Double.BYTES * 4 * chunkCount
+                + (long) Double.BYTES * 3 * pointCount;
+        if (buffer.limit() < expectedSize) {
+            throw new IOException("The binary river index is truncated: " + file);
+        }
+        IntBuffer lines = intSection(buffer, 2 * lineCount + 1);
+        buffer.position((int) align(buffer.position()));
+        IntBuffer chunkLines = intSection(buffer, chunkCount);
+        IntBuffer chunkStarts = intSection(buffer, chunkCount);
+        buffer.position((int) align(buffer.position()));
+        DoubleBuffer chunkEnvelopes = doubleSection(buffer, 4 * chunkCount);
+        DoubleBuffer coordinates = doubleSection(buffer, 2 * pointCount);
+        DoubleBuffer measures = doubleSection(buffer, pointCount);
+
+        List<RiverIndex.River> rivers = new ArrayList<>(lineCount);
+        for (int i = 0; i < lineCount; i++) {
+            int firstPoint = lines.get(lineCount + i);
+            int size = lines.get(lineCount + i + 1) - firstPoint;
+            LineString line = geometryFactory
+                    .createLineString(new MappedCoordinateSequence(coordinates, firstPoint, size));
+            rivers.add(new RiverIndex.River(line, names[lines.get(i)]));
+        }
+        IntBuffer lineStarts = lines.slice(lineCount, lineCount + 1);
+        return new RiverIndex(rivers, coordinates, lineStarts, measures, chunkLines, chunkStarts, chunkEnvelopes);
+    }
+
+    /** Slices the given number of ints from the current position and skips them. */
+    private static IntBuffer intSection(ByteBuffer buffer, int length) {
+        IntBuffer section = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer().limit(length).slice();
+        buffer.position(buffer.position() + Integer.BYTES * length);
+        return section;
+    }
+
+    /** Slices the given number of doubles from the current position and skips them. */
+    private static DoubleBuffer doubleSection(ByteBuffer buffer, int length) {
+        DoubleBuffer section = buffer.slice().order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer().limit(length).slice();
+        buffer.position(buffer.position() + Double.BYTES * length);
+        return section;
+    }
+
+    /** Checks the magic number and the version of the header. */
+    private static void checkHeader(ByteBuffer header, Path file) throws IOException {
+        if (header.limit() < HEADER_SIZE || header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+            throw new IOException("Not a binary river index of version " + VERSION + ": " + file);
+        }
+    }
+
+    /** Rounds the given position up to the next multiple of 8. */
+    private static long align(long position) {
+        return (position + 7) & ~7L;
+    }
+
+    /** Pads the buffer to the next multiple of 8. */
+    private static void pad(ByteBuffer buffer) {
+        while (buffer.position() % 8 != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+}
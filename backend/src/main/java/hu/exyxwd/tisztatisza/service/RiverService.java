@@ -5,92 +5,224 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.bedatadriven.jackson.datatype.jts.JtsModule;
 
 import org.locationtech.jts.geom.*;
-import org.geotools.referencing.CRS;
-import org.geotools.geometry.jts.JTS;
 import org.springframework.stereotype.Service;
 import org.springframework.core.io.ClassPathResource;
-import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.crs.CoordinateReferenceSystem;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.annotation.Autowired;
 
 import java.io.*;
 import java.util.*;
-import lombok.Getter;
+import java.nio.file.*;
+import java.math.BigDecimal;
+import java.util.stream.IntStream;
+import java.util.zip.CRC32C;
+import lombok.*;
 
-import hu.exyxwd.tisztatisza.model.Waste;
-import hu.exyxwd.tisztatisza.repository.WasteRepository;
+import hu.exyxwd.tisztatisza.model.*;
+import hu.exyxwd.tisztatisza.dto.WasteLocationDTO;
+import hu.exyxwd.tisztatisza.repository.*;
 
 /** This service is for calculating the closest rivers to wastes. */
 @Getter
 @Service
 public class RiverService {
+    private static final String RIVERS_FILE = "osm_rivers.geojson";
+
     public ObjectMapper mapper;
     public GeometryFactory geometryFactory;
-    public Map<Geometry, String> transformedRivers;
+    @Setter
+    private volatile RiverIndex riverIndex;
+    private long riversModified;
+    private long riversChecksum;
+    @Value("${rivers.index-file:}")
+    private String riverIndexFile;
+    @Value("${rivers.proximity-count:3}")
+    private int proximityCount = 3;
     @Autowired
     public WasteRepository wasteRepository;
+    @Autowired
+    public WasteBatchRepository wasteBatchRepository;
+    @Autowired
+    public ProjectionService projectionService;
+    @Autowired(required = false)
+    public PostgisRiverEngine postgisRiverEngine;
 
     public RiverService() {
         this.mapper = new ObjectMapper();
         this.mapper.registerModule(new JtsModule());
         this.geometryFactory = new GeometryFactory();
-        this.transformedRivers = new HashMap<>();
+        this.riverIndex = RiverIndex.EMPTY;
     }
 
-    /** Loads the rivers line strings from the geojson file. */
-    public void loadRivers() {
+    /**
+     * Loads the rivers into a new river index. The compiled binary river index is
+     * memory-mapped if it is configured and not older than the geojson file,
+     * otherwise the geojson file is parsed and compiled into the binary file for
+     * the next time. The files are only read again if their modification time
+     * changed, and the geojson index is only rebuilt if its checksum changed too.
+     * The new index replaces the old one at once, so lookups running meanwhile see
+     * either of them. The database river engine, if configured, is then loaded
+     * with the rivers of the new index.
+     */
+    public synchronized void loadRivers() {
         try {
+            ClassPathResource resource = new ClassPathResource(RIVERS_FILE);
+            long lastModified = resource.exists() ? resource.lastModified() : 0;
+            Path indexFile = riverIndexFile == null || riverIndexFile.isBlank() ? null : Path.of(riverIndexFile);
+
+            if (indexFile != null && isIndexFileCurrent(indexFile, lastModified)) {
+                long indexModified = Files.getLastModifiedTime(indexFile).toMillis();
+                if (riverIndex == RiverIndex.EMPTY || indexModified != riversModified) {
+                    riverIndex = RiverIndexFile.read(indexFile, geometryFactory);
+                    riversModified = indexModified;
+                }
+                return;
+            }
+            if (riverIndex != RiverIndex.EMPTY && lastModified == riversModified) {
+                return;
+            }
+
             // Load geojson file with river data
-            InputStream in = new ClassPathResource("osm_rivers.geojson").getInputStream();
-            String content = new String(in.readAllBytes());
-            ObjectNode node = mapper.readValue(content, ObjectNode.class);
-
-            // Define the source and target coordinate reference systems
-            CoordinateReferenceSystem sourceCRS = CRS.decode("EPSG:4326");
-            CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:3857");
-            MathTransform transform = CRS.findMathTransform(sourceCRS, targetCRS, true);
-
-            GeometryFactory geometryFactory = new GeometryFactory();
-            // Iterate through all rivers
-            for (JsonNode feature : node.get("features")) {
-                // Iterate through all coordinates of the river
-                for (JsonNode line : feature.get("geometry").get("coordinates")) {
-                    List<Coordinate> coordinates = new ArrayList<>();
-                    // Store the longitude and latitude coordinates of every point
-                    for (JsonNode coordinate : line) {
-                        Coordinate currentCoordinates = new Coordinate(coordinate.get(0).asDouble(),
-                                coordinate.get(1).asDouble());
-                        coordinates.add(currentCoordinates);
-                    }
-                    // Create a LineString from the coordinates
-                    LineString lineString = geometryFactory.createLineString(coordinates.toArray(new Coordinate[0]));
-                    // Transform the LineString
-                    LineString transformedLineString = (LineString) JTS.transform(lineString, transform);
-                    // Extract the name of the river from the name property
-                    String riverName = feature.get("properties").get("name").asText().split(",")[0].toUpperCase();
-                    this.transformedRivers.put(transformedLineString, riverName);
+            byte[] content;
+            try (InputStream in = resource.getInputStream()) {
+                content = in.readAllBytes();
+            }
+            CRC32C checksum = new CRC32C();
+            checksum.update(content);
+            riversModified = lastModified;
+            if (riverIndex != RiverIndex.EMPTY && checksum.getValue() == riversChecksum) {
+                return;
+            }
+
+            riverIndex = parseRivers(content);
+            riversChecksum = checksum.getValue();
+            if (indexFile != null) {
+                try {
+                    RiverIndexFile.write(riverIndex, lastModified, indexFile);
+                } catch (IOException e) {
+                    System.out.println("Could not write the binary river index: " + e.getMessage());
                 }
             }
         } catch (Exception e) {
             e.printStackTrace();
+        } finally {
+            loadDatabaseRivers();
         }
     }
 
     /**
-     * Updates the rivers field of all wastes in the database where the river is not
-     * yet calculated.
+     * Decides whether the binary river index exists and is not older than the
+     * geojson file. A file of another format version is compiled again.
      */
-    public void updateNullRivers() {
-        List<Waste> wastes = wasteRepository.findAll();
-        for (Waste waste : wastes) {
-            // Calculate the nearby rivers for every waste where the river field is null
-            if (waste.getRiver() == null) {
-                // Get the closest river within 500 meter
-                String closestRiver = getClosestRiver(waste, 500);
-                waste.setRiver(closestRiver);
-                wasteRepository.save(waste);
+    private static boolean isIndexFileCurrent(Path indexFile, long sourceModified) {
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+        try {
+            return RiverIndexFile.readSourceModified(indexFile) >= sourceModified;
+        } catch (IOException e) {
+            System.out.println("Compiling the binary river index again: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Stores the rivers of the current index in the database river engine if it is configured. */
+    private void loadDatabaseRivers() {
+        if (postgisRiverEngine == null || riverIndex.isEmpty()) {
+            return;
+        }
+        try {
+            postgisRiverEngine.load(riverIndex);
+        } catch (Exception e) {
+            System.out.println("Could not load the rivers into PostGIS, using the in-memory index: "
+                    + e.getMessage());
+        }
+    }
+
+    /**
+     * Returns the engine finding the closest rivers: the database engine if it is
+     * configured and loaded, the in-memory river index otherwise.
+     *
+     * @return The river engine to use.
+     */
+    public RiverEngine getRiverEngine() {
+        PostgisRiverEngine databaseEngine = postgisRiverEngine;
+        return databaseEngine != null && databaseEngine.isLoaded() ? databaseEngine : riverIndex;
+    }
+
+    /** @return True if the closest rivers are found by the database river engine. */
+    public boolean isDatabaseEngine() {
+        return getRiverEngine() instanceof PostgisRiverEngine;
+    }
+
+    /**
+     * Parses the rivers line strings of a geojson file into a river index.
+     *
+     * @param content The content of the geojson file.
+     * @return The index of the rivers in Web Mercator meters.
+     * @throws IOException If the content is not valid JSON.
+     */
+    public RiverIndex parseRivers(byte[] content) throws IOException {
+        ObjectNode node = mapper.readValue(content, ObjectNode.class);
+        List<RiverIndex.River> rivers = new ArrayList<>();
+
+        // Iterate through all rivers
+        for (JsonNode feature : node.get("features")) {
+            // Extract the name of the river from the name property
+            String riverName = feature.get("properties").get("name").asText().split(",")[0].toUpperCase();
+            // Iterate through all coordinates of the river
+            for (JsonNode line : feature.get("geometry").get("coordinates")) {
+                Coordinate[] coordinates = new Coordinate[line.size()];
+                // Store the longitude and latitude coordinates of every point
+                for (int i = 0; i < line.size(); i++) {
+                    JsonNode coordinate = line.get(i);
+                    coordinates[i] = new Coordinate(coordinate.get(0).asDouble(), coordinate.get(1).asDouble());
+                }
+                // Create the LineString in the target coordinate reference system
+                rivers.add(new RiverIndex.River(projectionService.toWebMercator(coordinates, geometryFactory),
+                        riverName));
             }
         }
+        return new RiverIndex(rivers);
+    }
+
+    /** @return True if the rivers are loaded. */
+    public boolean hasRivers() {
+        return !riverIndex.isEmpty();
+    }
+
+    /**
+     * Updates the rivers field and the closest rivers of all wastes in the
+     * database where they are not yet calculated. The database river engine
+     * updates them in one statement. Otherwise only the coordinates of these
+     * wastes are loaded, the closest rivers are calculated in parallel and written
+     * back in batches.
+     */
+    public void updateNullRivers() {
+        if (!hasRivers()) {
+            System.out.println("The rivers are not loaded, the rivers of the wastes are not updated.");
+            return;
+        }
+        if (getRiverEngine() instanceof PostgisRiverEngine databaseEngine) {
+            // Get the closest rivers within 500 meter
+            databaseEngine.updateNullRivers(500, proximityCount);
+            return;
+        }
+
+        List<WasteLocationDTO> wastes = wasteRepository.findAllWithoutRiver();
+        long[] ids = new long[wastes.size()];
+        String[] rivers = new String[wastes.size()];
+        String[] proximities = new String[wastes.size()];
+        // The river index is read-only, so the wastes can share it between the threads
+        IntStream.range(0, wastes.size()).parallel().forEach(i -> {
+            WasteLocationDTO waste = wastes.get(i);
+            ids[i] = waste.getId();
+            // Get the closest rivers within 500 meter
+            List<RiverProximity> closestRivers = getClosestRivers(waste.getLatitude(), waste.getLongitude(), 500);
+            rivers[i] = getRiver(closestRivers);
+            proximities[i] = closestRivers == null ? null : RiverProximity.format(closestRivers);
+        });
+        wasteBatchRepository.updateRivers(ids, rivers, proximities);
     }
 
     /**
@@ -102,43 +234,95 @@ public class RiverService {
      * @return The name of the closest river.
      */
     public String getClosestRiver(Waste waste, double thresholdInMeters) {
+        return getClosestRiver(waste.getLatitude(), waste.getLongitude(), thresholdInMeters);
+    }
+
+    /**
+     * Sets the closest river and the closest rivers with their distances and
+     * chainages of the given waste, found in one pass over the river index.
+     *
+     * @param waste             The waste to calculate the closest rivers for.
+     * @param thresholdInMeters The threshold in meters.
+     */
+    public void assignClosestRivers(Waste waste, double thresholdInMeters) {
+        List<RiverProximity> closestRivers = getClosestRivers(waste.getLatitude(), waste.getLongitude(),
+                thresholdInMeters);
+        waste.setRiver(getRiver(closestRivers));
+        waste.setRiverProximities(closestRivers == null ? null : RiverProximity.format(closestRivers));
+    }
+
+    /**
+     * Returns the closest rivers to the given coordinates within the given
+     * threshold in meters, at most the configured number of them.
+     *
+     * @param wasteLatitude     The latitude of the waste.
+     * @param wasteLongitude    The longitude of the waste.
+     * @param thresholdInMeters The threshold in meters.
+     * @return The closest rivers ordered by distance, or null if the coordinates
+     *         are invalid.
+     */
+    public List<RiverProximity> getClosestRivers(BigDecimal wasteLatitude, BigDecimal wasteLongitude,
+            double thresholdInMeters) {
         try {
-            // Ensure the coordinates are within the valid range for the projection
-            double longitude = waste.getLongitude().doubleValue();
-            double latitude = waste.getLatitude().doubleValue();
-            if (longitude < -180 || longitude > 180 || latitude < -90 || latitude > 90) {
-                System.out.println(latitude + " Illegal coordinates " + longitude);
-                throw new IllegalArgumentException(
-                        "Invalid coordinates: longitude " + longitude + ", latitude " + latitude);
-            }
+            Coordinate wasteLocation = toWebMercator(wasteLatitude, wasteLongitude);
+            return getRiverEngine().findClosestRivers(wasteLocation.x, wasteLocation.y, thresholdInMeters,
+                    proximityCount);
+        } catch (Exception e) {
+            System.out.println("Exception in getClosestRivers: " + e.getMessage());
+            e.printStackTrace();
+            return null;
+        }
+    }
 
-            // Define the source and target coordinate reference systems
-            CoordinateReferenceSystem sourceCRS = CRS.decode("EPSG:4326");
-            CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:3857");
-            MathTransform transform = CRS.findMathTransform(sourceCRS, targetCRS, true);
-
-            // Transform the waste coordinates to the target coordinate reference system
-            Coordinate wasteCoordinates = new Coordinate(longitude, latitude);
-            Point wasteLocation = (Point) JTS.transform(geometryFactory.createPoint(wasteCoordinates), transform);
-
-            // Iterate through all rivers and find the closest one that is also within the
-            // threshold
-            String closestRiver = "";
-            double closestDistance = Double.MAX_VALUE;
-            for (Map.Entry<Geometry, String> entry : this.transformedRivers.entrySet()) {
-                // Calculate the distance between the waste and the river, check if it is within
-                // the threshold
-                double distance = wasteLocation.distance(entry.getKey());
-                if (distance <= thresholdInMeters && distance < closestDistance) {
-                    closestDistance = distance;
-                    closestRiver = entry.getValue();
-                }
-            }
-            return closestRiver;
+    /**
+     * Returns the name of the closest river to the given coordinates within the
+     * given threshold in meters.
+     *
+     * @param wasteLatitude     The latitude of the waste.
+     * @param wasteLongitude    The longitude of the waste.
+     * @param thresholdInMeters The threshold in meters.
+     * @return The name of the closest river.
+     */
+    public String getClosestRiver(BigDecimal wasteLatitude, BigDecimal wasteLongitude, double thresholdInMeters) {
+        try {
+            Coordinate wasteLocation = toWebMercator(wasteLatitude, wasteLongitude);
+
+            // Find the closest river that is also within the threshold
+            return getRiver(getRiverEngine().findClosestRivers(wasteLocation.x, wasteLocation.y, thresholdInMeters,
+                    1));
         } catch (Exception e) {
             System.out.println("Exception in getClosestRiver: " + e.getMessage());
             e.printStackTrace();
             return null;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * Transforms the coordinates of a waste to the coordinate reference system of
+     * the rivers.
+     *
+     * @param wasteLatitude  The latitude of the waste.
+     * @param wasteLongitude The longitude of the waste.
+     * @return The location of the waste in Web Mercator meters.
+     * @throws IllegalArgumentException If the coordinates are out of range.
+     */
+    private Coordinate toWebMercator(BigDecimal wasteLatitude, BigDecimal wasteLongitude) {
+        // Ensure the coordinates are within the valid range for the projection
+        double longitude = wasteLongitude.doubleValue();
+        double latitude = wasteLatitude.doubleValue();
+        if (longitude < -180 || longitude > 180 || latitude < -90 || latitude > 90) {
+            System.out.println(latitude + " Illegal coordinates " + longitude);
+            throw new IllegalArgumentException(
+                    "Invalid coordinates: longitude " + longitude + ", latitude " + latitude);
+        }
+        return projectionService.toWebMercator(longitude, latitude);
+    }
+
+    /** Returns the name of the closest river, empty if none, null if unknown. */
+    private static String getRiver(List<RiverProximity> closestRivers) {
+        if (closestRivers == null) {
+            return null;
+        }
+        return closestRivers.isEmpty() ? "" : closestRivers.get(0).getRiver();
+    }
+}
@@ -0,0 +1,172 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.locationtech.jts.geom.*;
+import org.locationtech.jts.simplify.DouglasPeuckerSimplifier;
+
+import org.springframework.stereotype.Service;
+import org.springframework.beans.factory.annotation.Value;
+
+import java.util.*;
+import lombok.*;
+
+import hu.exyxwd.tisztatisza.dto.MapDataDTO;
+
+/**
+ * This service renders the wastes of the map snapshot, and optionally the river
+ * lines of the river index, into Mapbox Vector Tiles on demand. Rendered tiles
+ * are kept in a least recently used cache bounded by the total size of the
+ * tiles. The cache is keyed by the dataset version of the tile, so a rebuilt
+ * snapshot or reloaded rivers are served from new entries and the stale ones
+ * age out.
+ */
+@Service
+public class TileService {
+    /** The highest zoom level of the tiles. */
+    public static final int MAX_ZOOM = 22;
+    /** The name of the layer of the wastes. */
+    public static final String WASTES_LAYER = "wastes";
+    /** The name of the layer of the rivers. */
+    public static final String RIVERS_LAYER = "rivers";
+    /** The features within this many tile units around a tile are drawn on it too. */
+    private static final int BUFFER = 64;
+    /**
+     * A tile has 4096 units, 16 times the 256 pixels of a map grid tile, so the
+     * wastes are merged per tile unit by the grid four zoom levels deeper.
+     */
+    private static final int UNIT_ZOOM_OFFSET = 4;
+
+    private final MapSnapshotService mapSnapshotService;
+    private final RiverService riverService;
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+    private final long cacheSize;
+    /** The rendered tiles, from the least to the most recently used. */
+    private final LinkedHashMap<TileKey, byte[]> cache = new LinkedHashMap<>(64, 0.75f, true);
+    private long cachedBytes;
+    private RiverIndex renderedRivers;
+    private int riversVersion;
+
+    /** A rendered tile with the dataset version it was rendered from. */
+    @Getter
+    @AllArgsConstructor
+    public static final class Tile {
+        private final byte[] data;
+        private final String version;
+    }
+
+    private record TileKey(String version, int z, int x, int y) {
+    }
+
+    public TileService(MapSnapshotService mapSnapshotService, RiverService riverService,
+            @Value("${tiles.cache-size:67108864}") long cacheSize) {
+        this.mapSnapshotService = mapSnapshotService;
+        this.riverService = riverService;
+        this.cacheSize = cacheSize;
+    }
+
+    /**
+     * Returns a tile from the cache, rendering it if it is not cached.
+     *
+     * @param z      The zoom level of the tile.
+     * @param x      The column of the tile, from the west.
+     * @param y      The row of the tile, from the north.
+     * @param rivers Whether to draw the rivers as well.
+     * @return The tile and its dataset version.
+     */
+    public Tile getTile(int z, int x, int y, boolean rivers) {
+        MapSnapshotService.Snapshot snapshot = mapSnapshotService.getSnapshot();
+        RiverIndex riverIndex = rivers ? riverService.getRiverIndex() : null;
+        String version = snapshot.getVersion() + (rivers ? "-rivers" + getRiversVersion(riverIndex) : "");
+        TileKey key = new TileKey(version, z, x, y);
+
+        synchronized (cache) {
+            byte[] cached = cache.get(key);
+            if (cached != null) {
+                return new Tile(cached, version);
+            }
+        }
+        byte[] data = render(snapshot.getGrid(), riverIndex, z, x, y);
+        synchronized (cache) {
+            if (cache.put(key, data) == null) {
+                cachedBytes += data.length;
+            }
+            Iterator<byte[]> eldest = cache.values().iterator();
+            while (cachedBytes > cacheSize && eldest.hasNext()) {
+                cachedBytes -= eldest.next().length;
+                eldest.remove();
+            }
+        }
+        return new Tile(data, version);
+    }
+
+    /** Numbers the river indexes in the order they are first rendered. */
+    private synchronized int getRiversVersion(RiverIndex riverIndex) {
+        if (riverIndex != renderedRivers) {
+            renderedRivers = riverIndex;
+            riversVersion++;
+        }
+        return riversVersion;
+    }
+
+    /** Encodes the wastes and the rivers, if any, inside the tile and its buffer. */
+    private byte[] render(MapGrid grid, RiverIndex riverIndex, int z, int x, int y) {
+        double tileSize = 2 * ProjectionService.HALF_WORLD / (1L << z);
+        double minX = -ProjectionService.HALF_WORLD + x * tileSize;
+        double maxY = ProjectionService.HALF_WORLD - y * tileSize;
+        double buffer = tileSize * BUFFER / VectorTileEncoder.EXTENT;
+        Envelope envelope = new Envelope(minX - buffer, minX + tileSize + buffer, maxY - tileSize - buffer,
+                maxY + buffer);
+        VectorTileEncoder encoder = new VectorTileEncoder();
+
+        double minLongitude = Math.max(-180, ProjectionService.toLongitude(envelope.getMinX()));
+        double maxLongitude = Math.min(180, ProjectionService.toLongitude(envelope.getMaxX()));
+        double minLatitude = toLatitude(envelope.getMinY());
+        double maxLatitude = toLatitude(envelope.getMaxY());
+        // Wastes on the same tile unit would be drawn on top of each other, only the first of them is kept
+        int unitZoom = Math.min(z + UNIT_ZOOM_OFFSET, MAX_ZOOM);
+        for (MapDataDTO waste : grid.query(minLongitude, minLatitude, maxLongitude, maxLatitude, unitZoom)) {
+            double wasteX = ProjectionService.projectX(waste.getLongitude().doubleValue());
+            double wasteY = ProjectionService.projectY(waste.getLatitude().doubleValue());
+            Map<String, Object> attributes = new LinkedHashMap<>();
+            attributes.put("size", waste.getSize() == null ? null : waste.getSize().name());
+            attributes.put("status", waste.getStatus() == null ? null : waste.getStatus().name());
+            attributes.put("country", waste.getCountry() == null ? null : waste.getCountry().name());
+            attributes.put("types", waste.getTypes() == null ? null
+                    : String.join(",", waste.getTypes().stream().map(Enum::name).sorted().toList()));
+            attributes.put("river", waste.getRiver());
+            attributes.put("hidden", waste.getHidden());
+            encoder.addPoint(WASTES_LAYER, waste.getId(), toTileUnits(wasteX - minX, tileSize),
+                    toTileUnits(maxY - wasteY, tileSize), attributes);
+        }
+
+        if (riverIndex != null) {
+            Geometry clip = geometryFactory.toGeometry(envelope);
+            double tolerance = tileSize / VectorTileEncoder.EXTENT;
+            for (RiverIndex.River river : riverIndex.findRivers(envelope)) {
+                Geometry clipped = DouglasPeuckerSimplifier.simplify(river.getGeometry().intersection(clip), tolerance);
+                List<int[]> lines = new ArrayList<>();
+                for (int i = 0; i < clipped.getNumGeometries(); i++) {
+                    if (clipped.getGeometryN(i) instanceof LineString line) {
+                        int[] points = new int[2 * line.getNumPoints()];
+                        for (int j = 0; j < line.getNumPoints(); j++) {
+                            points[2 * j] = toTileUnits(line.getCoordinateN(j).x - minX, tileSize);
+                            points[2 * j + 1] = toTileUnits(maxY - line.getCoordinateN(j).y, tileSize);
+                        }
+                        lines.add(points);
+                    }
+                }
+                encoder.addLines(RIVERS_LAYER, null, lines, Collections.singletonMap("name", river.getName()));
+            }
+        }
+        return encoder.encode();
+    }
+
+    private static int toTileUnits(double meters, double tileSize) {
+        return (int) Math.round(meters / tileSize * VectorTileEncoder.EXTENT);
+    }
+
+    /** Returns the latitude of the given Web Mercator y, at most the latitude of the world edges. */
+    private static double toLatitude(double y) {
+        return ProjectionService.toLatitude(Math.max(-ProjectionService.HALF_WORLD,
+                Math.min(ProjectionService.HALF_WORLD, y)));
+    }
+}
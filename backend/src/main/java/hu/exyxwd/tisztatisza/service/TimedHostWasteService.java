@@ -4,7 +4,6 @@ import org.springframework.stereotype.Service;
 import org.springframework.scheduling.annotation.Scheduled;
 
 import lombok.AllArgsConstructor;
-import jakarta.transaction.Transactional;
 
 /** This service triggers the scheduled tasks of the application. */
 @Service
@@ -12,22 +11,28 @@ import jakarta.transaction.Transactional;
 public class TimedHostWasteService {
     private final TrashOutService trashOutService;
     private final RiverService riverService;
+    private final MapSnapshotService mapSnapshotService;
 
     /**
      * Triggers the updating of the wastes in the database and the river calculations.
+     * The steps commit their work in small chunks instead of one long transaction.
+     * The rivers are loaded first, so the ingestion can assign them to the changed
+     * wastes right away. The map snapshot is rebuilt last, with the new rivers.
      */
     @Scheduled(fixedRate = 4 * 60 * 60 * 1000) // Run every 4 hours
-    @Transactional
     public void processWastesAndRivers() {
-        System.out.println("Processing wastes...");
-        trashOutService.updateDatabase();
-
         System.out.println("Loading rivers...");
         riverService.loadRivers();
 
+        System.out.println("Processing wastes...");
+        trashOutService.updateDatabase();
+
         System.out.println("Updating rivers...");
         riverService.updateNullRivers();
 
+        System.out.println("Rebuilding the map snapshot...");
+        mapSnapshotService.rebuild();
+
         System.out.println("All scheduled tasks finished.");
     }
 }
@@ -1,25 +1,30 @@
 package hu.exyxwd.tisztatisza.service;
 
+import com.fasterxml.jackson.core.*;
 import com.fasterxml.jackson.databind.*;
 import com.fasterxml.jackson.databind.node.*;
-import com.fasterxml.jackson.core.JsonProcessingException;
 
 import org.json.simple.JSONObject;
 import org.springframework.http.*;
 import org.springframework.web.client.*;
 import org.springframework.stereotype.Service;
 import org.springframework.core.io.ClassPathResource;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.transaction.annotation.Transactional;
 
 import java.io.*;
+import java.nio.file.*;
 import java.time.*;
 import java.util.*;
 import java.math.BigDecimal;
-import java.util.function.Function;
-import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.function.Consumer;
 
 import hu.exyxwd.tisztatisza.model.*;
+import hu.exyxwd.tisztatisza.dto.PipelineStageDTO;
 import hu.exyxwd.tisztatisza.repository.*;
 
 /**
@@ -31,7 +36,24 @@ import hu.exyxwd.tisztatisza.repository.*;
 public class TrashOutService {
     private static final String GOOGLE_PASSWORD_URL = "https://www.googleapis.com/identitytoolkit/v3/relyingparty/verifyPassword?key=";
     private static final String TRASH_OUT_URL = "https://api.trashout.ngo/v1/trash/?attributesNeeded=id,gpsFull,types,size,note,"
-            + "status,images,updateTime,created,spam&limit=999999&geoAreaContinent=Europe";
+            + "status,images,updateTime,created,spam&limit=999999&geoAreaCountry=";
+    private static final String TRASH_OUT_CHECKPOINT = "trashout";
+    // A replay has its own checkpoint so it never moves the high-water mark of the live synchronization
+    private static final String TRASH_OUT_REPLAY_CHECKPOINT = "trashout-replay";
+    // Incremental requests overlap the previous run so records updated at the same
+    // moment as the high-water mark are not missed, the diff drops the duplicates
+    private static final Duration INCREMENTAL_OVERLAP = Duration.ofHours(1);
+    private static final int MAX_FETCH_ATTEMPTS = 5;
+    // A Retry-After of a rate limited request is honoured up to this long
+    private static final Duration MAX_RETRY_AFTER = Duration.ofMinutes(5);
+    private static final String REPLAY_COUNTRY_PLACEHOLDER = "{country}";
+    private static final int REPLAY_BUFFER_SIZE = 1 << 16;
+
+    // Cached enum values for the lookups of the parser, values() copies the array
+    private static final Waste.WasteCountry[] COUNTRIES = Waste.WasteCountry.values();
+    private static final Waste.WasteSize[] SIZES = Waste.WasteSize.values();
+    private static final Waste.WasteStatus[] STATUSES = Waste.WasteStatus.values();
+    private static final Waste.WasteType[] TYPES = Waste.WasteType.values();
 
     @Autowired
     private final WasteRepository wasteRepository;
@@ -39,15 +61,57 @@ public class TrashOutService {
     @Autowired
     private final UpdateLogRepository updateLogRepository;
 
+    @Autowired
+    private final SyncCheckpointRepository syncCheckpointRepository;
+
+    @Autowired
+    private final WasteBatchRepository wasteBatchRepository;
+
+    @Autowired
+    private final RiverService riverService;
+
+    @Value("${trashout.sync.incremental:true}")
+    private boolean incrementalSync;
+
+    @Value("${trashout.sync.full-interval:P1D}")
+    private Duration fullSyncInterval;
+
+    @Value("${trashout.countries:}")
+    private String[] countries;
+
+    @Value("${trashout.fetch.parallelism:3}")
+    private int fetchParallelism;
+
+    @Value("${trashout.fetch.backoff:PT2S}")
+    private Duration fetchBackoff;
+
+    @Value("${trashout.sync.chunk-size:1000}")
+    private int chunkSize;
+
+    @Value("${trashout.pipeline.queue-capacity:1000}")
+    private int pipelineQueueCapacity;
+
+    @Value("${trashout.replay.file:}")
+    private String replayFile;
+
+    private volatile Set<Waste.WasteCountry> targetCountries;
+    private volatile IngestionPipeline pipeline;
+
     private RestTemplate restTemplate;
+    private ObjectMapper mapper;
     private JSONObject config;
 
-    public TrashOutService(WasteRepository wasteRepository, UpdateLogRepository updateLogRepository) {
+    public TrashOutService(WasteRepository wasteRepository, UpdateLogRepository updateLogRepository,
+            SyncCheckpointRepository syncCheckpointRepository, WasteBatchRepository wasteBatchRepository,
+            RiverService riverService) {
         this.wasteRepository = wasteRepository;
         this.updateLogRepository = updateLogRepository;
+        this.syncCheckpointRepository = syncCheckpointRepository;
+        this.wasteBatchRepository = wasteBatchRepository;
+        this.riverService = riverService;
 
         this.restTemplate = new RestTemplate();
-        ObjectMapper mapper = new ObjectMapper();
+        this.mapper = new ObjectMapper();
         try {
             InputStream in = new ClassPathResource("config.json").getInputStream();
             String content = new String(in.readAllBytes());
@@ -66,7 +130,6 @@ public class TrashOutService {
      */
     public String getToken() {
         // Get data from config file
-        ObjectMapper mapper = new ObjectMapper();
         ObjectNode requestBody = mapper.createObjectNode();
         requestBody.put("email", (String) config.get("Login:Email"));
         requestBody.put("password", (String) config.get("Login:Password"));
@@ -103,128 +166,632 @@ public class TrashOutService {
     }
 
     /**
-     * Gets the waste data from the TrashOut API using a authentication token.
+     * Gets the waste data of the given countries from the given source and saves
+     * the new or changed wastes through the ingestion pipeline. Downloading,
+     * parsing, diffing, river assignment and writing run concurrently, connected
+     * by bounded queues.
      *
-     * @param token The authentication token for the TrashOut API.
-     * @return The waste data from the TrashOut API on success, otherwise null.
+     * @param partitions     The countries to get the wastes of.
+     * @param fetcher        Reads the waste records of a country from TrashOut or
+     *                       from a recorded dump.
+     * @param checkpoint     The checkpoint of the previous synchronizations.
+     * @param existingWastes The fingerprints of the wastes already in the database.
+     * @param XYearsAgo      The date to compare the waste's update time to.
+     * @param updateCount    Counts the saved wastes.
+     * @return True if every country was fetched and saved successfully, otherwise
+     *         false.
      */
-    public String getWasteListFromTrashOut(String token) {
-        HttpHeaders headers = new HttpHeaders();
-        headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
-        headers.set("x-token", token);
+    public boolean ingestWastes(Set<Waste.WasteCountry> partitions, IngestionPipeline.Fetcher fetcher,
+            SyncCheckpoint checkpoint, WasteFingerprintIndex existingWastes, LocalDateTime XYearsAgo,
+            AtomicInteger updateCount) {
+        int processors = Runtime.getRuntime().availableProcessors();
+        IngestionPipeline ingestionPipeline = new IngestionPipeline(pipelineQueueCapacity, fetchParallelism,
+                processors, processors, chunkSize, this::parseWaste,
+                waste -> isChanged(waste, existingWastes, XYearsAgo), this::assignRiver, wastes -> {
+                    int saved = wasteBatchRepository.upsertAll(wastes);
+                    updateCount.addAndGet(saved);
+                    return saved;
+                }, country -> saveCompletedPartition(checkpoint, country));
+        this.pipeline = ingestionPipeline;
 
-        HttpEntity<String> entity = new HttpEntity<>("parameters", headers);
+        try {
+            return ingestionPipeline.run(partitions, fetcher);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * Gets the waste data from the TrashOut API using a authentication token. The
+     * response body is streamed record by record into the given sink, so the whole
+     * payload is never held in memory. Server errors, I/O errors and rate limited
+     * requests are retried with exponential backoff, a rate limited request waits
+     * at least as long as its Retry-After header asks. Other client errors are not
+     * retried, and neither is a response failing after some of its records were
+     * passed to the sink, since a retry would pass them again. The country is then
+     * fetched again by the next run from the checkpoint.
+     *
+     * @param token The authentication token for the TrashOut API.
+     * @param url   The TrashOut API URL to get the wastes from.
+     * @param sink  Receives the raw waste records.
+     * @return True if the wastes were fetched successfully, otherwise false.
+     */
+    public boolean getWasteListFromTrashOut(String token, String url, IngestionPipeline.RecordSink sink) {
+        RequestCallback requestCallback = request -> {
+            request.getHeaders().setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
+            request.getHeaders().set("x-token", token);
+        };
+
+        AtomicInteger emitted = new AtomicInteger();
+        IngestionPipeline.RecordSink countingSink = parser -> {
+            emitted.incrementAndGet();
+            sink.accept(parser);
+        };
 
         // Get waste list from TrashOut, retry if an error occurs
-        for (int attempt = 1; attempt <= 5; attempt++) {
+        Duration backoff = fetchBackoff;
+        for (int attempt = 1; attempt <= MAX_FETCH_ATTEMPTS; attempt++) {
+            Duration delay = backoff;
             try {
-                ResponseEntity<String> response = restTemplate.exchange(TRASH_OUT_URL, HttpMethod.GET, entity,
-                        String.class);
-                return response.getBody();
+                restTemplate.execute(url, HttpMethod.GET, requestCallback, response -> {
+                    readWasteRecords(response.getBody(), countingSink);
+                    return null;
+                });
+                return true;
             } catch (HttpClientErrorException.Unauthorized e) {
                 System.out.println(
                         "Error occurred while trying to get wastes from TrashOut. The token might not be correct: "
                                 + e.getStatusCode());
-                return null;
+                return false;
+            } catch (HttpClientErrorException.TooManyRequests e) {
+                delay = getRetryDelay(e.getResponseHeaders(), backoff);
+                System.out.println("TrashOut limited the requests to " + url + " (Attempt " + attempt
+                        + "), retrying in " + delay.toMillis() + " ms");
+            } catch (HttpClientErrorException e) {
+                System.out.println("Error occurred while trying to get wastes from " + url + ": " + e.getStatusCode());
+                return false;
             } catch (HttpServerErrorException e) {
-                System.out.println("Error occurred while trying to get wastes from TrashOut (Attempt " + attempt + "): "
-                        + e.getStatusCode());
+                System.out.println("Error occurred while trying to get wastes from " + url + " (Attempt " + attempt
+                        + "): " + e.getStatusCode());
+            } catch (ResourceAccessException e) {
+                if (Thread.currentThread().isInterrupted()) {
+                    return false;
+                }
+                System.out.println("Error occurred while trying to read wastes from " + url + " (Attempt " + attempt
+                        + "): " + e.getMessage());
+            }
+
+            if (emitted.get() > 0) {
+                System.out.println("Not retrying " + url + " after " + emitted.get()
+                        + " wastes were already received, the next run fetches the country again");
+                return false;
+            }
+            if (attempt < MAX_FETCH_ATTEMPTS) {
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                backoff = backoff.multipliedBy(2);
             }
         }
-        // If all attempts fail, return null
-        return null;
+        // If all attempts fail, return false
+        return false;
+    }
+
+    /**
+     * Returns how long to wait before retrying a rate limited request: the
+     * Retry-After header of the response in seconds or as an HTTP date, at most
+     * five minutes, but not shorter than the backoff of the attempt.
+     *
+     * @param headers The headers of the rate limited response, can be null.
+     * @param backoff The backoff of the attempt.
+     * @return The delay before the next attempt.
+     */
+    public Duration getRetryDelay(HttpHeaders headers, Duration backoff) {
+        String retryAfter = headers == null ? null : headers.getFirst(HttpHeaders.RETRY_AFTER);
+        if (retryAfter == null || retryAfter.isBlank()) {
+            return backoff;
+        }
+        Duration requested;
+        try {
+            requested = Duration.ofSeconds(Long.parseLong(retryAfter.trim()));
+        } catch (NumberFormatException e) {
+            try {
+                requested = Duration.between(ZonedDateTime.now(),
+                        ZonedDateTime.parse(retryAfter.trim(), DateTimeFormatter.RFC_1123_DATE_TIME));
+            } catch (DateTimeParseException invalid) {
+                return backoff;
+            }
+        }
+        if (requested.compareTo(MAX_RETRY_AFTER) > 0) {
+            requested = MAX_RETRY_AFTER;
+        }
+        return requested.compareTo(backoff) > 0 ? requested : backoff;
+    }
+
+    /**
+     * Returns the source of a replayed ingestion reading recorded TrashOut
+     * responses instead of the TrashOut API. If the path contains {country}, every
+     * country is read from its own dump with the lower case country name
+     * substituted. Otherwise the single dump holds every country and it is read
+     * once, by the first country.
+     *
+     * @param replayFile The path of the recorded dump.
+     * @param partitions The countries to get the wastes of.
+     * @return The source reading the recorded dumps.
+     */
+    public IngestionPipeline.Fetcher getReplayFetcher(String replayFile, Set<Waste.WasteCountry> partitions) {
+        if (replayFile.contains(REPLAY_COUNTRY_PLACEHOLDER)) {
+            return (country, sink) -> replayWasteList(
+                    Path.of(replayFile.replace(REPLAY_COUNTRY_PLACEHOLDER, country.name().toLowerCase())), sink);
+        }
+
+        Waste.WasteCountry first = partitions.isEmpty() ? null : partitions.iterator().next();
+        return (country, sink) -> country != first || replayWasteList(Path.of(replayFile), sink);
+    }
+
+    /**
+     * Reads the waste records of a recorded TrashOut response from disk. The dump
+     * is streamed through the same parser as a live response, gzip dumps are
+     * decompressed on the fly.
+     *
+     * @param file The recorded dump, a JSON array of wastes.
+     * @param sink Receives the raw waste records.
+     * @return True if the dump was read successfully, otherwise false.
+     */
+    public boolean replayWasteList(Path file, IngestionPipeline.RecordSink sink) {
+        try (InputStream in = openReplayFile(file)) {
+            readWasteRecords(in, sink);
+            return true;
+        } catch (IOException e) {
+            System.out.println("Error occurred while trying to replay wastes from " + file + ": " + e.getMessage());
+            return false;
+        }
+    }
+
+    /** Opens a recorded dump, gzip dumps are recognized by their extension. */
+    private static InputStream openReplayFile(Path file) throws IOException {
+        InputStream in = Files.newInputStream(file);
+        if (file.getFileName().toString().endsWith(".gz")) {
+            return new GZIPInputStream(in, REPLAY_BUFFER_SIZE);
+        }
+        return new BufferedInputStream(in, REPLAY_BUFFER_SIZE);
+    }
+
+    /**
+     * Reads a JSON array of waste records and passes the parser positioned at the
+     * start of every record to the given sink, which has to consume the record.
+     *
+     * @param wasteStream The stream of the JSON array from the TrashOut API.
+     * @param sink        Receives the records one at a time.
+     * @throws IOException If the stream cannot be read or is not a JSON array.
+     */
+    public void readWasteRecords(InputStream wasteStream, IngestionPipeline.RecordSink sink) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(wasteStream)) {
+            if (parser.nextToken() != JsonToken.START_ARRAY) {
+                throw new JsonParseException(parser, "Expected a JSON array of wastes from TrashOut");
+            }
+
+            while (parser.nextToken() == JsonToken.START_OBJECT) {
+                sink.accept(parser);
+            }
+        }
+    }
+
+    /**
+     * Reads a JSON array of wastes token by token and passes every successfully
+     * parsed waste to the given consumer. Only one waste record is materialized at
+     * a time.
+     *
+     * @param wasteStream The stream of the JSON array from the TrashOut API.
+     * @param consumer    Receives the parsed wastes one at a time.
+     * @throws IOException If the stream cannot be read or is not a JSON array.
+     */
+    public void readWastes(InputStream wasteStream, Consumer<Waste> consumer) throws IOException {
+        readWasteRecords(wasteStream, parser -> {
+            Waste waste = parseWaste(parser);
+            // Skip the waste if any of its data is missing or does not fit the requirements
+            // (e.g. not Hungary neighboring country, etc.)
+            if (waste != null) {
+                consumer.accept(waste);
+            }
+        });
     }
 
     /**
      * Parses the JSON object from the TrashOut API into a Waste object.
      *
      * @param wasteJSON The JSON object from the TrashOut API.
-     * @return The Waste object parsed from the JSON object.
+     * @return The Waste object parsed from the JSON object, or null if the waste
+     *         is incomplete or outside of the target countries.
      */
     public Waste parseWaste(ObjectNode wasteJSON) {
+        try (JsonParser parser = mapper.treeAsTokens(wasteJSON)) {
+            parser.nextToken();
+            return parseWaste(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Parses the JSON object the parser is positioned at into a Waste object
+     * without building a tree. Once a waste turns out to be rejected the rest of
+     * its fields are skipped on the token level.
+     *
+     * @param parser The parser positioned at the start of the waste object.
+     * @return The Waste object parsed from the JSON object, or null if the waste
+     *         is incomplete or outside of the target countries.
+     * @throws IOException If the waste object cannot be read.
+     */
+    public Waste parseWaste(JsonParser parser) throws IOException {
         Waste waste = new Waste();
+        boolean rejected = false;
 
-        // Set GPS coordinates and country
-        ObjectNode gps = (ObjectNode) wasteJSON.get("gps");
-        if (gps != null) {
-            waste.setLatitude(BigDecimal.valueOf(gps.get("lat").asDouble()));
-            waste.setLongitude(BigDecimal.valueOf(gps.get("long").asDouble()));
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            if (rejected) {
+                parser.skipChildren();
+                continue;
+            }
 
-            ObjectNode area = (ObjectNode) gps.get("area");
+            switch (field) {
+                case "id" -> waste.setId(parser.getValueAsLong());
+                // Set GPS coordinates and country
+                case "gps" -> rejected = !parseGps(parser, waste);
+                case "types" -> rejected = !parseTypes(parser, waste);
+                case "images" -> parseImages(parser, waste);
+                case "size" -> {
+                    waste.setSize(findByName(SIZES, parser.getValueAsString()));
+                    rejected = waste.getSize() == null;
+                }
+                case "status" -> {
+                    waste.setStatus(findByName(STATUSES, parser.getValueAsString()));
+                    rejected = waste.getStatus() == null;
+                }
+                case "created" -> waste.setCreateTime(parseTime(parser));
+                case "updateTime" -> waste.setUpdateTime(parseTime(parser));
+                case "note" -> waste.setNote(parseText(parser));
+                default -> parser.skipChildren();
+            }
+        }
+
+        if (rejected || waste.getId() == null || waste.getCountry() == null || waste.getSize() == null
+                || waste.getStatus() == null || waste.getCreateTime() == null || waste.getUpdateTime() == null) {
+            return null;
+        }
+        waste.setFingerprint(waste.computeFingerprint());
+        return waste;
+    }
 
-            if (area != null) {
-                String country = area.get("country").asText();
+    /**
+     * Parses the GPS object of a waste.
+     *
+     * @param parser The parser positioned at the start of the GPS object.
+     * @param waste  The waste to set the coordinates and the area of.
+     * @return True if the waste is in one of the target countries, otherwise false.
+     */
+    private boolean parseGps(JsonParser parser, Waste waste) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return false;
+        }
 
-                if (country != null) {
-                    waste.setCountry(Waste.WasteCountry.valueOf(country.toUpperCase()));
-                }
+        boolean accepted = false;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "lat" -> waste.setLatitude(BigDecimal.valueOf(parser.getValueAsDouble()));
+                case "long" -> waste.setLongitude(BigDecimal.valueOf(parser.getValueAsDouble()));
+                case "area" -> accepted = parseArea(parser, waste);
+                default -> parser.skipChildren();
             }
         }
+        return accepted;
+    }
 
-        // Set types
-        ArrayNode typesArray = (ArrayNode) wasteJSON.get("types");
-        Set<Waste.WasteType> types = new HashSet<>();
-        for (JsonNode type : typesArray) {
-            types.add(Waste.WasteType.valueOf(type.asText().toUpperCase()));
+    /**
+     * Parses the area object of a waste's GPS data.
+     *
+     * @param parser The parser positioned at the start of the area object.
+     * @param waste  The waste to set the country and locality of.
+     * @return True if the waste is in one of the target countries, otherwise false.
+     */
+    private boolean parseArea(JsonParser parser, Waste waste) throws IOException {
+        if (parser.currentToken() != JsonToken.START_OBJECT) {
+            parser.skipChildren();
+            return false;
+        }
+
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.currentName();
+            parser.nextToken();
+            switch (field) {
+                case "country" -> waste.setCountry(findByName(COUNTRIES, parser.getValueAsString()));
+                case "locality" -> waste.setLocality(parseText(parser));
+                case "subLocality" -> waste.setSublocality(parseText(parser));
+                default -> parser.skipChildren();
+            }
         }
+        return waste.getCountry() != null && getTargetCountries().contains(waste.getCountry());
+    }
+
+    /**
+     * Parses the types array of a waste.
+     *
+     * @param parser The parser positioned at the start of the types array.
+     * @param waste  The waste to set the types of.
+     * @return True if every type is known, otherwise false.
+     */
+    private boolean parseTypes(JsonParser parser, Waste waste) throws IOException {
+        Set<Waste.WasteType> types = new HashSet<>();
         waste.setTypes(types);
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return true;
+        }
 
-        // Set images
-        ArrayNode imagesArray = (ArrayNode) wasteJSON.get("images");
-        if (imagesArray.size() > 0) {
-            ObjectNode firstImageObject = (ObjectNode) imagesArray.get(0);
-            String image = firstImageObject.get("fullDownloadUrl").asText();
-            waste.setImageUrl(image);
+        boolean accepted = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            Waste.WasteType type = findByName(TYPES, parser.getValueAsString());
+            if (type == null) {
+                accepted = false;
+            } else {
+                types.add(type);
+            }
+            parser.skipChildren();
         }
+        return accepted;
+    }
 
-        // Set other fields
-        waste.setId(wasteJSON.get("id").asLong());
-        waste.setLocality(((wasteJSON.get("gps")).get("area")).get("locality").asText());
-        waste.setSublocality(((wasteJSON.get("gps")).get("area")).get("subLocality").asText());
-        waste.setSize(Waste.WasteSize.valueOf(wasteJSON.get("size").asText().toUpperCase()));
-        waste.setStatus(Waste.WasteStatus.valueOf(wasteJSON.get("status").asText().toUpperCase()));
-        waste.setCreateTime(OffsetDateTime.parse(wasteJSON.get("created").asText()).toLocalDateTime());
-        waste.setUpdateTime(OffsetDateTime.parse(wasteJSON.get("updateTime").asText()).toLocalDateTime());
-        waste.setNote(wasteJSON.get("note").asText());
+    /**
+     * Parses the images array of a waste, only the first image is kept.
+     *
+     * @param parser The parser positioned at the start of the images array.
+     * @param waste  The waste to set the image URL of.
+     */
+    private void parseImages(JsonParser parser, Waste waste) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return;
+        }
 
-        return waste;
+        boolean first = true;
+        while (parser.nextToken() != JsonToken.END_ARRAY) {
+            if (first && parser.currentToken() == JsonToken.START_OBJECT) {
+                while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = parser.currentName();
+                    parser.nextToken();
+                    if (field.equals("fullDownloadUrl")) {
+                        waste.setImageUrl(parseText(parser));
+                    } else {
+                        parser.skipChildren();
+                    }
+                }
+            } else {
+                parser.skipChildren();
+            }
+            first = false;
+        }
+    }
+
+    /** Returns the text of the current value, null values are kept as "null" like before. */
+    private static String parseText(JsonParser parser) throws IOException {
+        return parser.currentToken() == JsonToken.VALUE_NULL ? "null" : parser.getValueAsString();
+    }
+
+    /** Returns the time of the current value, or null if it is missing or invalid. */
+    private static LocalDateTime parseTime(JsonParser parser) throws IOException {
+        String text = parser.getValueAsString();
+        if (text == null) {
+            return null;
+        }
+        try {
+            return OffsetDateTime.parse(text).toLocalDateTime();
+        } catch (DateTimeParseException e) {
+            return null;
+        }
+    }
+
+    /** Returns the enum value with the given name ignoring case, or null if there is none. */
+    private static <E extends Enum<E>> E findByName(E[] values, String name) {
+        if (name == null) {
+            return null;
+        }
+        for (E value : values) {
+            if (value.name().equalsIgnoreCase(name)) {
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns the countries whose wastes are kept, configured by the
+     * trashout.countries property. Every supported country is kept by default.
+     *
+     * @return The target countries.
+     */
+    public Set<Waste.WasteCountry> getTargetCountries() {
+        Set<Waste.WasteCountry> targets = targetCountries;
+        if (targets != null) {
+            return targets;
+        }
+
+        targets = EnumSet.noneOf(Waste.WasteCountry.class);
+        if (countries == null || countries.length == 0) {
+            targets.addAll(Arrays.asList(COUNTRIES));
+        } else {
+            for (String name : countries) {
+                Waste.WasteCountry country = findByName(COUNTRIES, name.trim());
+                if (country == null) {
+                    System.out.println("Unknown country in the TrashOut configuration: " + name);
+                } else {
+                    targets.add(country);
+                }
+            }
+        }
+        targetCountries = targets;
+        return targets;
     }
 
     /**
      * Updates the database with the new waste data from the TrashOut API, also logs
-     * the update.
+     * the update. Every country and every chunk of wastes is committed on its own,
+     * and the saved countries are recorded in the checkpoint, so an interrupted
+     * run continues with the remaining countries the next time. A replay keeps
+     * its progress in a checkpoint of its own.
      */
-    @Transactional
     public void updateDatabase() {
-        // Get authentication token with the method given in the config file
-        String authToken;
-        if ((boolean) config.get("UseStoredToken")) {
-            authToken = config.get("AuthToken").toString();
-        } else {
-            authToken = getToken();
+        // A replayed update reads a recorded dump, so it needs no authentication token
+        boolean replay = replayFile != null && !replayFile.isBlank();
+        String authToken = null;
+        if (!replay) {
+            // Get authentication token with the method given in the config file
+            if ((boolean) config.get("UseStoredToken")) {
+                authToken = config.get("AuthToken").toString();
+            } else {
+                authToken = getToken();
+            }
+
+            if (authToken == null || authToken.isEmpty()) {
+                System.out.println("The database update failed because of invalid authentication token.");
+                return;
+            }
         }
 
-        if (authToken == null || authToken.isEmpty()) {
-            System.out.println("The database update failed because of invalid authentication token.");
-            return;
+        LocalDateTime SixYearsAgo = OffsetDateTime.now().minusYears(6).toLocalDateTime();
+
+        String checkpointName = replay ? TRASH_OUT_REPLAY_CHECKPOINT : TRASH_OUT_CHECKPOINT;
+        SyncCheckpoint checkpoint = syncCheckpointRepository.findById(checkpointName)
+                .orElseGet(() -> new SyncCheckpoint(checkpointName));
+        if (checkpoint.getRunStartedAt() != null) {
+            System.out.println("Resuming the update started at " + checkpoint.getRunStartedAt() + "...");
+        } else {
+            LocalDateTime syncStart = LocalDateTime.now();
+            checkpoint.setRunStartedAt(syncStart);
+            checkpoint.setRunFullSync(isFullSyncDue(checkpoint, syncStart));
+            checkpoint.setCompletedPartitions("");
+            syncCheckpointRepository.save(checkpoint);
+        }
+        boolean fullSync = Boolean.TRUE.equals(checkpoint.getRunFullSync());
+        if (replay) {
+            System.out.println("Replaying wastes from " + replayFile + "...");
+        } else {
+            System.out.println(fullSync ? "Fetching every waste from TrashOut..."
+                    : "Fetching wastes updated since " + checkpoint.getHighWaterMark() + " from TrashOut...");
         }
 
-        String wasteList = getWasteListFromTrashOut(authToken);
+        WasteFingerprintIndex existingWastes = new WasteFingerprintIndex(wasteRepository.findAllFingerprints());
 
-        if (wasteList == null) {
+        // Every country is remembered for a resumed run as soon as all of its wastes are saved
+        AtomicInteger updateCount = new AtomicInteger();
+        Set<Waste.WasteCountry> partitions = getPendingPartitions(checkpoint);
+        String token = authToken;
+        IngestionPipeline.Fetcher fetcher = replay ? getReplayFetcher(replayFile, partitions)
+                : (country, sink) -> getWasteListFromTrashOut(token, getTrashOutUrl(checkpoint, fullSync, country),
+                        sink);
+        boolean fetched = ingestWastes(partitions, fetcher, checkpoint, existingWastes, SixYearsAgo, updateCount);
+
+        if (!fetched) {
             System.out.println("The database update failed because of invalid data from TrashOut.");
             return;
         }
 
-        LocalDateTime SixYearsAgo = OffsetDateTime.now().minusYears(6).toLocalDateTime();
-
         Integer deleteCount = deleteOldWastes(SixYearsAgo);
 
-        List<Waste> wastesToSave = processWasteList(wasteList, SixYearsAgo);
+        saveUpdateLog(updateCount.get(), deleteCount);
+
+        saveCheckpoint(checkpoint);
+    }
+
+    /**
+     * Returns the target countries not yet saved by the unfinished
+     * synchronization.
+     *
+     * @param checkpoint The checkpoint of the unfinished synchronization.
+     * @return The countries still to fetch.
+     */
+    public Set<Waste.WasteCountry> getPendingPartitions(SyncCheckpoint checkpoint) {
+        Set<Waste.WasteCountry> partitions = EnumSet.copyOf(getTargetCountries());
+        if (checkpoint.getCompletedPartitions() != null && !checkpoint.getCompletedPartitions().isEmpty()) {
+            for (String completed : checkpoint.getCompletedPartitions().split(",")) {
+                partitions.remove(findByName(COUNTRIES, completed));
+            }
+        }
+        return partitions;
+    }
 
-        wasteRepository.saveAll(wastesToSave);
+    /**
+     * Records a saved country in the checkpoint of the unfinished synchronization.
+     *
+     * @param checkpoint The checkpoint of the unfinished synchronization.
+     * @param country    The saved country.
+     */
+    public void saveCompletedPartition(SyncCheckpoint checkpoint, Waste.WasteCountry country) {
+        String completed = checkpoint.getCompletedPartitions();
+        checkpoint.setCompletedPartitions(
+                completed == null || completed.isEmpty() ? country.name() : completed + "," + country.name());
+        syncCheckpointRepository.save(checkpoint);
+    }
 
-        saveUpdateLog(wastesToSave, deleteCount);
+    /**
+     * Decides whether the next synchronization has to fetch every waste from
+     * TrashOut instead of only the ones updated since the last run.
+     *
+     * @param checkpoint The checkpoint of the previous synchronizations.
+     * @param now        The start time of the current synchronization.
+     * @return True if a full synchronization is needed, otherwise false.
+     */
+    public boolean isFullSyncDue(SyncCheckpoint checkpoint, LocalDateTime now) {
+        if (!incrementalSync || checkpoint.getHighWaterMark() == null || checkpoint.getLastFullSync() == null) {
+            return true;
+        }
+        return !checkpoint.getLastFullSync().plus(fullSyncInterval).isAfter(now);
+    }
+
+    /**
+     * Builds the TrashOut API URL for the current synchronization.
+     *
+     * @param checkpoint The checkpoint of the previous synchronizations.
+     * @param fullSync   Whether every waste has to be fetched.
+     * @param country    The country to get the wastes of.
+     * @return The TrashOut API URL to get the wastes from.
+     */
+    public String getTrashOutUrl(SyncCheckpoint checkpoint, boolean fullSync, Waste.WasteCountry country) {
+        // TrashOut expects the country names capitalized (e.g. Hungary)
+        String url = TRASH_OUT_URL + country.name().charAt(0) + country.name().substring(1).toLowerCase();
+        if (fullSync) {
+            return url;
+        }
+        OffsetDateTime since = checkpoint.getHighWaterMark().minus(INCREMENTAL_OVERLAP).atOffset(ZoneOffset.UTC);
+        return url + "&timeBoundaryFrom=" + since.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    }
+
+    /**
+     * Saves the high-water mark of the stored wastes after a successful
+     * synchronization and marks the synchronization as finished.
+     *
+     * @param checkpoint The checkpoint of the finished synchronization.
+     */
+    public void saveCheckpoint(SyncCheckpoint checkpoint) {
+        LocalDateTime highWaterMark = wasteRepository.findMaxUpdateTime();
+        if (highWaterMark != null && (checkpoint.getHighWaterMark() == null
+                || highWaterMark.isAfter(checkpoint.getHighWaterMark()))) {
+            checkpoint.setHighWaterMark(highWaterMark);
+        }
+        if (Boolean.TRUE.equals(checkpoint.getRunFullSync())) {
+            checkpoint.setLastFullSync(checkpoint.getRunStartedAt());
+        }
+        checkpoint.setRunStartedAt(null);
+        checkpoint.setRunFullSync(null);
+        checkpoint.setCompletedPartitions(null);
+        syncCheckpointRepository.save(checkpoint);
     }
 
     /**
@@ -234,71 +801,84 @@ public class TrashOutService {
      * @return The number of deleted wastes.
      */
     public Integer deleteOldWastes(LocalDateTime XYearsAgo) {
-        List<Waste> oldWastes = wasteRepository.findAllOlderThan(XYearsAgo);
-        for (Waste waste : oldWastes) {
-            waste.getTypes().clear();
-            wasteRepository.save(waste);
-        }
-        wasteRepository.deleteAll(oldWastes);
-
-        return oldWastes.size();
+        return wasteBatchRepository.deleteOlderThan(XYearsAgo);
     }
 
     /**
-     * Processes the wastes from the TrashOut API and returns the list of wastes to
-     * save into database.
+     * Processes the wastes streamed from the TrashOut API and returns the list of
+     * wastes to save into database.
      *
-     * @param wasteList The JSON string of the waste list from the TrashOut API.
-     * @param XYearsAgo The date to compare the waste's update time to.
+     * @param wasteStream    The stream of the JSON waste list from the TrashOut API.
+     * @param existingWastes The fingerprints of the wastes already in the database.
+     * @param XYearsAgo      The date to compare the waste's update time to.
      * @return The list of wastes to save into the database.
+     * @throws IOException If the stream cannot be read or is not a JSON array.
      */
-    public List<Waste> processWasteList(String wasteList, LocalDateTime XYearsAgo) {
-        // Process the waste list
-        ObjectMapper mapper = new ObjectMapper();
-        ArrayNode wasteArray = null;
-        try {
-            wasteArray = (ArrayNode) mapper.readTree(wasteList);
-        } catch (JsonProcessingException e) {
-            e.printStackTrace();
-            return new ArrayList<>();
-        }
-
-        List<Waste> existingWastes = wasteRepository.findAll();
-        Map<Long, Waste> existingWastesMap = existingWastes.stream()
-                .collect(Collectors.toMap(Waste::getId, Function.identity()));
+    public List<Waste> processWasteList(InputStream wasteStream, WasteFingerprintIndex existingWastes,
+            LocalDateTime XYearsAgo) throws IOException {
         List<Waste> wastesToSave = new ArrayList<>();
 
-        // Compare the new wastes with the existing ones and save the new ones or the
-        // ones with new activity.
-        for (JsonNode o : wasteArray) {
-            try {
-                ObjectNode wasteJSON = (ObjectNode) o;
-                Waste newWaste = parseWaste(wasteJSON);
-                Waste existingWaste = existingWastesMap.get(newWaste.getId());
-                if (existingWaste != null) {
-                    newWaste.setHidden(existingWaste.isHidden());
-                }
-                if (newWaste.getUpdateTime().isAfter(XYearsAgo)
-                        && (existingWaste == null || !newWaste.equals(existingWaste))) {
-                    wastesToSave.add(newWaste);
-                }
-            } catch (IllegalArgumentException e) {
-                // Skip the waste if any of its data is missing or does not fit the requirements
-                // (e.g. not Hungary neighboring country, etc.)
-                continue;
+        // Compare the fingerprints of the new wastes with the existing ones and save
+        // the new ones or the ones with new activity.
+        readWastes(wasteStream, newWaste -> {
+            if (isChanged(newWaste, existingWastes, XYearsAgo)) {
+                wastesToSave.add(newWaste);
             }
-        }
+        });
         return wastesToSave;
     }
 
+    /**
+     * Decides whether the given waste is new or has new activity since it was
+     * last saved. The hidden flag of an existing waste is carried over.
+     *
+     * @param newWaste       The waste from the TrashOut API.
+     * @param existingWastes The fingerprints of the wastes already in the database.
+     * @param XYearsAgo      The date to compare the waste's update time to.
+     * @return True if the waste has to be saved, otherwise false.
+     */
+    public boolean isChanged(Waste newWaste, WasteFingerprintIndex existingWastes, LocalDateTime XYearsAgo) {
+        int existingWaste = existingWastes.indexOf(newWaste.getId());
+        if (existingWaste >= 0) {
+            newWaste.setHidden(existingWastes.isHidden(existingWaste));
+        }
+        return newWaste.getUpdateTime().isAfter(XYearsAgo)
+                && (existingWaste < 0 || newWaste.getFingerprint() != existingWastes.getFingerprint(existingWaste));
+    }
+
+    /**
+     * Assigns the closest river and the closest rivers with their distances to the
+     * given waste if the rivers are loaded in memory, otherwise it is left to the
+     * scheduled river update, which the database river engine does for every
+     * saved waste in one statement.
+     *
+     * @param waste The waste to assign the river to.
+     */
+    public void assignRiver(Waste waste) {
+        if (riverService.hasRivers() && !riverService.isDatabaseEngine()) {
+            // Get the closest rivers within 500 meter
+            riverService.assignClosestRivers(waste, 500);
+        }
+    }
+
+    /**
+     * Returns the counters of the stages of the last or currently running
+     * ingestion.
+     *
+     * @return The counters of the stages, empty if there was no ingestion yet.
+     */
+    public List<PipelineStageDTO> getPipelineStats() {
+        IngestionPipeline current = pipeline;
+        return current == null ? Collections.emptyList() : current.getStats();
+    }
+
     /**
      * Saves the waste update log into the database.
      *
-     * @param wastesToSave The list of wastes to save into the database.
-     * @param deleteCount  The number of deleted wastes.
+     * @param updateCount The number of saved wastes.
+     * @param deleteCount The number of deleted wastes.
      */
-    public void saveUpdateLog(List<Waste> wastesToSave, Integer deleteCount) {
-        Integer updateCount = wastesToSave.size();
+    public void saveUpdateLog(Integer updateCount, Integer deleteCount) {
         Long totalCount = wasteRepository.count();
 
         UpdateLog updateLog = new UpdateLog();
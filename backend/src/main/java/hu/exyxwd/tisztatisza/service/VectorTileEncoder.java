@@ -0,0 +1,200 @@
+package hu.exyxwd.tisztatisza.service;
+
+import java.io.*;
+import java.util.*;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Encodes point and line features into a Mapbox Vector Tile, version 2. The
+ * protocol buffers messages are written by hand, there are only a few of them:
+ * a tile of layers, a layer of features with their attribute keys and values
+ * shared within the layer, and a feature with its tags and geometry commands.
+ *
+ * Coordinates are in tile units, 0 to EXTENT from the north-west corner of the
+ * tile; features may reach into a buffer around the tile.
+ */
+public final class VectorTileEncoder {
+    /** The media type of vector tiles. */
+    public static final String MEDIA_TYPE = "application/vnd.mapbox-vector-tile";
+    /** The size of a tile in tile units. */
+    public static final int EXTENT = 4096;
+    private static final int VERSION = 2;
+    private static final int GEOMETRY_POINT = 1;
+    private static final int GEOMETRY_LINESTRING = 2;
+    private static final int COMMAND_MOVE_TO = 1;
+    private static final int COMMAND_LINE_TO = 2;
+
+    private final Map<String, Layer> layers = new LinkedHashMap<>();
+
+    /** The features of a layer, with the keys and values their tags refer to. */
+    private static final class Layer {
+        private final Map<String, Integer> keys = new LinkedHashMap<>();
+        private final Map<Object, Integer> values = new LinkedHashMap<>();
+        private final ByteArrayOutputStream features = new ByteArrayOutputStream();
+    }
+
+    /**
+     * Adds a point feature.
+     *
+     * @param layer      The name of the layer.
+     * @param id         The id of the feature, or null.
+     * @param x          The x of the point in tile units.
+     * @param y          The y of the point in tile units.
+     * @param attributes The attributes of the feature, null values are left out.
+     */
+    public void addPoint(String layer, Long id, int x, int y, Map<String, ?> attributes) {
+        addFeature(layer, id, GEOMETRY_POINT, List.of(COMMAND_MOVE_TO | 1 << 3, zigzag(x), zigzag(y)), attributes);
+    }
+
+    /**
+     * Adds a line feature of one or more line strings. Line strings with less
+     * than two points are left out, as is the feature without any line string.
+     *
+     * @param layer      The name of the layer.
+     * @param id         The id of the feature, or null.
+     * @param lines      The line strings as x, y pairs in tile units.
+     * @param attributes The attributes of the feature, null values are left out.
+     */
+    public void addLines(String layer, Long id, List<int[]> lines, Map<String, ?> attributes) {
+        List<Integer> geometry = lineGeometry(lines);
+        if (!geometry.isEmpty()) {
+            addFeature(layer, id, GEOMETRY_LINESTRING, geometry, attributes);
+        }
+    }
+
+    /** @return True if no feature was added. */
+    public boolean isEmpty() {
+        return layers.isEmpty();
+    }
+
+    /** @return The encoded tile. */
+    public byte[] encode() {
+        ByteArrayOutputStream tile = new ByteArrayOutputStream();
+        for (Map.Entry<String, Layer> entry : layers.entrySet()) {
+            Layer layer = entry.getValue();
+            ByteArrayOutputStream message = new ByteArrayOutputStream();
+            writeBytes(message, 1, entry.getKey().getBytes(StandardCharsets.UTF_8));
+            message.writeBytes(layer.features.toByteArray());
+            for (String key : layer.keys.keySet()) {
+                writeBytes(message, 3, key.getBytes(StandardCharsets.UTF_8));
+            }
+            for (Object value : layer.values.keySet()) {
+                writeBytes(message, 4, encodeValue(value));
+            }
+            writeVarint(message, 5, EXTENT);
+            writeVarint(message, 15, VERSION);
+            writeBytes(tile, 3, message.toByteArray());
+        }
+        return tile.toByteArray();
+    }
+
+    /**
+     * Encodes line strings as geometry commands: a MoveTo to the first point and
+     * a LineTo the rest of the points of every line string, each point relative
+     * to the previous one. Repeated points are dropped.
+     */
+    static List<Integer> lineGeometry(List<int[]> lines) {
+        List<Integer> geometry = new ArrayList<>();
+        int cursorX = 0;
+        int cursorY = 0;
+        for (int[] line : lines) {
+            List<Integer> deltas = new ArrayList<>(line.length);
+            int x = cursorX;
+            int y = cursorY;
+            for (int i = 0; i + 1 < line.length; i += 2) {
+                if (!deltas.isEmpty() && line[i] == x && line[i + 1] == y) {
+                    continue;
+                }
+                deltas.add(zigzag(line[i] - x));
+                deltas.add(zigzag(line[i + 1] - y));
+                x = line[i];
+                y = line[i + 1];
+            }
+            if (deltas.size() < 4) {
+                continue;
+            }
+            geometry.add(COMMAND_MOVE_TO | 1 << 3);
+            geometry.addAll(deltas.subList(0, 2));
+            geometry.add(COMMAND_LINE_TO | (deltas.size() / 2 - 1) << 3);
+            geometry.addAll(deltas.subList(2, deltas.size()));
+            cursorX = x;
+            cursorY = y;
+        }
+        return geometry;
+    }
+
+    private void addFeature(String layerName, Long id, int type, List<Integer> geometry, Map<String, ?> attributes) {
+        Layer layer = layers.computeIfAbsent(layerName, name -> new Layer());
+        ByteArrayOutputStream tags = new ByteArrayOutputStream();
+        for (Map.Entry<String, ?> attribute : attributes.entrySet()) {
+            if (attribute.getValue() != null) {
+                writeRawVarint(tags, layer.keys.computeIfAbsent(attribute.getKey(), key -> layer.keys.size()));
+                writeRawVarint(tags, layer.values.computeIfAbsent(attribute.getValue(), value -> layer.values.size()));
+            }
+        }
+        ByteArrayOutputStream commands = new ByteArrayOutputStream();
+        for (int command : geometry) {
+            writeRawVarint(commands, command & 0xffffffffL);
+        }
+
+        ByteArrayOutputStream feature = new ByteArrayOutputStream();
+        if (id != null) {
+            writeVarint(feature, 1, id);
+        }
+        if (tags.size() > 0) {
+            writeBytes(feature, 2, tags.toByteArray());
+        }
+        writeVarint(feature, 3, type);
+        writeBytes(feature, 4, commands.toByteArray());
+        writeBytes(layer.features, 2, feature.toByteArray());
+    }
+
+    /** Encodes a Value message, strings, booleans, integers and doubles are supported. */
+    private static byte[] encodeValue(Object value) {
+        ByteArrayOutputStream message = new ByteArrayOutputStream();
+        if (value instanceof Boolean) {
+            writeVarint(message, 7, (Boolean) value ? 1 : 0);
+        } else if (value instanceof Integer || value instanceof Long) {
+            long number = ((Number) value).longValue();
+            writeVarint(message, 6, (number << 1) ^ (number >> 63));
+        } else if (value instanceof Double) {
+            writeTag(message, 3, 1);
+            long bits = Double.doubleToLongBits((Double) value);
+            for (int i = 0; i < 8; i++) {
+                message.write((int) (bits >>> (8 * i)));
+            }
+        } else {
+            writeBytes(message, 1, value.toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return message.toByteArray();
+    }
+
+    /** Maps signed parameters to unsigned ones, small magnitudes to small values. */
+    private static int zigzag(int value) {
+        return (value << 1) ^ (value >> 31);
+    }
+
+    private static void writeTag(ByteArrayOutputStream out, int field, int wireType) {
+        writeRawVarint(out, field << 3 | wireType);
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int field, long value) {
+        writeTag(out, field, 0);
+        writeRawVarint(out, value);
+    }
+
+    private static void writeBytes(ByteArrayOutputStream out, int field, byte[] bytes) {
+        writeTag(out, field, 2);
+        writeRawVarint(out, bytes.length);
+        out.writeBytes(bytes);
+    }
+
+    /** Writes an unsigned value in 7-bit groups, least significant first. */
+    private static void writeRawVarint(ByteArrayOutputStream out, long value) {
+        while ((value & ~0x7fL) != 0) {
+            out.write((int) (value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write((int) value);
+    }
+}
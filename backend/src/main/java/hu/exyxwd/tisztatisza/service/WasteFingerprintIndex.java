@@ -0,0 +1,59 @@
+package hu.exyxwd.tisztatisza.service;
+
+import java.util.*;
+
+import hu.exyxwd.tisztatisza.dto.WasteFingerprintDTO;
+
+/**
+ * Read-only index of the fingerprints and hidden flags of the stored wastes,
+ * kept in primitive arrays sorted by id. Used to detect changed wastes without
+ * loading the stored entities.
+ */
+public class WasteFingerprintIndex {
+    private final long[] ids;
+    private final long[] fingerprints;
+    private final BitSet hidden;
+
+    /**
+     * Builds the index from the fingerprints of the stored wastes.
+     *
+     * @param wastes The fingerprints of the stored wastes in any order.
+     */
+    public WasteFingerprintIndex(List<WasteFingerprintDTO> wastes) {
+        List<WasteFingerprintDTO> sorted = new ArrayList<>(wastes);
+        sorted.sort(Comparator.comparing(WasteFingerprintDTO::getId));
+
+        this.ids = new long[sorted.size()];
+        this.fingerprints = new long[sorted.size()];
+        this.hidden = new BitSet(sorted.size());
+        for (int i = 0; i < sorted.size(); i++) {
+            WasteFingerprintDTO waste = sorted.get(i);
+            ids[i] = waste.getId();
+            // Wastes stored before fingerprints existed never match, so they are saved once more
+            fingerprints[i] = waste.getFingerprint() == null ? 0 : waste.getFingerprint();
+            hidden.set(i, Boolean.TRUE.equals(waste.getHidden()));
+        }
+    }
+
+    /**
+     * Returns the position of the waste with the given id.
+     *
+     * @param id The id of the waste.
+     * @return The position of the waste, or a negative number if it is not stored.
+     */
+    public int indexOf(long id) {
+        return Arrays.binarySearch(ids, id);
+    }
+
+    public long getFingerprint(int index) {
+        return fingerprints[index];
+    }
+
+    public boolean isHidden(int index) {
+        return hidden.get(index);
+    }
+
+    public int size() {
+        return ids.length;
+    }
+}
@@ -0,0 +1,62 @@
+package hu.exyxwd.tisztatisza.controller;
+
+import org.mockito.Mockito;
+import org.junit.jupiter.api.*;
+import org.springframework.http.*;
+import org.springframework.mock.web.*;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import static org.mockito.Mockito.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import hu.exyxwd.tisztatisza.service.TileService;
+import hu.exyxwd.tisztatisza.service.VectorTileEncoder;
+
+public class TileControllerTest {
+    private TileService tileService;
+    private TileController controller;
+
+    @BeforeEach
+    public void init() {
+        tileService = Mockito.mock(TileService.class);
+        controller = new TileController(tileService);
+    }
+
+    @Test
+    @DisplayName("Test getting a vector tile, conditionally with its ETag")
+    public void testGetTile() {
+        byte[] data = { 0x1a, 0 };
+        when(tileService.getTile(10, 569, 363, true)).thenReturn(new TileService.Tile(data, "v-1-rivers1"));
+        MockHttpServletRequest matchingETag = new MockHttpServletRequest("GET", "/api/tiles/10/569/363.mvt");
+        matchingETag.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v-1-rivers1\"");
+
+        ResponseEntity<?> response = controller.getTile(10, 569, 363, true, createRequest());
+        ResponseEntity<?> notModified = controller.getTile(10, 569, 363, true,
+                new ServletWebRequest(matchingETag, new MockHttpServletResponse()));
+
+        assertEquals(HttpStatus.OK, response.getStatusCode(), "Getting the tile should be OK");
+        assertSame(data, response.getBody(), "The response body should be the encoded tile");
+        assertEquals(MediaType.parseMediaType(VectorTileEncoder.MEDIA_TYPE), response.getHeaders().getContentType(),
+                "The content type should be the vector tile media type");
+        assertEquals("\"v-1-rivers1\"", response.getHeaders().getETag(), "The ETag should be the tile version");
+        assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode(),
+                "A matching ETag should not get the tile again");
+        assertNull(notModified.getBody(), "A not modified response should not have a body");
+    }
+
+    @Test
+    @DisplayName("Test getting a tile that does not exist")
+    public void testGetTileInvalid() {
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getTile(23, 0, 0, false, createRequest()).getStatusCode(),
+                "A zoom level beyond the maximum should be rejected");
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getTile(2, 4, 0, false, createRequest()).getStatusCode(),
+                "A column beyond the tiles of the zoom level should be rejected");
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getTile(2, 0, -1, false, createRequest()).getStatusCode(),
+                "A negative row should be rejected");
+        verify(tileService, never()).getTile(anyInt(), anyInt(), anyInt(), anyBoolean());
+    }
+
+    private static ServletWebRequest createRequest() {
+        return new ServletWebRequest(new MockHttpServletRequest("GET", "/api/tiles"), new MockHttpServletResponse());
+    }
+}
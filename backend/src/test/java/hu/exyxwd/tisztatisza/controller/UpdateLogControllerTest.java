@@ -11,16 +11,20 @@ import static org.junit.jupiter.api.Assertions.*;
 import java.util.*;
 
 import hu.exyxwd.tisztatisza.model.UpdateLog;
+import hu.exyxwd.tisztatisza.dto.PipelineStageDTO;
+import hu.exyxwd.tisztatisza.service.TrashOutService;
 import hu.exyxwd.tisztatisza.repository.UpdateLogRepository;
 
 public class UpdateLogControllerTest {
     private UpdateLogRepository updateLogRepository;
+    private TrashOutService trashOutService;
     private UpdateLogController updateLogController;
 
     @BeforeEach
     public void init() {
         updateLogRepository = Mockito.mock(UpdateLogRepository.class);
-        updateLogController = new UpdateLogController(updateLogRepository);
+        trashOutService = Mockito.mock(TrashOutService.class);
+        updateLogController = new UpdateLogController(updateLogRepository, trashOutService);
     }
 
     @Test
@@ -43,6 +47,18 @@ public class UpdateLogControllerTest {
                 "After getting all update logs the second log does not match the expected value");
     }
 
+    @Test
+    @DisplayName("Test getting the counters of the ingestion pipeline")
+    public void testGetPipelineStats() {
+        PipelineStageDTO stage = new PipelineStageDTO("parse", 4, 10, 8, 2, 1000, 5.0);
+        when(trashOutService.getPipelineStats()).thenReturn(Arrays.asList(stage));
+
+        ResponseEntity<List<PipelineStageDTO>> response = updateLogController.getPipelineStats();
+
+        assertEquals(HttpStatus.OK, response.getStatusCode(), "Response status does not match the expected value");
+        assertEquals(Arrays.asList(stage), response.getBody(), "The pipeline counters do not match the expected value");
+    }
+
     @Test
     @DisplayName("Test successful deletion of update logs by given IDs")
     public void testDeleteLogs() {
@@ -3,30 +3,36 @@ package hu.exyxwd.tisztatisza.controller;
 import org.mockito.Mockito;
 import org.junit.jupiter.api.*;
 import org.springframework.http.*;
+import org.springframework.mock.web.*;
+import org.springframework.web.context.request.ServletWebRequest;
 
-import static org.mockito.Mockito.when;
+import static org.mockito.Mockito.*;
 import static org.mockito.ArgumentMatchers.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static hu.exyxwd.tisztatisza.dto.MapDataFixtures.createMapData;
 
 import java.util.*;
-import java.time.LocalDateTime;
+import java.time.*;
 import java.util.stream.Collectors;
 
 import hu.exyxwd.tisztatisza.dto.*;
 import hu.exyxwd.tisztatisza.model.Waste;
 import hu.exyxwd.tisztatisza.dto.mapper.WasteMapper;
 import hu.exyxwd.tisztatisza.repository.WasteRepository;
+import hu.exyxwd.tisztatisza.service.*;
 
 public class WasteControllerTest {
     private WasteController controller;
     private WasteMapper mockWasteMapper;
     private WasteRepository mockWasteRepository;
+    private MapSnapshotService mockMapSnapshotService;
 
     @BeforeEach
     public void init() {
         mockWasteMapper = Mockito.mock(WasteMapper.class);
         mockWasteRepository = Mockito.mock(WasteRepository.class);
-        controller = new WasteController(mockWasteRepository, mockWasteMapper);
+        mockMapSnapshotService = Mockito.mock(MapSnapshotService.class);
+        controller = new WasteController(mockWasteRepository, mockWasteMapper, mockMapSnapshotService);
     }
 
     @Test
@@ -82,48 +88,166 @@ public class WasteControllerTest {
     }
 
     @Test
-    @DisplayName("Test getting wastes by the default filters")
+    @DisplayName("Test getting wastes by the default filters from the map snapshot")
     public void testGetFilteredWastes() {
-        Waste waste = new Waste();
-        MapDataDTO dto = new MapDataDTO();
-        List<Waste> wastes = Arrays.asList(waste);
-
-        when(mockWasteRepository.findByFilters(eq(Waste.WasteCountry.HUNGARY), eq(Waste.WasteSize.BAG),
-                eq(Waste.WasteStatus.STILLHERE), any(LocalDateTime.class))).thenReturn(wastes);
-        when(mockWasteMapper.toMapData(waste)).thenReturn(dto);
-
-        ResponseEntity<List<MapDataDTO>> response = controller.getFilteredWastes();
+        byte[] json = "[{\"id\":1}]".getBytes();
+        byte[] gzip = { 31, -117 };
+        byte[] binary = { 'T', 'T', 'M', 'D' };
+        when(mockMapSnapshotService.getSnapshot()).thenReturn(new MapSnapshotService.Snapshot(
+                new MapSnapshotService.Body(json, gzip, binary, new byte[0]), null,
+                MapGrid.EMPTY, MapClusters.EMPTY, MapFilterIndex.EMPTY, "v-1", Instant.parse("2024-05-01T12:00:00Z")));
+
+        ResponseEntity<byte[]> response = controller.getFilteredWastes(null, null, createRequest());
+        ResponseEntity<byte[]> gzipResponse = controller.getFilteredWastes(null, "gzip, deflate, br", createRequest());
+        ResponseEntity<byte[]> binaryResponse = controller.getFilteredWastes(MapDataCodec.MEDIA_TYPE + ", */*;q=0.1",
+                null, createRequest());
 
         assertEquals(HttpStatus.OK, response.getStatusCode(),
                 "Getting wastes by default filters status code should be OK");
-        List<MapDataDTO> responseBody = response.getBody();
-        assertNotNull(responseBody, "Response body should not be null");
-        assertEquals(1, responseBody.size(),
-                "Getting wastes by default filters response does not contain the expected number of elements");
-        assertEquals(dto, responseBody.get(0), "Getting wastes by default filters response body is incorrect");
+        assertEquals(MediaType.APPLICATION_JSON, response.getHeaders().getContentType(),
+                "Getting wastes by default filters should respond with JSON");
+        assertSame(json, response.getBody(), "Getting wastes by default filters response body is incorrect");
+        assertEquals("\"v-1\"", response.getHeaders().getETag(), "The ETag should be the dataset version");
+        assertNull(response.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING),
+                "The response should not be compressed without gzip support");
+        assertEquals("gzip", gzipResponse.getHeaders().getFirst(HttpHeaders.CONTENT_ENCODING),
+                "The response should be compressed if the client accepts gzip");
+        assertSame(gzip, gzipResponse.getBody(), "The compressed response body is incorrect");
+        assertEquals("\"v-1-gzip\"", gzipResponse.getHeaders().getETag(),
+                "The compressed response should have its own ETag");
+        assertEquals(MapDataCodec.MEDIA_TYPE, binaryResponse.getHeaders().getContentType().toString(),
+                "The binary map data should be served if the client accepts it");
+        assertSame(binary, binaryResponse.getBody(), "The binary response body is incorrect");
+        assertEquals("\"v-1-binary\"", binaryResponse.getHeaders().getETag(),
+                "The binary response should have its own ETag");
+        verify(mockWasteRepository, never()).findByFilters(any(), any(), any(), any());
     }
 
     @Test
-    @DisplayName("Test getting wastes by the inverse of the default filters")
+    @DisplayName("Test getting wastes by the inverse of the default filters from the map snapshot")
     public void testGetInverseFilteredWastes() {
-        Waste waste = new Waste();
-        MapDataDTO dto = new MapDataDTO();
-        List<Waste> wastes = Arrays.asList(waste);
-
-        when(mockWasteRepository.findByFiltersInverse(eq(Waste.WasteCountry.HUNGARY), eq(Waste.WasteSize.BAG),
-                eq(Waste.WasteStatus.STILLHERE), any(LocalDateTime.class))).thenReturn(wastes);
-        when(mockWasteMapper.toMapData(waste)).thenReturn(dto);
+        byte[] json = "[{\"id\":2}]".getBytes();
+        when(mockMapSnapshotService.getSnapshot()).thenReturn(new MapSnapshotService.Snapshot(null,
+                new MapSnapshotService.Body(json, new byte[0], new byte[0], new byte[0]), MapGrid.EMPTY,
+                MapClusters.EMPTY, MapFilterIndex.EMPTY, "v-1", Instant.parse("2024-05-01T12:00:00Z")));
 
-        ResponseEntity<List<MapDataDTO>> response = controller.getInverseFilteredWastes();
+        ResponseEntity<byte[]> response = controller.getInverseFilteredWastes(null, null, createRequest());
 
         assertEquals(HttpStatus.OK, response.getStatusCode(),
                 "Getting wastes by inverse of default filters status code should be OK");
-        List<MapDataDTO> responseBody = response.getBody();
-        assertNotNull(responseBody, "Getting wastes by inverse of default filters response body should not be null");
-        assertEquals(1, responseBody.size(),
-                "Getting wastes by inverse of default filters response does not contain the expected number of elements");
-        assertEquals(dto, responseBody.get(0),
+        assertSame(json, response.getBody(),
                 "Getting wastes by inverse of default filters response body is incorrect");
+        verify(mockWasteRepository, never()).findByFiltersInverse(any(), any(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Test getting the map data conditionally with the ETag or the modification time")
+    public void testGetFilteredWastesNotModified() {
+        Instant lastModified = Instant.parse("2024-05-01T12:00:00Z");
+        byte[] empty = new byte[0];
+        when(mockMapSnapshotService.getSnapshot()).thenReturn(new MapSnapshotService.Snapshot(
+                new MapSnapshotService.Body(new byte[] { '[', ']' }, empty, empty, empty), null,
+                MapGrid.EMPTY, MapClusters.EMPTY, MapFilterIndex.EMPTY, "v-1", lastModified));
+
+        MockHttpServletRequest matchingETag = new MockHttpServletRequest("GET", "/api/wastes/mapDataFiltered");
+        matchingETag.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v-1\"");
+        MockHttpServletRequest staleETag = new MockHttpServletRequest("GET", "/api/wastes/mapDataFiltered");
+        staleETag.addHeader(HttpHeaders.IF_NONE_MATCH, "\"v-0\"");
+        MockHttpServletRequest notModifiedSince = new MockHttpServletRequest("GET", "/api/wastes/mapDataFiltered");
+        notModifiedSince.addHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified.toEpochMilli());
+
+        ResponseEntity<byte[]> notModified = controller.getFilteredWastes(null, null,
+                new ServletWebRequest(matchingETag, new MockHttpServletResponse()));
+        ResponseEntity<byte[]> modified = controller.getFilteredWastes(null, null,
+                new ServletWebRequest(staleETag, new MockHttpServletResponse()));
+        ResponseEntity<byte[]> notModifiedByDate = controller.getFilteredWastes(null, null,
+                new ServletWebRequest(notModifiedSince, new MockHttpServletResponse()));
+
+        assertEquals(HttpStatus.NOT_MODIFIED, notModified.getStatusCode(),
+                "A matching ETag should get a not modified response");
+        assertNull(notModified.getBody(), "A not modified response should not have a body");
+        assertEquals(HttpStatus.OK, modified.getStatusCode(), "A stale ETag should get the map data");
+        assertEquals(HttpStatus.NOT_MODIFIED, notModifiedByDate.getStatusCode(),
+                "An unchanged modification time should get a not modified response");
+        assertEquals("no-cache, public", modified.getHeaders().getCacheControl(),
+                "Caches should revalidate the map data every time");
+    }
+
+    @Test
+    @DisplayName("Test getting the wastes inside the viewport of the map")
+    public void testGetWastesInViewport() {
+        MapDataDTO inside = createMapData(1L, 46.25, 20.15);
+        MapDataDTO samePixel = createMapData(2L, 46.25001, 20.15001);
+        MapDataDTO outside = createMapData(3L, 47.5, 19.04);
+        MapGrid grid = new MapGrid(Arrays.asList(inside, samePixel, outside), MapGrid.DEFAULT_CELL_SIZE);
+        when(mockMapSnapshotService.getSnapshot()).thenReturn(
+                new MapSnapshotService.Snapshot(null, null, grid, MapClusters.EMPTY, MapFilterIndex.EMPTY, "v-1",
+                        Instant.now()));
+
+        ResponseEntity<?> response = controller.getWastesInViewport("20.0,46.0,20.5,46.5", null);
+        ResponseEntity<?> zoomedOut = controller.getWastesInViewport("20.0, 46.0, 20.5, 46.5", 10);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode(), "Getting the wastes in the viewport should be OK");
+        assertEquals(Arrays.asList(inside, samePixel), response.getBody(),
+                "Only the wastes inside the viewport should be returned");
+        assertEquals(Arrays.asList(inside), zoomedOut.getBody(),
+                "The wastes on the same pixel should be merged at the zoom level");
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getWastesInViewport("20.0,46.0,20.5", null).getStatusCode(),
+                "A bbox without four numbers should be rejected");
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getWastesInViewport("20.0,46.5,20.5,46.0", null)
+                .getStatusCode(), "A bbox with its south edge above its north edge should be rejected");
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getWastesInViewport("20.0,46.0,20.5,46.5", 23)
+                .getStatusCode(), "A zoom level beyond the maximum should be rejected");
+    }
+
+    @Test
+    @DisplayName("Test getting the clusters of the wastes inside the viewport of the map")
+    public void testGetClustersInViewport() {
+        MapClusters clusters = new MapClusters(Arrays.asList(createMapData(1L, 46.25, 20.15),
+                createMapData(2L, 46.25, 20.16), createMapData(3L, 47.5, 19.04)));
+        when(mockMapSnapshotService.getSnapshot()).thenReturn(
+                new MapSnapshotService.Snapshot(null, null, MapGrid.EMPTY, clusters, MapFilterIndex.EMPTY, "v-1",
+                        Instant.now()));
+
+        ResponseEntity<?> response = controller.getClustersInViewport("20.0,46.0,20.5,46.5", 5);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode(), "Getting the clusters in the viewport should be OK");
+        List<?> found = (List<?>) response.getBody();
+        assertEquals(1, found.size(), "Only the cluster inside the viewport should be returned");
+        assertEquals(2, ((MapClusterDTO) found.get(0)).getCount(), "The nearby wastes should be one cluster");
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getClustersInViewport("20.0,46.0,20.5", 5).getStatusCode(),
+                "A bbox without four numbers should be rejected");
+        assertEquals(HttpStatus.BAD_REQUEST, controller.getClustersInViewport("20.0,46.0,20.5,46.5", -1)
+                .getStatusCode(), "A negative zoom level should be rejected");
+    }
+
+    @Test
+    @DisplayName("Test getting the wastes fitting a combination of filters")
+    public void testGetWastesByFilter() {
+        MapDataDTO tisza = createMapData(1L, 46.25, 20.15);
+        tisza.setRiver("TISZA");
+        tisza.setSize(Waste.WasteSize.BAG);
+        MapDataDTO maros = createMapData(2L, 46.22, 20.3);
+        maros.setRiver("MAROS");
+        maros.setSize(Waste.WasteSize.BAG);
+        when(mockMapSnapshotService.getSnapshot()).thenReturn(new MapSnapshotService.Snapshot(null, null,
+                MapGrid.EMPTY, MapClusters.EMPTY, new MapFilterIndex(Arrays.asList(tisza, maros)), "v-1",
+                Instant.now()));
+        WasteFilterDTO filter = new WasteFilterDTO();
+        filter.setSizes(EnumSet.of(Waste.WasteSize.BAG));
+        filter.setRivers(Set.of("TISZA"));
+
+        ResponseEntity<List<MapDataDTO>> response = controller.getWastesByFilter(filter);
+
+        assertEquals(HttpStatus.OK, response.getStatusCode(), "Getting the filtered wastes should be OK");
+        assertEquals(Arrays.asList(tisza), response.getBody(),
+                "Only the wastes fitting every filter should be returned");
+        verify(mockWasteRepository, never()).findAll();
+    }
+
+    private static ServletWebRequest createRequest() {
+        return new ServletWebRequest(new MockHttpServletRequest("GET", "/api/wastes/mapDataFiltered"),
+                new MockHttpServletResponse());
     }
 
     @Test
@@ -142,6 +266,8 @@ public class WasteControllerTest {
         assertEquals(HttpStatus.OK, response.getStatusCode(), "Setting waste's hidden field status code should be OK");
         assertTrue(waste.isHidden(),
                 "After successful setting of waste's hidden field, the field's value does not match the expected value");
+        verify(mockMapSnapshotService).requestRebuild();
+        verify(mockMapSnapshotService, never()).rebuild();
     }
 
     @Test
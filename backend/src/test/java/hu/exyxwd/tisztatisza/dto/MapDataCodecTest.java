@@ -0,0 +1,82 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.time.LocalDateTime;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+
+public class MapDataCodecTest {
+    private ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+    @Test
+    @DisplayName("Test encoding and decoding the binary map data into the same JSON")
+    public void testRoundTrip() throws Exception {
+        List<MapDataDTO> mapData = new ArrayList<>();
+        mapData.add(createWaste(1005L, 46.25312, 20.14856, Waste.WasteCountry.HUNGARY, "TISZA", false,
+                Waste.WasteType.PLASTIC, Waste.WasteType.DEADANIMALS));
+        // Unordered ids, negative coordinates and a repeated river name
+        mapData.add(createWaste(17L, -33.86882, -151.2093, Waste.WasteCountry.SERBIA, "TISZA", true));
+        mapData.add(createWaste(99999999999L, 48, 22, Waste.WasteCountry.UKRAINE, "", false,
+                Waste.WasteType.values()));
+        // A waste with every optional field missing
+        MapDataDTO empty = new MapDataDTO();
+        empty.setId(3L);
+        mapData.add(empty);
+
+        byte[] binary = MapDataCodec.encode(mapData);
+        List<MapDataDTO> decoded = MapDataCodec.decode(binary);
+
+        assertEquals(objectMapper.readTree(objectMapper.writeValueAsBytes(mapData)),
+                objectMapper.readTree(objectMapper.writeValueAsBytes(decoded)),
+                "The decoded map data should serialize into the same JSON");
+        assertTrue(binary.length < objectMapper.writeValueAsBytes(mapData).length / 2,
+                "The binary map data should be much smaller than the JSON");
+    }
+
+    @Test
+    @DisplayName("Test truncating the update times to whole seconds")
+    public void testUpdateTimeTruncated() {
+        MapDataDTO mapData = new MapDataDTO();
+        mapData.setId(1L);
+        mapData.setUpdateTime(LocalDateTime.of(2024, 5, 1, 12, 30, 15, 987_000_000));
+
+        List<MapDataDTO> decoded = MapDataCodec.decode(MapDataCodec.encode(List.of(mapData)));
+
+        assertEquals(LocalDateTime.of(2024, 5, 1, 12, 30, 15), decoded.get(0).getUpdateTime(),
+                "The update time should be truncated to seconds");
+    }
+
+    @Test
+    @DisplayName("Test decoding data that is not binary map data")
+    public void testDecodeInvalid() {
+        assertThrows(IllegalArgumentException.class, () -> MapDataCodec.decode(new byte[] { '[', ']' }),
+                "Decoding JSON should fail");
+        byte[] truncated = Arrays.copyOf(MapDataCodec.encode(List.of(MapDataFixtures.createMapData(1L, 46.25312,
+                20.14856))), 20);
+        assertThrows(IllegalArgumentException.class, () -> MapDataCodec.decode(truncated),
+                "Decoding truncated data should fail");
+    }
+
+    /** Creates the map data of a waste with every field set, as the round trip checks all of them. */
+    private static MapDataDTO createWaste(long id, double latitude, double longitude, Waste.WasteCountry country,
+            String river, boolean hidden, Waste.WasteType... types) {
+        MapDataDTO mapData = MapDataFixtures.createMapData(id, latitude, longitude);
+        mapData.setCountry(country);
+        mapData.setSize(Waste.WasteSize.CAR);
+        mapData.setStatus(Waste.WasteStatus.STILLHERE);
+        // The decoded types are in ordinal order, like an EnumSet
+        Set<Waste.WasteType> typeSet = EnumSet.noneOf(Waste.WasteType.class);
+        typeSet.addAll(Arrays.asList(types));
+        mapData.setTypes(typeSet);
+        mapData.setRiver(river);
+        mapData.setUpdateTime(LocalDateTime.of(2024, 5, 1, 12, 30, 15).plusDays(id % 400));
+        mapData.setHidden(hidden);
+        return mapData;
+    }
+}
@@ -0,0 +1,26 @@
+package hu.exyxwd.tisztatisza.dto;
+
+import java.math.BigDecimal;
+
+/** Builds the map data of the tests, which set the other fields they look at themselves. */
+public final class MapDataFixtures {
+    private MapDataFixtures() {
+    }
+
+    /**
+     * Creates the map data of a waste at the given coordinates with every other
+     * field left empty.
+     *
+     * @param id        The id of the waste.
+     * @param latitude  The latitude of the waste.
+     * @param longitude The longitude of the waste.
+     * @return The map data of the waste.
+     */
+    public static MapDataDTO createMapData(long id, double latitude, double longitude) {
+        MapDataDTO mapData = new MapDataDTO();
+        mapData.setId(id);
+        mapData.setLatitude(BigDecimal.valueOf(latitude));
+        mapData.setLongitude(BigDecimal.valueOf(longitude));
+        return mapData;
+    }
+}
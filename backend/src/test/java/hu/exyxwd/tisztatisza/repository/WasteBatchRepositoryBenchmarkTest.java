@@ -0,0 +1,85 @@
+package hu.exyxwd.tisztatisza.repository;
+
+import org.junit.jupiter.api.*;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.boot.test.autoconfigure.orm.jpa.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+import org.springframework.boot.test.autoconfigure.jdbc.AutoConfigureTestDatabase;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.*;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+
+/**
+ * Compares the speed of the bulk upsert with JpaRepository.saveAll on
+ * PostgreSQL. Needs a PostgreSQL database, e.g.
+ * -Dpostgres.url=jdbc:postgresql://localhost:5432/wastedb?reWriteBatchedInserts=true
+ * -Dpostgres.username=... -Dpostgres.password=..., and is skipped otherwise.
+ * The wastes get negative ids and are written in the test transaction, which
+ * is rolled back. The first rounds only warm up the JVM and the database.
+ */
+@DataJpaTest(properties = { "spring.datasource.url=${postgres.url}",
+        "spring.datasource.username=${postgres.username:tisztatisza}",
+        "spring.datasource.password=${postgres.password:tisztatisza}", "spring.jpa.hibernate.ddl-auto=update" })
+@AutoConfigureTestDatabase(replace = AutoConfigureTestDatabase.Replace.NONE)
+@Import(WasteBatchRepository.class)
+@EnabledIfSystemProperty(named = "postgres.url", matches = ".+")
+public class WasteBatchRepositoryBenchmarkTest {
+    private static final int COUNT = 2000;
+    private static final int WARM_UP_ROUNDS = 3;
+    private static final int ROUNDS = 5;
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private WasteRepository wasteRepository;
+
+    @Autowired
+    private WasteBatchRepository wasteBatchRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    @DisplayName("Benchmark the bulk upsert against JpaRepository.saveAll")
+    public void benchmarkUpsertAll() {
+        long nextId = -1;
+        long jpaTime = 0;
+        long batchTime = 0;
+        for (int round = 0; round < WARM_UP_ROUNDS + ROUNDS; round++) {
+            List<Waste> jpaWastes = new ArrayList<>();
+            List<Waste> batchWastes = new ArrayList<>();
+            for (int i = 0; i < COUNT; i++) {
+                jpaWastes.add(WasteBatchRepositoryTest.createWaste(nextId--));
+                batchWastes.add(WasteBatchRepositoryTest.createWaste(nextId--));
+            }
+
+            long jpaStart = System.nanoTime();
+            wasteRepository.saveAll(jpaWastes);
+            entityManager.flush();
+            long jpaRoundTime = System.nanoTime() - jpaStart;
+
+            long batchStart = System.nanoTime();
+            wasteBatchRepository.upsertAll(batchWastes);
+            long batchRoundTime = System.nanoTime() - batchStart;
+
+            // Every round starts with an empty persistence context
+            entityManager.clear();
+            if (round >= WARM_UP_ROUNDS) {
+                jpaTime += jpaRoundTime;
+                batchTime += batchRoundTime;
+            }
+        }
+
+        System.out.println("Saving " + COUNT + " wastes took " + jpaTime / ROUNDS / 1_000_000 + " ms with JPA and "
+                + batchTime / ROUNDS / 1_000_000 + " ms with the bulk upsert on average of " + ROUNDS + " rounds.");
+
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM wastes WHERE id < 0", Long.class))
+                .isEqualTo(2L * COUNT * (WARM_UP_ROUNDS + ROUNDS));
+    }
+}
@@ -0,0 +1,102 @@
+package hu.exyxwd.tisztatisza.repository;
+
+import org.junit.jupiter.api.*;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.boot.test.autoconfigure.orm.jpa.*;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import java.util.*;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+import hu.exyxwd.tisztatisza.model.Waste;
+
+@DataJpaTest
+@Import(WasteBatchRepository.class)
+public class WasteBatchRepositoryTest {
+
+    @Autowired
+    private TestEntityManager entityManager;
+
+    @Autowired
+    private WasteRepository wasteRepository;
+
+    @Autowired
+    private WasteBatchRepository wasteBatchRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    @DisplayName("Test inserting and updating wastes with their types in bulk")
+    public void testUpsertAll() {
+        Waste waste = createWaste(1L);
+        waste.setTypes(new HashSet<>(Arrays.asList(Waste.WasteType.PLASTIC, Waste.WasteType.GLASS)));
+        wasteBatchRepository.upsertAll(List.of(waste));
+
+        waste.setStatus(Waste.WasteStatus.CLEANED);
+        waste.setTypes(new HashSet<>(List.of(Waste.WasteType.METAL)));
+        wasteBatchRepository.upsertAll(List.of(waste, createWaste(2L)));
+        entityManager.clear();
+
+        Waste updated = wasteRepository.findById(1L).orElseThrow();
+        assertThat(wasteRepository.count()).isEqualTo(2);
+        assertThat(updated.getStatus()).isEqualTo(Waste.WasteStatus.CLEANED);
+        assertThat(updated.getTypes()).containsExactly(Waste.WasteType.METAL);
+        assertThat(updated.getFingerprint()).isEqualTo(waste.getFingerprint());
+    }
+
+    @Test
+    @DisplayName("Test setting the rivers of wastes in batches")
+    public void testUpdateRivers() {
+        wasteBatchRepository.upsertAll(List.of(createWaste(1L), createWaste(2L), createWaste(3L)));
+
+        int updateCount = wasteBatchRepository.updateRivers(new long[] { 1L, 3L }, new String[] { "TISZA", "" },
+                new String[] { "TISZA:12.5:340.0;MAROS:480.2:15.1", "" });
+        entityManager.clear();
+
+        assertThat(updateCount).isEqualTo(2);
+        assertThat(wasteRepository.findById(1L).orElseThrow().getRiver()).isEqualTo("TISZA");
+        assertThat(wasteRepository.findById(1L).orElseThrow().getRiverProximities())
+                .isEqualTo("TISZA:12.5:340.0;MAROS:480.2:15.1");
+        assertThat(wasteRepository.findById(2L).orElseThrow().getRiver()).isNull();
+        assertThat(wasteRepository.findById(3L).orElseThrow().getRiver()).isEmpty();
+        assertThat(wasteRepository.findAllWithoutRiver()).extracting("id").containsExactly(2L);
+    }
+
+    @Test
+    @DisplayName("Test deleting wastes older than a given date in chunks")
+    public void testDeleteOlderThan() {
+        List<Waste> wastes = new ArrayList<>();
+        for (long id : new long[] { 1L, 2L, 25000L, 25001L, 90000L }) {
+            Waste waste = createWaste(id);
+            waste.setUpdateTime(id == 2L ? LocalDateTime.now() : LocalDateTime.now().minusYears(7));
+            wastes.add(waste);
+        }
+        wasteBatchRepository.upsertAll(wastes);
+
+        int deleteCount = wasteBatchRepository.deleteOlderThan(LocalDateTime.now().minusYears(6));
+
+        assertThat(deleteCount).isEqualTo(4);
+        assertThat(wasteRepository.count()).isEqualTo(1);
+        assertThat(jdbcTemplate.queryForObject("SELECT COUNT(*) FROM waste_types", Long.class)).isEqualTo(1);
+    }
+
+    static Waste createWaste(long id) {
+        Waste waste = new Waste();
+        waste.setId(id);
+        waste.setLatitude(BigDecimal.valueOf(47.12345));
+        waste.setLongitude(BigDecimal.valueOf(19.12345));
+        waste.setCountry(Waste.WasteCountry.HUNGARY);
+        waste.setSize(Waste.WasteSize.BAG);
+        waste.setStatus(Waste.WasteStatus.STILLHERE);
+        waste.setTypes(new HashSet<>(List.of(Waste.WasteType.PLASTIC)));
+        waste.setCreateTime(LocalDateTime.parse("2022-01-01T00:00:00"));
+        waste.setUpdateTime(LocalDateTime.parse("2022-01-01T00:00:00"));
+        waste.setFingerprint(waste.computeFingerprint());
+        return waste;
+    }
+}
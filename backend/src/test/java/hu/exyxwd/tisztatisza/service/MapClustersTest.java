@@ -0,0 +1,83 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static hu.exyxwd.tisztatisza.dto.MapDataFixtures.createMapData;
+
+import java.util.*;
+
+import hu.exyxwd.tisztatisza.dto.*;
+import hu.exyxwd.tisztatisza.model.Waste;
+
+public class MapClustersTest {
+    @Test
+    @DisplayName("Test that the clusters of every zoom level keep every waste and its breakdown")
+    public void testQueryCounts() {
+        Random random = new Random(42);
+        List<MapDataDTO> mapData = new ArrayList<>();
+        int plastic = 0;
+        for (long id = 1; id <= 5000; id++) {
+            MapDataDTO waste = createMapData(id, 45.5 + random.nextDouble() * 3, 16 + random.nextDouble() * 7);
+            waste.setSize(Waste.WasteSize.BAG);
+            if (random.nextBoolean()) {
+                waste.setTypes(EnumSet.of(Waste.WasteType.PLASTIC, Waste.WasteType.METAL));
+                plastic++;
+            }
+            mapData.add(waste);
+        }
+        mapData.add(new MapDataDTO());
+        MapClusters clusters = new MapClusters(mapData);
+
+        assertEquals(5000, clusters.size(), "The wastes without coordinates should be left out of the clusters");
+        int previous = 0;
+        for (int zoom = 0; zoom <= MapClusters.MAX_ZOOM + 2; zoom++) {
+            List<MapClusterDTO> found = clusters.query(-180, -85, 180, 85, zoom);
+            int count = 0;
+            int sizes = 0;
+            int types = 0;
+            for (MapClusterDTO cluster : found) {
+                count += cluster.getCount();
+                sizes += cluster.getSizes().get(Waste.WasteSize.BAG);
+                types += cluster.getTypes().getOrDefault(Waste.WasteType.PLASTIC, 0);
+            }
+
+            assertEquals(5000, count, "The clusters of zoom level " + zoom + " should contain every waste");
+            assertEquals(5000, sizes, "The size breakdowns of zoom level " + zoom + " should add up");
+            assertEquals(plastic, types, "The type breakdowns of zoom level " + zoom + " should add up");
+            assertTrue(found.size() >= previous, "Zooming in should not merge clusters");
+            previous = found.size();
+        }
+        assertTrue(clusters.query(-180, -85, 180, 85, 5).size() < 100,
+                "The wastes of a country should be a few clusters when zoomed out");
+        assertEquals(5000, previous, "Every waste should be its own cluster above the highest cluster zoom level");
+    }
+
+    @Test
+    @DisplayName("Test the centroid of a cluster and the wastes kept apart")
+    public void testQueryCentroid() {
+        List<MapDataDTO> mapData = Arrays.asList(createMapData(1L, 46.25, 20.15), createMapData(2L, 46.25, 20.17),
+                createMapData(3L, 46.25, 20.16), createMapData(4L, 47.5, 19.04));
+        for (MapDataDTO waste : mapData) {
+            waste.setSize(Waste.WasteSize.BAG);
+            waste.setStatus(Waste.WasteStatus.STILLHERE);
+        }
+        MapClusters clusters = new MapClusters(mapData);
+
+        List<MapClusterDTO> zoomedOut = clusters.query(19, 46, 21, 48, 8);
+        List<MapClusterDTO> zoomedIn = clusters.query(20.155, 46, 21, 48, MapClusters.MAX_ZOOM + 1);
+
+        assertEquals(2, zoomedOut.size(), "The nearby wastes should be merged, the distant one kept apart");
+        MapClusterDTO merged = zoomedOut.get(0).getCount() == 3 ? zoomedOut.get(0) : zoomedOut.get(1);
+        assertNull(merged.getId(), "A cluster of several wastes should not have an id");
+        assertEquals(20.16, merged.getLongitude(), 1e-9, "The cluster should be at the centroid of its wastes");
+        assertEquals(46.25, merged.getLatitude(), 1e-9, "The cluster should be at the centroid of its wastes");
+        assertEquals(Map.of(Waste.WasteSize.BAG, 3), merged.getSizes(), "The size breakdown does not match");
+        assertEquals(Map.of(Waste.WasteStatus.STILLHERE, 3), merged.getStatuses(),
+                "The status breakdown does not match");
+        assertEquals(Set.of(2L, 3L), Set.of(zoomedIn.get(0).getId(), zoomedIn.get(1).getId()),
+                "Only the wastes inside the viewport should be returned");
+        assertTrue(MapClusters.EMPTY.query(-180, -85, 180, 85, 0).isEmpty(),
+                "The empty clusters should return nothing");
+    }
+}
@@ -0,0 +1,138 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.time.LocalDateTime;
+
+import hu.exyxwd.tisztatisza.dto.*;
+import hu.exyxwd.tisztatisza.model.Waste;
+
+public class MapFilterIndexTest {
+    private static final String[] RIVERS = { "TISZA", "MAROS", "DUNA", "" };
+
+    @Test
+    @DisplayName("Test that the bitmap index finds the same wastes for random filters as a full scan")
+    public void testQuery() {
+        Random random = new Random(42);
+        List<MapDataDTO> mapData = new ArrayList<>();
+        for (long id = 1; id <= 2000; id++) {
+            mapData.add(createRandomMapData(random, id));
+        }
+        mapData.add(new MapDataDTO());
+        MapFilterIndex index = new MapFilterIndex(mapData);
+
+        assertEquals(2001, index.size(), "Every waste should be indexed");
+        for (int i = 0; i < 500; i++) {
+            WasteFilterDTO filter = createRandomFilter(random);
+
+            List<MapDataDTO> found = index.query(filter);
+
+            Set<MapDataDTO> expected = new HashSet<>();
+            for (MapDataDTO waste : mapData) {
+                if (fits(waste, filter)) {
+                    expected.add(waste);
+                }
+            }
+            assertEquals(expected.size(), found.size(), "The index should not return a waste twice");
+            assertEquals(expected, new HashSet<>(found), "The index should return the same wastes as a full scan");
+            for (int j = 1; j < found.size(); j++) {
+                LocalDateTime previous = found.get(j - 1).getUpdateTime();
+                assertFalse(previous != null && found.get(j).getUpdateTime().isBefore(previous),
+                        "The wastes should be ordered by their update time");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test the null and the empty filters")
+    public void testQueryEmptyFilters() {
+        MapDataDTO waste = new MapDataDTO();
+        waste.setCountry(Waste.WasteCountry.HUNGARY);
+        MapFilterIndex index = new MapFilterIndex(Arrays.asList(waste));
+
+        WasteFilterDTO filter = new WasteFilterDTO();
+        assertEquals(Arrays.asList(waste), index.query(filter), "A filter without fields should fit every waste");
+        filter.setCountries(EnumSet.noneOf(Waste.WasteCountry.class));
+        assertTrue(index.query(filter).isEmpty(), "An empty filter should fit no waste");
+        filter.setCountries(null);
+        filter.setUpdatedTo(LocalDateTime.now());
+        assertTrue(index.query(filter).isEmpty(), "A waste without update time should not fit a time range");
+        assertTrue(MapFilterIndex.EMPTY.query(new WasteFilterDTO()).isEmpty(), "The empty index should return nothing");
+    }
+
+    /** The filter semantics of the frontend, applied one waste at a time. */
+    private static boolean fits(MapDataDTO waste, WasteFilterDTO filter) {
+        if (filter.getCountries() != null && !filter.getCountries().contains(waste.getCountry())
+                || filter.getSizes() != null && !filter.getSizes().contains(waste.getSize())
+                || filter.getStatuses() != null && !filter.getStatuses().contains(waste.getStatus())
+                || filter.getRivers() != null && !filter.getRivers().contains(waste.getRiver())) {
+            return false;
+        }
+        if (filter.getTypes() != null && !filter.getTypes().isEmpty()
+                && (waste.getTypes() == null || !waste.getTypes().containsAll(filter.getTypes()))) {
+            return false;
+        }
+        if (filter.getHidden() != null && filter.getHidden() != Boolean.TRUE.equals(waste.getHidden())) {
+            return false;
+        }
+        if (filter.getUpdatedFrom() != null || filter.getUpdatedTo() != null) {
+            return waste.getUpdateTime() != null
+                    && (filter.getUpdatedFrom() == null || !waste.getUpdateTime().isBefore(filter.getUpdatedFrom()))
+                    && (filter.getUpdatedTo() == null || !waste.getUpdateTime().isAfter(filter.getUpdatedTo()));
+        }
+        return true;
+    }
+
+    private static MapDataDTO createRandomMapData(Random random, long id) {
+        MapDataDTO waste = new MapDataDTO();
+        waste.setId(id);
+        waste.setCountry(randomValue(random, Waste.WasteCountry.values()));
+        waste.setSize(randomValue(random, Waste.WasteSize.values()));
+        waste.setStatus(randomValue(random, Waste.WasteStatus.values()));
+        waste.setTypes(randomSet(random, Waste.WasteType.class));
+        waste.setRiver(randomValue(random, RIVERS));
+        waste.setHidden(random.nextInt(10) == 0 ? null : random.nextBoolean());
+        // Few distinct times, so some wastes share theirs with the range edges
+        waste.setUpdateTime(random.nextInt(20) == 0 ? null
+                : LocalDateTime.of(2024, 1, 1, 0, 0).plusDays(random.nextInt(100)));
+        return waste;
+    }
+
+    private static WasteFilterDTO createRandomFilter(Random random) {
+        WasteFilterDTO filter = new WasteFilterDTO();
+        filter.setCountries(random.nextBoolean() ? null : randomSet(random, Waste.WasteCountry.class));
+        filter.setSizes(random.nextBoolean() ? null : randomSet(random, Waste.WasteSize.class));
+        filter.setStatuses(random.nextBoolean() ? null : randomSet(random, Waste.WasteStatus.class));
+        if (random.nextInt(4) == 0) {
+            filter.setTypes(EnumSet.of(Waste.WasteType.values()[random.nextInt(Waste.WasteType.values().length)]));
+        }
+        if (random.nextInt(4) == 0) {
+            filter.setRivers(new HashSet<>(Arrays.asList(RIVERS[random.nextInt(RIVERS.length)], "NILUS")));
+        }
+        filter.setHidden(random.nextBoolean() ? null : random.nextBoolean());
+        if (random.nextBoolean()) {
+            filter.setUpdatedFrom(LocalDateTime.of(2024, 1, 1, 0, 0).plusDays(random.nextInt(110) - 5));
+        }
+        if (random.nextBoolean()) {
+            filter.setUpdatedTo(LocalDateTime.of(2024, 1, 1, 0, 0).plusDays(random.nextInt(110) - 5));
+        }
+        return filter;
+    }
+
+    private static <T> T randomValue(Random random, T[] values) {
+        return random.nextInt(10) == 0 ? null : values[random.nextInt(values.length)];
+    }
+
+    private static <E extends Enum<E>> Set<E> randomSet(Random random, Class<E> type) {
+        Set<E> set = EnumSet.noneOf(type);
+        for (E value : type.getEnumConstants()) {
+            if (random.nextInt(3) == 0) {
+                set.add(value);
+            }
+        }
+        return set;
+    }
+}
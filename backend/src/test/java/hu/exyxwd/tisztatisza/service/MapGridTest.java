@@ -0,0 +1,82 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static hu.exyxwd.tisztatisza.dto.MapDataFixtures.createMapData;
+
+import java.util.*;
+
+import hu.exyxwd.tisztatisza.dto.MapDataDTO;
+
+public class MapGridTest {
+    @Test
+    @DisplayName("Test that the grid finds the same wastes in a viewport as a full scan")
+    public void testQuery() {
+        Random random = new Random(42);
+        List<MapDataDTO> mapData = new ArrayList<>();
+        for (long id = 0; id < 5000; id++) {
+            mapData.add(createMapData(id, 45.5 + random.nextDouble() * 3, 16 + random.nextDouble() * 7));
+        }
+        mapData.add(new MapDataDTO());
+        MapGrid grid = new MapGrid(mapData, MapGrid.DEFAULT_CELL_SIZE);
+
+        assertEquals(5000, grid.size(), "The wastes without coordinates should be left out of the grid");
+        for (int i = 0; i < 200; i++) {
+            double minLongitude = 15.5 + random.nextDouble() * 8;
+            double minLatitude = 45 + random.nextDouble() * 4;
+            double maxLongitude = minLongitude + random.nextDouble() * 2;
+            double maxLatitude = minLatitude + random.nextDouble() * 2;
+
+            Set<Long> expected = new HashSet<>();
+            for (MapDataDTO waste : mapData) {
+                if (waste.getLatitude() != null && waste.getLongitude().doubleValue() >= minLongitude
+                        && waste.getLongitude().doubleValue() <= maxLongitude
+                        && waste.getLatitude().doubleValue() >= minLatitude
+                        && waste.getLatitude().doubleValue() <= maxLatitude) {
+                    expected.add(waste.getId());
+                }
+            }
+            List<MapDataDTO> found = grid.query(minLongitude, minLatitude, maxLongitude, maxLatitude, null);
+
+            assertEquals(expected.size(), found.size(), "The grid should not return a waste twice");
+            assertEquals(expected, ids(found), "The grid should return the same wastes as a full scan");
+        }
+    }
+
+    @Test
+    @DisplayName("Test merging the wastes on the same pixel at a zoom level")
+    public void testQueryZoom() {
+        List<MapDataDTO> mapData = Arrays.asList(createMapData(1L, 46.25, 20.15), createMapData(2L, 46.25001, 20.15001),
+                createMapData(3L, 46.26, 20.16));
+        MapGrid grid = new MapGrid(mapData, MapGrid.DEFAULT_CELL_SIZE);
+
+        assertEquals(Set.of(1L, 2L, 3L), ids(grid.query(20, 46, 21, 47, 18)),
+                "Every waste should be returned when zoomed in");
+        assertEquals(Set.of(1L, 3L), ids(grid.query(20, 46, 21, 47, 10)),
+                "The wastes on the same pixel should be merged when zoomed out");
+        assertEquals(1, grid.query(20, 46, 21, 47, 0).size(), "Every waste should be on one pixel at zoom level 0");
+    }
+
+    @Test
+    @DisplayName("Test a viewport crossing the antimeridian")
+    public void testQueryAntimeridian() {
+        List<MapDataDTO> mapData = Arrays.asList(createMapData(1L, 10, 179.5), createMapData(2L, 10, -179.5),
+                createMapData(3L, 10, 0), createMapData(4L, 10, 180));
+        MapGrid grid = new MapGrid(mapData, MapGrid.DEFAULT_CELL_SIZE);
+
+        assertEquals(Set.of(1L, 2L, 4L), ids(grid.query(179, 0, -179, 20, null)),
+                "The wastes on both sides of the antimeridian should be returned");
+        assertEquals(Set.of(3L), ids(grid.query(-179, 0, 179, 20, null)),
+                "A viewport not crossing the antimeridian should not return the wastes beyond it");
+        assertTrue(MapGrid.EMPTY.query(-180, -90, 180, 90, null).isEmpty(), "The empty grid should return nothing");
+    }
+
+    private static Set<Long> ids(List<MapDataDTO> mapData) {
+        Set<Long> ids = new HashSet<>();
+        for (MapDataDTO waste : mapData) {
+            ids.add(waste.getId());
+        }
+        return ids;
+    }
+}
@@ -0,0 +1,114 @@
+package hu.exyxwd.tisztatisza.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import org.mockito.*;
+import org.junit.jupiter.api.*;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import static org.mockito.Mockito.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.junit.jupiter.api.Assertions.*;
+import static hu.exyxwd.tisztatisza.dto.MapDataFixtures.createMapData;
+
+import java.io.*;
+import java.util.*;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.zip.GZIPInputStream;
+
+import hu.exyxwd.tisztatisza.dto.MapDataDTO;
+import hu.exyxwd.tisztatisza.model.Waste;
+import hu.exyxwd.tisztatisza.dto.mapper.WasteMapper;
+import hu.exyxwd.tisztatisza.repository.WasteRepository;
+
+public class MapSnapshotServiceTest {
+    private MapSnapshotService mapSnapshotService;
+    private WasteRepository wasteRepository;
+    private WasteMapper wasteMapper;
+    private ObjectMapper objectMapper = new ObjectMapper().findAndRegisterModules();
+
+    @BeforeEach
+    public void init() {
+        wasteRepository = Mockito.mock(WasteRepository.class);
+        wasteMapper = Mockito.mock(WasteMapper.class);
+        mapSnapshotService = new MapSnapshotService(wasteRepository, wasteMapper, objectMapper);
+    }
+
+    @Test
+    @DisplayName("Test building the snapshot of the pre-serialized and compressed map data")
+    public void testRebuild() throws Exception {
+        Waste filtered = new Waste();
+        Waste inverse = new Waste();
+        when(wasteRepository.findByFilters(eq(Waste.WasteCountry.HUNGARY), eq(Waste.WasteSize.BAG),
+                eq(Waste.WasteStatus.STILLHERE), any(LocalDateTime.class))).thenReturn(Arrays.asList(filtered));
+        when(wasteRepository.findByFiltersInverse(eq(Waste.WasteCountry.HUNGARY), eq(Waste.WasteSize.BAG),
+                eq(Waste.WasteStatus.STILLHERE), any(LocalDateTime.class))).thenReturn(Arrays.asList(inverse));
+        when(wasteMapper.toMapData(filtered)).thenReturn(createMapData(1L, 46.25, 20.15));
+        when(wasteMapper.toMapData(inverse)).thenReturn(createMapData(2L, 46.25, 20.15));
+
+        MapSnapshotService.Snapshot snapshot = mapSnapshotService.getSnapshot();
+
+        MapDataDTO[] mapData = objectMapper.readValue(snapshot.getFiltered().getJson(), MapDataDTO[].class);
+        assertEquals(1, mapData.length, "The snapshot should contain every filtered waste");
+        assertEquals(1L, mapData[0].getId(), "The filtered waste does not match the expected value");
+        try (InputStream in = new GZIPInputStream(new ByteArrayInputStream(snapshot.getInverse().getGzip()))) {
+            assertArrayEquals(snapshot.getInverse().getJson(), in.readAllBytes(),
+                    "The compressed map data should match the plain map data");
+        }
+        assertEquals(2L, objectMapper.readValue(snapshot.getInverse().getJson(), MapDataDTO[].class)[0].getId(),
+                "The inverse filtered waste does not match the expected value");
+
+        assertSame(snapshot, mapSnapshotService.getSnapshot(), "The snapshot should only be built once");
+        verify(wasteRepository, times(1)).findByFilters(any(), any(), any(), any());
+    }
+
+    @Test
+    @DisplayName("Test changing the dataset version only if the map data changes")
+    public void testRebuildVersion() {
+        Waste waste = new Waste();
+        MapDataDTO mapData = createMapData(1L, 46.25, 20.15);
+        when(wasteRepository.findByFilters(any(), any(), any(), any())).thenReturn(Arrays.asList(waste));
+        when(wasteRepository.findByFiltersInverse(any(), any(), any(), any())).thenReturn(new ArrayList<>());
+        when(wasteMapper.toMapData(waste)).thenReturn(mapData);
+
+        MapSnapshotService.Snapshot first = mapSnapshotService.rebuild();
+        MapSnapshotService.Snapshot unchanged = mapSnapshotService.rebuild();
+        mapData.setHidden(true);
+        MapSnapshotService.Snapshot changed = mapSnapshotService.rebuild();
+
+        assertSame(first, unchanged, "The snapshot should be kept if the map data did not change");
+        assertNotEquals(first.getVersion(), changed.getVersion(), "A changed snapshot should get a new version");
+        assertSame(changed, mapSnapshotService.getSnapshot(), "The changed snapshot should replace the old one");
+    }
+
+    @Test
+    @DisplayName("Test rebuilding the snapshot in the background once for a burst of changes")
+    public void testRequestRebuild() {
+        ReflectionTestUtils.setField(mapSnapshotService, "rebuildDelay", Duration.ofMillis(50));
+        Waste waste = new Waste();
+        when(wasteRepository.findByFilters(any(), any(), any(), any())).thenReturn(Arrays.asList(waste));
+        when(wasteRepository.findByFiltersInverse(any(), any(), any(), any())).thenReturn(new ArrayList<>());
+        when(wasteMapper.toMapData(waste)).thenReturn(createMapData(1L, 46.25, 20.15));
+
+        mapSnapshotService.requestRebuild();
+        mapSnapshotService.requestRebuild();
+        mapSnapshotService.requestRebuild();
+
+        verify(wasteRepository, timeout(5000).times(1)).findByFilters(any(), any(), any(), any());
+        verify(wasteRepository, after(200).times(1)).findByFilters(any(), any(), any(), any());
+        assertEquals(1L, mapSnapshotService.getSnapshot().getGrid().size(), "The requested rebuild should be built");
+    }
+
+    @Test
+    @DisplayName("Test that a failed background rebuild keeps the snapshot and allows the next one")
+    public void testRequestRebuildFailure() {
+        ReflectionTestUtils.setField(mapSnapshotService, "rebuildDelay", Duration.ofMillis(10));
+        when(wasteRepository.findByFilters(any(), any(), any(), any())).thenThrow(new IllegalStateException("down"));
+
+        assertDoesNotThrow(() -> mapSnapshotService.requestRebuild(), "A request should not fail with the rebuild");
+        verify(wasteRepository, timeout(5000).times(1)).findByFilters(any(), any(), any(), any());
+        mapSnapshotService.requestRebuild();
+        verify(wasteRepository, timeout(5000).times(2)).findByFilters(any(), any(), any(), any());
+    }
+}
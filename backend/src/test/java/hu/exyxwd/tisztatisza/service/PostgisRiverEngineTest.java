@@ -0,0 +1,147 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.junit.jupiter.api.*;
+import org.locationtech.jts.geom.*;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DriverManagerDataSource;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+import hu.exyxwd.tisztatisza.model.RiverProximity;
+
+/**
+ * Compares the PostGIS river engine with the in-memory river index. Needs a
+ * PostgreSQL database with the PostGIS extension, e.g.
+ * -Dpostgis.url=jdbc:postgresql://localhost:5432/wastedb -Dpostgis.username=...
+ * -Dpostgis.password=..., and is skipped otherwise. The tables are created in
+ * a throwaway schema, which is dropped after the tests.
+ */
+@EnabledIfSystemProperty(named = "postgis.url", matches = ".+")
+public class PostgisRiverEngineTest {
+    private static PostgisRiverEngine engine;
+    private static JdbcTemplate jdbcTemplate;
+    private static JdbcTemplate adminTemplate;
+    private static String schema;
+
+    private final GeometryFactory geometryFactory = new GeometryFactory();
+
+    @BeforeAll
+    public static void init() {
+        DriverManagerDataSource adminDataSource = createDataSource();
+        adminTemplate = new JdbcTemplate(adminDataSource);
+        schema = "test_" + UUID.randomUUID().toString().replace("-", "");
+        adminTemplate.execute("CREATE SCHEMA " + schema);
+
+        // Every connection works in the throwaway schema, PostGIS itself is found in public
+        DriverManagerDataSource dataSource = createDataSource();
+        Properties properties = new Properties();
+        properties.setProperty("currentSchema", schema + ",public");
+        dataSource.setConnectionProperties(properties);
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.execute("CREATE TABLE IF NOT EXISTS wastes (id bigint PRIMARY KEY, "
+                + "latitude numeric(7, 5), longitude numeric(8, 5), river text, river_proximities text)");
+        engine = new PostgisRiverEngine(jdbcTemplate, new DataSourceTransactionManager(dataSource));
+    }
+
+    @AfterAll
+    public static void dropSchema() {
+        adminTemplate.execute("DROP SCHEMA " + schema + " CASCADE");
+    }
+
+    private static DriverManagerDataSource createDataSource() {
+        return new DriverManagerDataSource(System.getProperty("postgis.url"),
+                System.getProperty("postgis.username", "tisztatisza"),
+                System.getProperty("postgis.password", "tisztatisza"));
+    }
+
+    @Test
+    @DisplayName("Test finding the same closest rivers with PostGIS as with the in-memory river index")
+    public void testClosestRiversMatchRiverIndex() {
+        RiverIndex index = new RiverIndex(createRandomRivers(new Random(42), 50, 2000));
+        engine.load(index);
+        Random random = new Random(7);
+        int count = 2000;
+        double[] locations = new double[2 * count];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = random.nextDouble() * 100000;
+        }
+
+        for (int i = 0; i < count; i++) {
+            List<RiverProximity> expected = index.findClosestRivers(locations[2 * i], locations[2 * i + 1], 500, 3);
+            List<RiverProximity> actual = engine.findClosestRivers(locations[2 * i], locations[2 * i + 1], 500, 3);
+            assertEquals(expected.size(), actual.size(), "Both engines should find the same number of rivers");
+            for (int j = 0; j < expected.size(); j++) {
+                assertEquals(expected.get(j).getDistance(), actual.get(j).getDistance(), 1e-6,
+                        "Both engines should find the rivers at the same distances");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test leaving the wastes beyond the latitudes of Web Mercator without a point")
+    public void testPolarWastePoint() {
+        engine.load(new RiverIndex(createRandomRivers(new Random(42), 1, 10)));
+        // Web Mercator has no point for the polar waste, it should not fail the insert
+        jdbcTemplate.update("INSERT INTO wastes (id, latitude, longitude) VALUES (-1, 46.25, 20.15), "
+                + "(-3, 89.50, 20.15)");
+
+        assertNotNull(jdbcTemplate.queryForObject("SELECT geom FROM wastes WHERE id = -1", Object.class),
+                "The waste should have a point");
+        assertNull(jdbcTemplate.queryForObject("SELECT geom FROM wastes WHERE id = -3", Object.class),
+                "The polar waste should have no point");
+    }
+
+    @Test
+    @DisplayName("Test updating the closest rivers of every waste in one statement like the river index")
+    public void testUpdateNullRivers() {
+        RiverIndex index = new RiverIndex(createRandomRivers(new Random(42), 50, 2000));
+        engine.load(index);
+        Random random = new Random(7);
+        ProjectionService projectionService = new ProjectionService();
+        Map<Long, List<RiverProximity>> expected = new HashMap<>();
+        for (long id = 1; id <= 500; id++) {
+            // The rivers lie in the first 100 km from the origin, about 0.9 degrees
+            double latitude = Math.round(random.nextDouble() * 90000) / 100000.0;
+            double longitude = Math.round(random.nextDouble() * 90000) / 100000.0;
+            jdbcTemplate.update("INSERT INTO wastes (id, latitude, longitude) VALUES (?, ?, ?)", id, latitude,
+                    longitude);
+            Coordinate location = projectionService.toWebMercator(longitude, latitude);
+            expected.put(id, index.findClosestRivers(location.x, location.y, 500, 3));
+        }
+
+        engine.updateNullRivers(500, 3);
+
+        jdbcTemplate.query("SELECT id, river, river_proximities FROM wastes WHERE id > 0", rs -> {
+            List<RiverProximity> closestRivers = expected.get(rs.getLong("id"));
+            List<RiverProximity> actual = RiverProximity.parse(rs.getString("river_proximities"));
+            assertEquals(closestRivers.isEmpty() ? "" : closestRivers.get(0).getRiver(), rs.getString("river"),
+                    "The river of the waste does not match the river index");
+            assertEquals(closestRivers.size(), actual.size(), "Both engines should find the same number of rivers");
+            for (int j = 0; j < closestRivers.size(); j++) {
+                assertEquals(closestRivers.get(j).getDistance(), actual.get(j).getDistance(), 0.1,
+                        "Both engines should find the rivers at the same distances");
+            }
+        });
+    }
+
+    /** Creates random walks of the given number of points in a 100 km square. */
+    private List<RiverIndex.River> createRandomRivers(Random random, int riverCount, int pointCount) {
+        List<RiverIndex.River> rivers = new ArrayList<>();
+        for (int i = 0; i < riverCount; i++) {
+            Coordinate[] coordinates = new Coordinate[pointCount];
+            double x = random.nextDouble() * 100000;
+            double y = random.nextDouble() * 100000;
+            for (int j = 0; j < pointCount; j++) {
+                coordinates[j] = new Coordinate(x, y);
+                x += random.nextDouble() * 100 - 40;
+                y += random.nextDouble() * 100 - 50;
+            }
+            rivers.add(new RiverIndex.River(geometryFactory.createLineString(coordinates), "RIVER " + i));
+        }
+        return rivers;
+    }
+}
@@ -0,0 +1,55 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.junit.jupiter.api.*;
+import org.locationtech.jts.geom.*;
+import org.geotools.referencing.CRS;
+import org.opengis.referencing.operation.MathTransform;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ProjectionServiceTest {
+    private ProjectionService projectionService;
+
+    @BeforeEach
+    public void init() {
+        projectionService = new ProjectionService();
+    }
+
+    @Test
+    @DisplayName("Test the closed-form projection against GeoTools")
+    public void testFastPathAccuracy() throws Exception {
+        MathTransform transform = CRS.findMathTransform(CRS.decode("EPSG:4326", true), CRS.decode("EPSG:3857"),
+                true);
+
+        assertTrue(projectionService.isFastPath(), "The closed-form projection should match GeoTools");
+        for (double longitude = -180; longitude <= 180; longitude += 7.3) {
+            for (double latitude = -85; latitude <= 85; latitude += 3.1) {
+                double[] expected = new double[2];
+                transform.transform(new double[] { longitude, latitude }, 0, expected, 0, 1);
+                Coordinate actual = projectionService.toWebMercator(longitude, latitude);
+
+                assertEquals(expected[0], actual.x, ProjectionService.FAST_PATH_TOLERANCE,
+                        "The projected x does not match GeoTools at " + longitude + ", " + latitude);
+                assertEquals(expected[1], actual.y, ProjectionService.FAST_PATH_TOLERANCE,
+                        "The projected y does not match GeoTools at " + longitude + ", " + latitude);
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test reprojecting coordinates in bulk")
+    public void testBulkProjection() {
+        double[] lonLat = { 19.04, 47.50, 20.15, 46.25, 0, 0 };
+        double[] mercator = new double[lonLat.length];
+
+        projectionService.toWebMercator(lonLat, mercator, 3);
+
+        for (int i = 0; i < 3; i++) {
+            Coordinate single = projectionService.toWebMercator(lonLat[2 * i], lonLat[2 * i + 1]);
+            assertEquals(single.x, mercator[2 * i], 0, "The bulk x does not match the single projection");
+            assertEquals(single.y, mercator[2 * i + 1], 0, "The bulk y does not match the single projection");
+        }
+        assertEquals(0, mercator[4], 1e-9, "The origin should be projected to zero");
+        assertEquals(0, mercator[5], 1e-9, "The origin should be projected to zero");
+    }
+}
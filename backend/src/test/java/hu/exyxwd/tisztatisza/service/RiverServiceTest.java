@@ -2,24 +2,40 @@ package hu.exyxwd.tisztatisza.service;
 
 import org.mockito.*;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.*;
 import org.locationtech.jts.geom.*;
+import org.locationtech.jts.index.strtree.STRtree;
 import org.geotools.referencing.CRS;
 import org.geotools.geometry.jts.JTS;
 import org.opengis.referencing.operation.MathTransform;
 import org.opengis.referencing.crs.CoordinateReferenceSystem;
 
+import static org.mockito.Mockito.*;
 import static org.junit.jupiter.api.Assertions.*;
 
-import java.util.Map;
+import java.util.*;
+import java.nio.file.Path;
+import java.nio.charset.StandardCharsets;
 import java.math.BigDecimal;
 
-import hu.exyxwd.tisztatisza.model.Waste;
+import hu.exyxwd.tisztatisza.model.*;
+import hu.exyxwd.tisztatisza.dto.WasteLocationDTO;
+import hu.exyxwd.tisztatisza.repository.*;
 
 public class RiverServiceTest {
     
     @InjectMocks
     private RiverService riverService;
 
+    @Spy
+    private ProjectionService projectionService = new ProjectionService();
+
+    @Mock
+    private WasteRepository wasteRepository;
+
+    @Mock
+    private WasteBatchRepository wasteBatchRepository;
+
     private GeometryFactory geometryFactory = new GeometryFactory();
 
     @BeforeEach
@@ -33,11 +49,11 @@ public class RiverServiceTest {
         riverService.loadRivers();
 
         CoordinateReferenceSystem sourceCRS = CRS.decode("EPSG:3857");
-        CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:4326");
+        CoordinateReferenceSystem targetCRS = CRS.decode("EPSG:4326", true);
         MathTransform transform = CRS.findMathTransform(sourceCRS, targetCRS);
 
-        outerLoop: for (Map.Entry<Geometry, String> entry : riverService.getTransformedRivers().entrySet()) {
-            Geometry targetGeometry = JTS.transform(entry.getKey(), transform);
+        outerLoop: for (RiverIndex.River river : riverService.getRiverIndex().getRivers()) {
+            Geometry targetGeometry = JTS.transform(river.getGeometry(), transform);
             Coordinate transformedCoordinate = targetGeometry.getCoordinate();
 
             if (transformedCoordinate.x < -180 || transformedCoordinate.x > 180 || transformedCoordinate.y < -90
@@ -50,20 +66,311 @@ public class RiverServiceTest {
             waste.setLatitude(BigDecimal.valueOf(transformedCoordinate.y));
             waste.setLongitude(BigDecimal.valueOf(transformedCoordinate.x));
 
-            CoordinateReferenceSystem sourceCRSBack = CRS.decode("EPSG:4326");
+            CoordinateReferenceSystem sourceCRSBack = CRS.decode("EPSG:4326", true);
             CoordinateReferenceSystem targetCRSBack = CRS.decode("EPSG:3857");
             MathTransform transformBack = CRS.findMathTransform(sourceCRSBack, targetCRSBack);
 
             Point selectedLocation = (Point) JTS.transform(geometryFactory.createPoint(transformedCoordinate),
                     transformBack);
-            for (Map.Entry<Geometry, String> otherEntry : riverService.getTransformedRivers().entrySet()) {
-                if (!entry.equals(otherEntry) && selectedLocation.distance(otherEntry.getKey()) < 1) {
+            for (RiverIndex.River otherRiver : riverService.getRiverIndex().getRivers()) {
+                if (river != otherRiver && selectedLocation.distance(otherRiver.getGeometry()) < 1) {
                     continue outerLoop;
                 }
             }
 
             String closestRiver = riverService.getClosestRiver(waste, 1);
-            assertEquals(entry.getValue(), closestRiver, "Closest river is not the expected value");
+            assertEquals(river.getName(), closestRiver, "Closest river is not the expected value");
+        }
+    }
+
+    @Test
+    @DisplayName("Test getting the closest river from the river index within the threshold")
+    public void testGetClosestRiverFromIndex() {
+        LineString tisza = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.14, 46.25), new Coordinate(20.16, 46.25) }, geometryFactory);
+        LineString maros = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.50, 46.20), new Coordinate(20.60, 46.20) }, geometryFactory);
+        riverService.setRiverIndex(new RiverIndex(
+                Arrays.asList(new RiverIndex.River(tisza, "TISZA"), new RiverIndex.River(maros, "MAROS"))));
+
+        Waste nearby = new Waste();
+        nearby.setLongitude(BigDecimal.valueOf(20.15));
+        nearby.setLatitude(BigDecimal.valueOf(46.2501));
+        Waste distant = new Waste();
+        distant.setLongitude(BigDecimal.valueOf(20.30));
+        distant.setLatitude(BigDecimal.valueOf(46.30));
+
+        assertEquals("TISZA", riverService.getClosestRiver(nearby, 500), "Closest river is not the expected value");
+        assertEquals("", riverService.getClosestRiver(distant, 500), "No river should be found within the threshold");
+    }
+
+    @Test
+    @DisplayName("Test updating the rivers of the wastes without a calculated river in batches")
+    public void testUpdateNullRivers() {
+        LineString tisza = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.14, 46.25), new Coordinate(20.16, 46.25) }, geometryFactory);
+        riverService.setRiverIndex(new RiverIndex(Arrays.asList(new RiverIndex.River(tisza, "TISZA"))));
+        when(wasteRepository.findAllWithoutRiver()).thenReturn(Arrays.asList(
+                new WasteLocationDTO(1L, BigDecimal.valueOf(46.2501), BigDecimal.valueOf(20.15)),
+                new WasteLocationDTO(2L, BigDecimal.valueOf(46.30), BigDecimal.valueOf(20.30))));
+
+        riverService.updateNullRivers();
+
+        ArgumentCaptor<String[]> proximities = ArgumentCaptor.forClass(String[].class);
+        verify(wasteBatchRepository).updateRivers(aryEq(new long[] { 1L, 2L }), aryEq(new String[] { "TISZA", "" }),
+                proximities.capture());
+        assertEquals("TISZA", RiverProximity.parse(proximities.getValue()[0]).get(0).getRiver(),
+                "The closest rivers do not match the closest river");
+        assertEquals("", proximities.getValue()[1], "No river should be found within the threshold");
+        verify(wasteRepository, never()).save(any(Waste.class));
+    }
+
+    @Test
+    @DisplayName("Test leaving the update of the rivers to the database river engine")
+    public void testUpdateNullRiversInDatabase() {
+        LineString tisza = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.14, 46.25), new Coordinate(20.16, 46.25) }, geometryFactory);
+        riverService.setRiverIndex(new RiverIndex(Arrays.asList(new RiverIndex.River(tisza, "TISZA"))));
+        riverService.postgisRiverEngine = mock(PostgisRiverEngine.class);
+        when(riverService.postgisRiverEngine.isLoaded()).thenReturn(true);
+
+        riverService.updateNullRivers();
+
+        verify(riverService.postgisRiverEngine).updateNullRivers(500, 3);
+        verifyNoInteractions(wasteRepository, wasteBatchRepository);
+    }
+
+    @Test
+    @DisplayName("Test getting the closest rivers with their distances and chainages")
+    public void testGetClosestRivers() {
+        LineString tisza = projectionService.toWebMercator(new Coordinate[] { new Coordinate(20.14, 46.25),
+                new Coordinate(20.15, 46.25), new Coordinate(20.16, 46.25) }, geometryFactory);
+        LineString maros = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.152, 46.2495), new Coordinate(20.152, 46.24) }, geometryFactory);
+        LineString koros = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.50, 46.20), new Coordinate(20.60, 46.20) }, geometryFactory);
+        // The second line string of the Tisza is farther than the first one
+        LineString tiszaBranch = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.14, 46.2485), new Coordinate(20.16, 46.2485) }, geometryFactory);
+        riverService.setRiverIndex(new RiverIndex(Arrays.asList(new RiverIndex.River(tisza, "TISZA"),
+                new RiverIndex.River(maros, "MAROS"), new RiverIndex.River(koros, "KOROS"),
+                new RiverIndex.River(tiszaBranch, "TISZA"))));
+        Waste waste = new Waste();
+        waste.setLongitude(BigDecimal.valueOf(20.152));
+        waste.setLatitude(BigDecimal.valueOf(46.2499));
+
+        List<RiverProximity> closestRivers = riverService.getClosestRivers(waste.getLatitude(),
+                waste.getLongitude(), 500);
+
+        Point location = geometryFactory.createPoint(projectionService.toWebMercator(20.152, 46.2499));
+        // Web Mercator lengths are scaled back to the ground by the cosine of the latitude
+        double tiszaScale = Math.cos(Math.toRadians(46.25));
+        assertEquals(2, closestRivers.size(), "Every river within the threshold should be found once");
+        assertEquals("TISZA", closestRivers.get(0).getRiver(), "The closest river is not the expected value");
+        assertEquals(location.distance(tisza) * tiszaScale, closestRivers.get(0).getDistance(), 1e-6,
+                "The distance does not match the expected value");
+        // The location is projected onto the second segment of the Tisza
+        assertEquals((tisza.getCoordinateN(0).distance(tisza.getCoordinateN(1)) + location.getX()
+                - tisza.getCoordinateN(1).x) * tiszaScale, closestRivers.get(0).getChainage(), 1e-6,
+                "The chainage does not match the expected value");
+        assertEquals("MAROS", closestRivers.get(1).getRiver(), "The second closest river is not the expected value");
+        assertEquals(location.distance(maros) * Math.cos(Math.toRadians(46.2495)), closestRivers.get(1).getDistance(),
+                1e-6, "The distance does not match the expected value");
+        assertEquals(0, closestRivers.get(1).getChainage(), 1e-6, "The chainage does not match the expected value");
+
+        riverService.assignClosestRivers(waste, 500);
+        assertEquals("TISZA", waste.getRiver(), "The closest river is not the expected value");
+        assertEquals(riverService.getClosestRiver(waste, 500), waste.getRiver(),
+                "The closest rivers should agree with the closest river");
+        List<RiverProximity> stored = RiverProximity.parse(waste.getRiverProximities());
+        assertEquals(2, stored.size(), "Every closest river should be stored");
+        assertEquals("MAROS", stored.get(1).getRiver(), "The stored river does not match expected value");
+        assertEquals(Math.round(closestRivers.get(1).getDistance() * 10) / 10.0, stored.get(1).getDistance(),
+                "The stored distance should be rounded to decimeters");
+    }
+
+    @Test
+    @DisplayName("Test measuring the chainages along the connected ways of a river")
+    public void testChainageAlongWays() {
+        LineString upper = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.10, 46.25), new Coordinate(20.12, 46.25) }, geometryFactory);
+        LineString lower = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.12, 46.25), new Coordinate(20.14, 46.25) }, geometryFactory);
+        // A tributary ending at the same point belongs to another river
+        LineString tributary = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.12, 46.30), new Coordinate(20.12, 46.25) }, geometryFactory);
+        RiverIndex index = new RiverIndex(Arrays.asList(new RiverIndex.River(lower, "TISZA"),
+                new RiverIndex.River(tributary, "MAROS"), new RiverIndex.River(upper, "TISZA")));
+        Coordinate location = projectionService.toWebMercator(20.13, 46.2501);
+
+        List<RiverProximity> closestRivers = index.findClosestRivers(location.x, location.y, 500, 1);
+
+        double scale = Math.cos(Math.toRadians(46.25));
+        assertEquals(1, closestRivers.size(), "The closest river should be found");
+        assertEquals((upper.getLength() + location.x - lower.getCoordinateN(0).x) * scale,
+                closestRivers.get(0).getChainage(), 1e-6, "The chainage should continue from the upstream way");
+    }
+
+    @Test
+    @DisplayName("Test writing the rivers into a binary river index and mapping it back")
+    // A mapped file cannot be deleted on Windows until the mapping is collected
+    public void testRiverIndexFile(@TempDir(cleanup = CleanupMode.NEVER) Path directory) throws Exception {
+        LineString tisza = projectionService.toWebMercator(new Coordinate[] { new Coordinate(20.14, 46.25),
+                new Coordinate(20.16, 46.25), new Coordinate(20.17, 46.26) }, geometryFactory);
+        LineString maros = projectionService.toWebMercator(
+                new Coordinate[] { new Coordinate(20.50, 46.20), new Coordinate(20.60, 46.20) }, geometryFactory);
+        RiverIndex index = new RiverIndex(Arrays.asList(new RiverIndex.River(tisza, "TISZA"),
+                new RiverIndex.River(maros, "MAROS"), new RiverIndex.River(tisza.reverse(), "TISZA")));
+        Path file = directory.resolve("osm_rivers.bin");
+
+        RiverIndexFile.write(index, 42, file);
+        RiverIndex mapped = RiverIndexFile.read(file, geometryFactory);
+
+        assertEquals(42, RiverIndexFile.readSourceModified(file), "The source modification time does not match");
+        assertEquals(index.getRivers().size(), mapped.getRivers().size(), "Every river should be mapped");
+        for (int i = 0; i < index.getRivers().size(); i++) {
+            assertEquals(index.getRivers().get(i).getName(), mapped.getRivers().get(i).getName(),
+                    "The mapped river name does not match expected value");
+            assertTrue(index.getRivers().get(i).getGeometry().equalsExact(mapped.getRivers().get(i).getGeometry()),
+                    "The mapped river coordinates do not match expected value");
+        }
+        assertSame(mapped.getRivers().get(0).getName(), mapped.getRivers().get(2).getName(),
+                "The river names should be interned");
+
+        List<RiverProximity> expected = index.findClosestRivers(tisza.getCoordinateN(1).x + 100,
+                tisza.getCoordinateN(1).y + 10, 500, 2);
+        List<RiverProximity> actual = mapped.findClosestRivers(tisza.getCoordinateN(1).x + 100,
+                tisza.getCoordinateN(1).y + 10, 500, 2);
+        assertEquals(expected.size(), actual.size(), "The mapped index should find the same rivers");
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).getChainage(), actual.get(i).getChainage(),
+                    "The mapped chainages do not match expected value");
+        }
+
+        riverService.setRiverIndex(mapped);
+        Waste nearby = new Waste();
+        nearby.setLongitude(BigDecimal.valueOf(20.15));
+        nearby.setLatitude(BigDecimal.valueOf(46.2501));
+        assertEquals("TISZA", riverService.getClosestRiver(nearby, 500), "Closest river is not the expected value");
+    }
+
+    @Test
+    @DisplayName("Test the segment distance kernel against the JTS distance of the segments")
+    public void testSegmentDistance() {
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            Coordinate start = new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 1000);
+            // Some segments are degenerate points
+            Coordinate end = i % 10 == 0 ? start.copy()
+                    : new Coordinate(random.nextDouble() * 1000, random.nextDouble() * 1000);
+            Point point = geometryFactory.createPoint(new Coordinate(random.nextDouble() * 1000,
+                    random.nextDouble() * 1000));
+
+            double expected = point.distance(geometryFactory.createLineString(new Coordinate[] { start, end }));
+            double distance = Math.sqrt(RiverIndex.segmentDistanceSquared(point.getX(), point.getY(), start.x,
+                    start.y, end.x, end.y));
+            assertEquals(expected, distance, 1e-6, "The segment distance does not match the JTS distance");
+        }
+    }
+
+    @Test
+    @DisplayName("Test the closest river of the segment index against the JTS distance of every river")
+    public void testFindClosestAccuracy() {
+        List<RiverIndex.River> rivers = createRandomRivers(new Random(42), 50, 500);
+        RiverIndex index = new RiverIndex(rivers);
+        Random random = new Random(7);
+        double threshold = 500;
+
+        for (int i = 0; i < 2000; i++) {
+            Point location = geometryFactory.createPoint(new Coordinate(random.nextDouble() * 100000,
+                    random.nextDouble() * 100000));
+            double expected = Double.POSITIVE_INFINITY;
+            for (RiverIndex.River river : rivers) {
+                expected = Math.min(expected, location.distance(river.getGeometry()));
+            }
+
+            RiverIndex.River closest = index.findClosest(location.getX(), location.getY(), threshold);
+            if (expected > threshold) {
+                assertNull(closest, "No river should be found within the threshold");
+            } else {
+                assertNotNull(closest, "A river should be found within the threshold");
+                assertEquals(expected, location.distance(closest.getGeometry()), 1e-6,
+                        "The found river is not the closest one");
+            }
+        }
+    }
+
+    @Test
+    @DisplayName("Test finding a river with the segment index for the same locations as the STRtree of the rivers")
+    public void testFindClosestMatchesGeometryTree() {
+        List<RiverIndex.River> rivers = createRandomRivers(new Random(42), 20, 5000);
+        RiverIndex index = new RiverIndex(rivers);
+        STRtree tree = new STRtree();
+        for (RiverIndex.River river : rivers) {
+            tree.insert(river.getGeometry().getEnvelopeInternal(), river);
+        }
+        tree.build();
+        Random random = new Random(7);
+        int count = 5000;
+        double[] locations = new double[2 * count];
+        for (int i = 0; i < locations.length; i++) {
+            locations[i] = random.nextDouble() * 100000;
+        }
+
+        int geometryFound = 0;
+        for (int i = 0; i < count; i++) {
+            Point location = geometryFactory.createPoint(new Coordinate(locations[2 * i], locations[2 * i + 1]));
+            Envelope searchEnvelope = new Envelope(location.getCoordinate());
+            searchEnvelope.expandBy(500);
+            for (Object item : tree.query(searchEnvelope)) {
+                if (location.distance(((RiverIndex.River) item).getGeometry()) <= 500) {
+                    geometryFound++;
+                    break;
+                }
+            }
+        }
+
+        int segmentFound = 0;
+        for (int i = 0; i < count; i++) {
+            if (index.findClosest(locations[2 * i], locations[2 * i + 1], 500) != null) {
+                segmentFound++;
+            }
+        }
+
+        assertEquals(geometryFound, segmentFound, "Both lookups should find a river for the same locations");
+    }
+
+    @Test
+    @DisplayName("Test parsing the rivers into a new index without touching the current one")
+    public void testParseRivers() throws Exception {
+        String geojson = "{\"type\":\"FeatureCollection\",\"features\":[{\"type\":\"Feature\","
+                + "\"properties\":{\"name\":\"Tisza, Tisa\"},\"geometry\":{\"type\":\"MultiLineString\","
+                + "\"coordinates\":[[[20.14,46.25],[20.16,46.25]],[[20.16,46.25],[20.17,46.26]]]}}]}";
+        RiverIndex current = riverService.getRiverIndex();
+
+        RiverIndex parsed = riverService.parseRivers(geojson.getBytes(StandardCharsets.UTF_8));
+
+        assertEquals(2, parsed.getRivers().size(), "Every line string of the river should be indexed");
+        assertEquals("TISZA", parsed.getRivers().get(0).getName(), "The river name does not match expected value");
+        assertSame(current, riverService.getRiverIndex(), "Parsing should not replace the current index");
+        assertThrows(UnsupportedOperationException.class, () -> parsed.getRivers().clear(),
+                "The river index should be immutable");
+    }
+
+    /** Creates random walks of the given number of points in a 100 km square. */
+    private List<RiverIndex.River> createRandomRivers(Random random, int riverCount, int pointCount) {
+        List<RiverIndex.River> rivers = new ArrayList<>();
+        for (int i = 0; i < riverCount; i++) {
+            Coordinate[] coordinates = new Coordinate[pointCount];
+            double x = random.nextDouble() * 100000;
+            double y = random.nextDouble() * 100000;
+            for (int j = 0; j < pointCount; j++) {
+                coordinates[j] = new Coordinate(x, y);
+                x += random.nextDouble() * 100 - 40;
+                y += random.nextDouble() * 100 - 50;
+            }
+            rivers.add(new RiverIndex.River(geometryFactory.createLineString(coordinates), "RIVER " + i));
         }
+        return rivers;
     }
 }
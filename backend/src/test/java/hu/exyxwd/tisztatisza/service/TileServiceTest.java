@@ -0,0 +1,125 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.locationtech.jts.geom.*;
+
+import org.mockito.Mockito;
+import org.junit.jupiter.api.*;
+
+import static org.mockito.Mockito.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+import java.time.Instant;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+
+import hu.exyxwd.tisztatisza.dto.MapDataDTO;
+import hu.exyxwd.tisztatisza.model.Waste;
+
+public class TileServiceTest {
+    private MapSnapshotService mapSnapshotService;
+    private RiverService riverService;
+    private MapGrid grid;
+
+    @BeforeEach
+    public void init() {
+        MapDataDTO waste = new MapDataDTO();
+        waste.setId(1005L);
+        waste.setLatitude(new BigDecimal("46.25312"));
+        waste.setLongitude(new BigDecimal("20.14856"));
+        waste.setSize(Waste.WasteSize.BAG);
+        waste.setTypes(EnumSet.of(Waste.WasteType.PLASTIC));
+        grid = new MapGrid(Arrays.asList(waste), MapGrid.DEFAULT_CELL_SIZE);
+
+        GeometryFactory geometryFactory = new GeometryFactory();
+        LineString tisza = geometryFactory.createLineString(new Coordinate[] {
+                toWebMercator(46.20, 20.10), toWebMercator(46.25, 20.15), toWebMercator(46.30, 20.20) });
+        mapSnapshotService = Mockito.mock(MapSnapshotService.class);
+        riverService = Mockito.mock(RiverService.class);
+        when(mapSnapshotService.getSnapshot()).thenReturn(createSnapshot("v-1"));
+        when(riverService.getRiverIndex()).thenReturn(new RiverIndex(Arrays.asList(new RiverIndex.River(tisza,
+                "TISZA"))));
+    }
+
+    @Test
+    @DisplayName("Test rendering the wastes and the rivers of a tile")
+    public void testGetTile() {
+        TileService tileService = new TileService(mapSnapshotService, riverService, 1 << 20);
+
+        TileService.Tile wastes = tileService.getTile(10, 569, 363, false);
+        TileService.Tile withRivers = tileService.getTile(10, 569, 363, true);
+        TileService.Tile elsewhere = tileService.getTile(10, 100, 100, true);
+
+        assertTrue(contains(wastes.getData(), TileService.WASTES_LAYER), "The tile should have the wastes layer");
+        assertTrue(contains(wastes.getData(), "PLASTIC"), "The tile should have the attributes of the waste");
+        assertFalse(contains(wastes.getData(), "TISZA"), "The tile should not have the rivers unless asked");
+        assertTrue(contains(withRivers.getData(), TileService.RIVERS_LAYER), "The tile should have the rivers layer");
+        assertTrue(contains(withRivers.getData(), "TISZA"), "The tile should have the name of the river");
+        assertNotEquals(wastes.getVersion(), withRivers.getVersion(),
+                "The tiles with and without rivers should have different versions");
+        assertEquals(0, elsewhere.getData().length, "A tile without wastes and rivers should be empty");
+        assertTrue(tileService.getTile(0, 0, 0, false).getData().length > 0,
+                "The tile of the whole world should have the waste");
+    }
+
+    @Test
+    @DisplayName("Test merging the wastes falling on the same unit of a tile")
+    public void testGetTileMergesWastes() {
+        MapDataDTO first = new MapDataDTO();
+        first.setId(1L);
+        first.setLatitude(new BigDecimal("46.25312"));
+        first.setLongitude(new BigDecimal("20.14856"));
+        first.setTypes(EnumSet.of(Waste.WasteType.PLASTIC));
+        // About 100 meters away, on the same unit of the tile of the whole world
+        MapDataDTO nearby = new MapDataDTO();
+        nearby.setId(2L);
+        nearby.setLatitude(new BigDecimal("46.25400"));
+        nearby.setLongitude(new BigDecimal("20.14800"));
+        nearby.setTypes(EnumSet.of(Waste.WasteType.METAL));
+        grid = new MapGrid(Arrays.asList(first, nearby), MapGrid.DEFAULT_CELL_SIZE);
+        when(mapSnapshotService.getSnapshot()).thenReturn(createSnapshot("v-1"));
+        TileService tileService = new TileService(mapSnapshotService, riverService, 1 << 20);
+
+        byte[] world = tileService.getTile(0, 0, 0, false).getData();
+        byte[] street = tileService.getTile(16, 36435, 23248, false).getData();
+
+        assertTrue(contains(world, "PLASTIC"), "The first waste of a tile unit should be drawn");
+        assertFalse(contains(world, "METAL"), "A waste on the same tile unit should be merged");
+        assertTrue(contains(street, "PLASTIC") && contains(street, "METAL"),
+                "Wastes on different tile units should both be drawn");
+    }
+
+    @Test
+    @DisplayName("Test caching the tiles by dataset version within the size limit")
+    public void testGetTileCache() {
+        TileService tileService = new TileService(mapSnapshotService, riverService, 1 << 20);
+        TileService tinyCacheService = new TileService(mapSnapshotService, riverService, 1);
+
+        TileService.Tile first = tileService.getTile(10, 569, 363, false);
+        TileService.Tile cached = tileService.getTile(10, 569, 363, false);
+        TileService.Tile evicted = tinyCacheService.getTile(10, 569, 363, false);
+        TileService.Tile notCached = tinyCacheService.getTile(10, 569, 363, false);
+        when(mapSnapshotService.getSnapshot()).thenReturn(createSnapshot("v-2"));
+        TileService.Tile rebuilt = tileService.getTile(10, 569, 363, false);
+
+        assertSame(first.getData(), cached.getData(), "The tile should be served from the cache");
+        assertNotSame(evicted.getData(), notCached.getData(), "A tile larger than the cache should not be kept");
+        assertArrayEquals(evicted.getData(), notCached.getData(), "A rendered tile should always be the same");
+        assertNotSame(first.getData(), rebuilt.getData(), "A new dataset version should render the tile again");
+        assertEquals("v-2", rebuilt.getVersion(), "The tile should have the version of the snapshot");
+    }
+
+    private MapSnapshotService.Snapshot createSnapshot(String version) {
+        return new MapSnapshotService.Snapshot(null, null, grid, MapClusters.EMPTY, MapFilterIndex.EMPTY, version,
+                Instant.now());
+    }
+
+    private static Coordinate toWebMercator(double latitude, double longitude) {
+        return new Coordinate(Math.toRadians(longitude) * 6378137,
+                Math.log(Math.tan(Math.PI / 4 + Math.toRadians(latitude) / 2)) * 6378137);
+    }
+
+    private static boolean contains(byte[] data, String text) {
+        return new String(data, StandardCharsets.ISO_8859_1).contains(text);
+    }
+}
@@ -16,6 +16,9 @@ public class TimedHostWasteServiceTest {
     @Mock
     private RiverService riverService;
 
+    @Mock
+    private MapSnapshotService mapSnapshotService;
+
     @BeforeEach
     public void init() {
         MockitoAnnotations.openMocks(this);
@@ -29,5 +32,6 @@ public class TimedHostWasteServiceTest {
         verify(trashOutService, times(1)).updateDatabase();
         verify(riverService, times(1)).loadRivers();
         verify(riverService, times(1)).updateNullRivers();
+        verify(mapSnapshotService, times(1)).rebuild();
     }
 }
\ No newline at end of file
@@ -5,17 +5,32 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 
 import org.mockito.*;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.*;
+import org.springframework.web.client.RestTemplate;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.test.web.client.*;
 
 import static org.mockito.Mockito.*;
 import static org.junit.jupiter.api.Assertions.*;
+import static org.springframework.test.web.client.match.MockRestRequestMatchers.*;
+import static org.springframework.test.web.client.response.MockRestResponseCreators.*;
 
+import java.io.*;
 import java.util.*;
+import java.nio.file.*;
 import java.math.BigDecimal;
+import java.util.zip.GZIPOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.LocalDateTime;
+import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import hu.exyxwd.tisztatisza.model.*;
+import hu.exyxwd.tisztatisza.dto.WasteFingerprintDTO;
 import hu.exyxwd.tisztatisza.repository.*;
 
 @ExtendWith(MockitoExtension.class)
@@ -30,6 +45,15 @@ class TrashOutServiceTest {
     @Mock
     private UpdateLogRepository updateLogRepository;
 
+    @Mock
+    private SyncCheckpointRepository syncCheckpointRepository;
+
+    @Mock
+    private WasteBatchRepository wasteBatchRepository;
+
+    @Mock
+    private RiverService riverService;
+
     @Test
     @DisplayName("Test the waste parsing method")
     void testParseWaste() {
@@ -65,7 +89,7 @@ class TrashOutServiceTest {
         imagesArray.add(firstImageObject);
         wasteJSON.set("images", imagesArray);
 
-        TrashOutService service = new TrashOutService(null, null);
+        TrashOutService service = new TrashOutService(null, null, null, null, null);
 
         Waste waste = service.parseWaste(wasteJSON);
 
@@ -92,30 +116,355 @@ class TrashOutServiceTest {
                 "Waste image URL does not match expected value");
     }
 
+    @Test
+    @DisplayName("Test processing a streamed waste list")
+    void testProcessWasteList() throws IOException {
+        String wasteList = "[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z") + ","
+                + wasteRecord(2L, "Austria", "2022-01-01T00:00:00Z") + ","
+                + wasteRecord(3L, "Serbia", "2010-01-01T00:00:00Z") + "]";
+        InputStream wasteStream = new ByteArrayInputStream(wasteList.getBytes(StandardCharsets.UTF_8));
+
+        List<Waste> wastesToSave = trashOutService.processWasteList(wasteStream,
+                new WasteFingerprintIndex(new ArrayList<>()), LocalDateTime.parse("2020-01-01T00:00:00"));
+
+        assertEquals(1, wastesToSave.size(), "Only the recent waste in a target country should be saved");
+        assertEquals(1L, wastesToSave.get(0).getId(), "The saved waste ID does not match expected value");
+    }
+
+    @Test
+    @DisplayName("Test detecting changed wastes by their fingerprints")
+    void testProcessWasteListFingerprints() throws IOException {
+        ObjectMapper mapper = new ObjectMapper();
+        Waste unchanged = trashOutService.parseWaste(
+                (ObjectNode) mapper.readTree(wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z")));
+        Waste changed = trashOutService.parseWaste(
+                (ObjectNode) mapper.readTree(wasteRecord(2L, "Hungary", "2021-01-01T00:00:00Z")));
+        WasteFingerprintIndex existingWastes = new WasteFingerprintIndex(Arrays.asList(
+                new WasteFingerprintDTO(1L, unchanged.getFingerprint(), true),
+                new WasteFingerprintDTO(2L, changed.getFingerprint(), true)));
+
+        String wasteList = "[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z") + ","
+                + wasteRecord(2L, "Hungary", "2022-01-01T00:00:00Z") + "]";
+        InputStream wasteStream = new ByteArrayInputStream(wasteList.getBytes(StandardCharsets.UTF_8));
+
+        List<Waste> wastesToSave = trashOutService.processWasteList(wasteStream, existingWastes,
+                LocalDateTime.parse("2020-01-01T00:00:00"));
+
+        assertEquals(1, wastesToSave.size(), "Only the changed waste should be saved");
+        assertEquals(2L, wastesToSave.get(0).getId(), "The saved waste ID does not match expected value");
+        assertTrue(wastesToSave.get(0).isHidden(), "The hidden flag of the stored waste should be kept");
+        assertEquals(unchanged.computeFingerprint(), unchanged.getFingerprint(),
+                "The fingerprint of a parsed waste does not match expected value");
+    }
+
+    @Test
+    @DisplayName("Test running the ingestion pipeline over streamed waste lists")
+    void testIngestionPipeline() throws InterruptedException {
+        Map<Waste.WasteCountry, String> wasteLists = Map.of(
+                Waste.WasteCountry.HUNGARY, "[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z") + ","
+                        + wasteRecord(2L, "Austria", "2022-01-01T00:00:00Z") + "]",
+                Waste.WasteCountry.SERBIA, "[" + wasteRecord(3L, "Serbia", "2010-01-01T00:00:00Z") + ","
+                        + wasteRecord(4L, "Serbia", "2022-01-01T00:00:00Z") + "]");
+        WasteFingerprintIndex existingWastes = new WasteFingerprintIndex(new ArrayList<>());
+        List<Waste> savedWastes = Collections.synchronizedList(new ArrayList<>());
+        Set<Waste.WasteCountry> savedCountries = Collections.synchronizedSet(EnumSet.noneOf(Waste.WasteCountry.class));
+
+        IngestionPipeline pipeline = new IngestionPipeline(1, 2, 2, 2, 10, trashOutService::parseWaste,
+                waste -> trashOutService.isChanged(waste, existingWastes, LocalDateTime.parse("2020-01-01T00:00:00")),
+                trashOutService::assignRiver, wastes -> {
+                    savedWastes.addAll(wastes);
+                    return wastes.size();
+                }, savedCountries::add);
+        boolean saved = pipeline.run(wasteLists.keySet(), (country, sink) -> {
+            try {
+                trashOutService.readWasteRecords(
+                        new ByteArrayInputStream(wasteLists.get(country).getBytes(StandardCharsets.UTF_8)), sink);
+                return true;
+            } catch (IOException e) {
+                return false;
+            }
+        });
+
+        assertTrue(saved, "The pipeline should finish successfully");
+        assertEquals(Set.of(1L, 4L), savedWastes.stream().map(Waste::getId).collect(Collectors.toSet()),
+                "Only the recent wastes in a target country should be saved");
+        assertEquals(wasteLists.keySet(), savedCountries, "Every country should be marked as saved");
+        assertEquals(4, pipeline.getStats().get(0).getReceived(), "Every record should be fetched");
+        assertEquals(2, pipeline.getStats().get(4).getEmitted(), "Every changed waste should be written");
+    }
+
+    @Test
+    @DisplayName("Test stopping the ingestion pipeline when a country cannot be fetched")
+    void testIngestionPipelineFailure() throws InterruptedException {
+        Set<Waste.WasteCountry> savedCountries = Collections.synchronizedSet(EnumSet.noneOf(Waste.WasteCountry.class));
+        IngestionPipeline pipeline = new IngestionPipeline(1, 2, 1, 1, 10, trashOutService::parseWaste,
+                waste -> true, waste -> {
+                }, List::size, savedCountries::add);
+
+        boolean saved = pipeline.run(EnumSet.of(Waste.WasteCountry.HUNGARY, Waste.WasteCountry.SERBIA),
+                (country, sink) -> country != Waste.WasteCountry.SERBIA);
+
+        assertFalse(saved, "The pipeline should fail if a country cannot be fetched");
+        assertFalse(savedCountries.contains(Waste.WasteCountry.SERBIA), "The failed country should not be saved");
+    }
+
+    @Test
+    @DisplayName("Test retrying the rate limited and failed requests to TrashOut")
+    void testGetWasteListRetry() {
+        ReflectionTestUtils.setField(trashOutService, "fetchBackoff", Duration.ofMillis(1));
+        MockRestServiceServer server = MockRestServiceServer.bindTo(getRestTemplate()).build();
+        String url = trashOutService.getTrashOutUrl(new SyncCheckpoint("trashout"), true, Waste.WasteCountry.HUNGARY);
+        HttpHeaders retryAfter = new HttpHeaders();
+        retryAfter.set(HttpHeaders.RETRY_AFTER, "0");
+        server.expect(requestTo(url)).andExpect(header("x-token", "token"))
+                .andRespond(withStatus(HttpStatus.TOO_MANY_REQUESTS).headers(retryAfter));
+        server.expect(requestTo(url)).andRespond(withServerError());
+        server.expect(requestTo(url)).andRespond(withSuccess("[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z")
+                + "]", MediaType.APPLICATION_JSON));
+
+        List<Long> fetched = new ArrayList<>();
+        boolean success = trashOutService.getWasteListFromTrashOut("token", url,
+                parser -> fetched.add(trashOutService.parseWaste(parser).getId()));
+
+        assertTrue(success, "The wastes should be fetched after the retries");
+        assertEquals(Arrays.asList(1L), fetched, "The fetched wastes do not match expected value");
+        server.verify();
+
+        HttpHeaders longRetryAfter = new HttpHeaders();
+        longRetryAfter.set(HttpHeaders.RETRY_AFTER, "3600");
+        assertEquals(Duration.ofSeconds(2), trashOutService.getRetryDelay(new HttpHeaders(), Duration.ofSeconds(2)),
+                "Without a Retry-After header the backoff should be used");
+        assertEquals(Duration.ofSeconds(2), trashOutService.getRetryDelay(retryAfter, Duration.ofSeconds(2)),
+                "A shorter Retry-After should not shorten the backoff");
+        assertEquals(Duration.ofMinutes(5), trashOutService.getRetryDelay(longRetryAfter, Duration.ofSeconds(2)),
+                "A long Retry-After should be capped");
+    }
+
+    @Test
+    @DisplayName("Test not retrying a waste list that breaks after some of its wastes were received")
+    void testGetWasteListBrokenStream() {
+        ReflectionTestUtils.setField(trashOutService, "fetchBackoff", Duration.ofMillis(1));
+        MockRestServiceServer server = MockRestServiceServer.bindTo(getRestTemplate()).build();
+        String url = trashOutService.getTrashOutUrl(new SyncCheckpoint("trashout"), true, Waste.WasteCountry.HUNGARY);
+        // The stream ends in the middle of the second waste
+        server.expect(ExpectedCount.once(), requestTo(url)).andRespond(withSuccess(
+                "[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z") + ",{\"id\":2,", MediaType.APPLICATION_JSON));
+
+        List<Long> fetched = new ArrayList<>();
+        boolean success = trashOutService.getWasteListFromTrashOut("token", url,
+                parser -> fetched.add(trashOutService.parseWaste(parser).getId()));
+
+        assertFalse(success, "A broken waste list should fail the country");
+        assertEquals(Arrays.asList(1L), fetched, "The received wastes should not be passed on again");
+        server.verify();
+    }
+
+    @Test
+    @DisplayName("Test fetching the countries concurrently from TrashOut and merging their wastes")
+    void testIngestWastesFromTrashOut() {
+        ReflectionTestUtils.setField(trashOutService, "fetchParallelism", 2);
+        ReflectionTestUtils.setField(trashOutService, "chunkSize", 10);
+        ReflectionTestUtils.setField(trashOutService, "pipelineQueueCapacity", 10);
+        MockRestServiceServer server = MockRestServiceServer.bindTo(getRestTemplate()).ignoreExpectOrder(true).build();
+        SyncCheckpoint checkpoint = new SyncCheckpoint("trashout");
+        server.expect(requestTo(trashOutService.getTrashOutUrl(checkpoint, true, Waste.WasteCountry.HUNGARY)))
+                .andRespond(withSuccess("[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z") + "]",
+                        MediaType.APPLICATION_JSON));
+        server.expect(requestTo(trashOutService.getTrashOutUrl(checkpoint, true, Waste.WasteCountry.SERBIA)))
+                .andRespond(withSuccess("[" + wasteRecord(2L, "Serbia", "2022-01-01T00:00:00Z") + "]",
+                        MediaType.APPLICATION_JSON));
+        List<Long> savedWastes = Collections.synchronizedList(new ArrayList<>());
+        when(wasteBatchRepository.upsertAll(anyList())).thenAnswer(invocation -> {
+            List<Waste> wastes = invocation.getArgument(0);
+            wastes.forEach(waste -> savedWastes.add(waste.getId()));
+            return wastes.size();
+        });
+        AtomicInteger updateCount = new AtomicInteger();
+
+        boolean saved = trashOutService.ingestWastes(EnumSet.of(Waste.WasteCountry.HUNGARY, Waste.WasteCountry.SERBIA),
+                (country, sink) -> trashOutService.getWasteListFromTrashOut("token",
+                        trashOutService.getTrashOutUrl(checkpoint, true, country), sink),
+                checkpoint, new WasteFingerprintIndex(new ArrayList<>()), LocalDateTime.parse("2020-01-01T00:00:00"),
+                updateCount);
+
+        assertTrue(saved, "Every country should be fetched and saved");
+        assertEquals(Set.of(1L, 2L), new HashSet<>(savedWastes), "The wastes of every country should be saved");
+        assertEquals(2, updateCount.get(), "Every saved waste should be counted");
+        assertEquals(Set.of("HUNGARY", "SERBIA"), Set.of(checkpoint.getCompletedPartitions().split(",")),
+                "Every country should be recorded in the checkpoint");
+        server.verify();
+    }
+
+    @Test
+    @DisplayName("Test cancelling the ingestion when TrashOut rejects the request of a country")
+    void testIngestWastesFromTrashOutFailure() {
+        ReflectionTestUtils.setField(trashOutService, "fetchParallelism", 2);
+        ReflectionTestUtils.setField(trashOutService, "chunkSize", 10);
+        ReflectionTestUtils.setField(trashOutService, "pipelineQueueCapacity", 10);
+        ReflectionTestUtils.setField(trashOutService, "fetchBackoff", Duration.ofMillis(1));
+        MockRestServiceServer server = MockRestServiceServer.bindTo(getRestTemplate()).ignoreExpectOrder(true).build();
+        SyncCheckpoint checkpoint = new SyncCheckpoint("trashout");
+        // The other country may be cancelled before it is requested
+        server.expect(ExpectedCount.between(0, 1),
+                requestTo(trashOutService.getTrashOutUrl(checkpoint, true, Waste.WasteCountry.HUNGARY)))
+                .andRespond(withSuccess("[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z") + "]",
+                        MediaType.APPLICATION_JSON));
+        // A client error is not retried
+        server.expect(ExpectedCount.once(),
+                requestTo(trashOutService.getTrashOutUrl(checkpoint, true, Waste.WasteCountry.SERBIA)))
+                .andRespond(withBadRequest());
+        lenient().when(wasteBatchRepository.upsertAll(anyList())).thenAnswer(invocation -> {
+            List<Waste> wastes = invocation.getArgument(0);
+            return wastes.size();
+        });
+
+        boolean saved = trashOutService.ingestWastes(EnumSet.of(Waste.WasteCountry.HUNGARY, Waste.WasteCountry.SERBIA),
+                (country, sink) -> trashOutService.getWasteListFromTrashOut("token",
+                        trashOutService.getTrashOutUrl(checkpoint, true, country), sink),
+                checkpoint, new WasteFingerprintIndex(new ArrayList<>()), LocalDateTime.parse("2020-01-01T00:00:00"),
+                new AtomicInteger());
+
+        assertFalse(saved, "The ingestion should fail if a country is rejected");
+        assertFalse(checkpoint.getCompletedPartitions() != null
+                && checkpoint.getCompletedPartitions().contains("SERBIA"), "The rejected country should not be saved");
+        server.verify();
+    }
+
+    private RestTemplate getRestTemplate() {
+        return (RestTemplate) ReflectionTestUtils.getField(trashOutService, "restTemplate");
+    }
+
+    @Test
+    @DisplayName("Test replaying recorded plain and gzipped waste lists")
+    void testReplayWasteList(@TempDir Path directory) throws IOException {
+        String wasteList = "[" + wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z") + ","
+                + wasteRecord(2L, "Serbia", "2022-01-01T00:00:00Z") + "]";
+        Path plain = Files.writeString(directory.resolve("trashout-hungary.json"), wasteList);
+        Path gzipped = directory.resolve("trashout-serbia.json.gz");
+        try (OutputStream out = new GZIPOutputStream(Files.newOutputStream(gzipped))) {
+            out.write(wasteList.getBytes(StandardCharsets.UTF_8));
+        }
+
+        List<Long> replayed = new ArrayList<>();
+        IngestionPipeline.RecordSink sink = parser -> replayed.add(trashOutService.parseWaste(parser).getId());
+        IngestionPipeline.Fetcher fetcher = trashOutService.getReplayFetcher(
+                directory.resolve("trashout-{country}.json").toString(), EnumSet.of(Waste.WasteCountry.HUNGARY));
+
+        assertTrue(fetcher.fetch(Waste.WasteCountry.HUNGARY, sink), "The plain dump should be replayed");
+        assertTrue(trashOutService.replayWasteList(gzipped, sink), "The gzipped dump should be replayed");
+        assertFalse(fetcher.fetch(Waste.WasteCountry.SERBIA, sink), "A missing dump should fail the replay");
+        assertEquals(Arrays.asList(1L, 2L, 1L, 2L), replayed, "The replayed wastes do not match expected value");
+    }
+
+    @Test
+    @DisplayName("Test that a replay keeps its progress apart from the live synchronization")
+    void testReplayCheckpoint(@TempDir Path directory) throws IOException {
+        Path dump = Files.writeString(directory.resolve("trashout.json"),
+                "[" + wasteRecord(1L, "Hungary", "2026-01-01T00:00:00Z") + "]");
+        ReflectionTestUtils.setField(trashOutService, "replayFile", dump.toString());
+        ReflectionTestUtils.setField(trashOutService, "countries", new String[] { "Hungary" });
+        ReflectionTestUtils.setField(trashOutService, "fetchParallelism", 1);
+        ReflectionTestUtils.setField(trashOutService, "chunkSize", 10);
+        ReflectionTestUtils.setField(trashOutService, "pipelineQueueCapacity", 10);
+        when(syncCheckpointRepository.findById("trashout-replay")).thenReturn(Optional.empty());
+        when(wasteBatchRepository.upsertAll(anyList())).thenReturn(1);
+
+        trashOutService.updateDatabase();
+
+        ArgumentCaptor<SyncCheckpoint> saved = ArgumentCaptor.forClass(SyncCheckpoint.class);
+        verify(syncCheckpointRepository, atLeastOnce()).save(saved.capture());
+        verify(syncCheckpointRepository, never()).findById("trashout");
+        assertTrue(saved.getAllValues().stream().allMatch(checkpoint -> checkpoint.getName().equals("trashout-replay")),
+                "A replay should only save its own checkpoint");
+        assertNull(saved.getValue().getRunStartedAt(), "The finished replay should not be resumed");
+    }
+
+    private static String wasteRecord(long id, String country, String updateTime) {
+        return "{\"id\":" + id + ",\"gps\":{\"lat\":47.1,\"long\":19.1,\"area\":{\"country\":\"" + country
+                + "\",\"locality\":\"Szeged\",\"subLocality\":\"\"}},\"types\":[\"plastic\"],\"size\":\"bag\","
+                + "\"note\":\"\",\"status\":\"stillHere\",\"images\":[],\"created\":\"" + updateTime
+                + "\",\"updateTime\":\"" + updateTime + "\"}";
+    }
+
+    @Test
+    @DisplayName("Test skipping wastes outside of the configured countries")
+    void testParseWasteOutsideTargetCountries() throws IOException {
+        ReflectionTestUtils.setField(trashOutService, "countries", new String[] { "Hungary", "Serbia" });
+        ObjectMapper mapper = new ObjectMapper();
+
+        Waste hungarian = trashOutService.parseWaste(
+                (ObjectNode) mapper.readTree(wasteRecord(1L, "Hungary", "2022-01-01T00:00:00Z")));
+        Waste romanian = trashOutService.parseWaste(
+                (ObjectNode) mapper.readTree(wasteRecord(2L, "Romania", "2022-01-01T00:00:00Z")));
+
+        assertNotNull(hungarian, "A waste in a configured country should be parsed");
+        assertNull(romanian, "A waste outside of the configured countries should be skipped");
+        assertEquals(EnumSet.of(Waste.WasteCountry.HUNGARY, Waste.WasteCountry.SERBIA),
+                trashOutService.getTargetCountries(), "The target countries do not match the configuration");
+    }
+
+    @Test
+    @DisplayName("Test choosing between full and incremental synchronization")
+    void testIsFullSyncDue() {
+        ReflectionTestUtils.setField(trashOutService, "incrementalSync", true);
+        ReflectionTestUtils.setField(trashOutService, "fullSyncInterval", Duration.ofDays(1));
+        LocalDateTime now = LocalDateTime.parse("2024-05-10T12:00:00");
+
+        SyncCheckpoint empty = new SyncCheckpoint("trashout");
+        SyncCheckpoint recent = new SyncCheckpoint("trashout");
+        recent.setHighWaterMark(now.minusHours(4));
+        recent.setLastFullSync(now.minusHours(8));
+        SyncCheckpoint stale = new SyncCheckpoint("trashout");
+        stale.setHighWaterMark(now.minusHours(4));
+        stale.setLastFullSync(now.minusDays(2));
+
+        assertTrue(trashOutService.isFullSyncDue(empty, now), "Without a checkpoint a full sync should be due");
+        assertFalse(trashOutService.isFullSyncDue(recent, now), "After a recent full sync an incremental one is due");
+        assertTrue(trashOutService.isFullSyncDue(stale, now), "After the full sync interval a full sync should be due");
+        assertTrue(trashOutService.getTrashOutUrl(recent, false, Waste.WasteCountry.HUNGARY)
+                .endsWith("&geoAreaCountry=Hungary&timeBoundaryFrom=2024-05-10T07:00:00Z"),
+                "The incremental URL should ask for wastes updated since the high-water mark");
+    }
+
+    @Test
+    @DisplayName("Test resuming an interrupted synchronization with the remaining countries")
+    void testResumePartitions() {
+        SyncCheckpoint checkpoint = new SyncCheckpoint("trashout");
+        checkpoint.setRunStartedAt(LocalDateTime.now().minusHours(1));
+        checkpoint.setRunFullSync(true);
+        checkpoint.setCompletedPartitions("");
+
+        trashOutService.saveCompletedPartition(checkpoint, Waste.WasteCountry.HUNGARY);
+        trashOutService.saveCompletedPartition(checkpoint, Waste.WasteCountry.SERBIA);
+
+        assertEquals("HUNGARY,SERBIA", checkpoint.getCompletedPartitions(),
+                "The saved countries should be recorded in the checkpoint");
+        assertEquals(EnumSet.of(Waste.WasteCountry.UKRAINE, Waste.WasteCountry.ROMANIA, Waste.WasteCountry.SLOVAKIA),
+                trashOutService.getPendingPartitions(checkpoint), "Only the remaining countries should be fetched");
+
+        trashOutService.saveCheckpoint(checkpoint);
+
+        assertNull(checkpoint.getRunStartedAt(), "A finished synchronization should not be resumed");
+        assertNotNull(checkpoint.getLastFullSync(), "A finished full synchronization should be recorded");
+        verify(syncCheckpointRepository, times(3)).save(checkpoint);
+    }
+
     @Test
     @DisplayName("Test the deletion of wastes older than a give date")
     public void testDeleteOldWastes() {
-        Waste waste1 = new Waste();
-        Waste waste2 = new Waste();
-        List<Waste> oldWastes = Arrays.asList(waste1, waste2);
-
-        when(wasteRepository.findAllOlderThan(any(LocalDateTime.class))).thenReturn(oldWastes);
+        when(wasteBatchRepository.deleteOlderThan(any(LocalDateTime.class))).thenReturn(2);
 
         Integer result = trashOutService.deleteOldWastes(LocalDateTime.now().minusYears(1));
 
-        assertEquals(oldWastes.size(), result, "The number of deleted wastes does not match the expected value");
+        assertEquals(2, result, "The number of deleted wastes does not match the expected value");
     }
 
     @Test
     @DisplayName("Test the saving of update logs")
     public void testSaveUpdateLog() {
-        Waste waste1 = new Waste();
-        Waste waste2 = new Waste();
-        List<Waste> wastesToSave = Arrays.asList(waste1, waste2);
-
         when(wasteRepository.count()).thenReturn(2L);
 
-        trashOutService.saveUpdateLog(wastesToSave, 1);
+        trashOutService.saveUpdateLog(2, 1);
 
         verify(updateLogRepository, times(1)).save(any(UpdateLog.class));
     }
@@ -0,0 +1,47 @@
+package hu.exyxwd.tisztatisza.service;
+
+import org.junit.jupiter.api.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+import java.util.*;
+
+public class VectorTileEncoderTest {
+    @Test
+    @DisplayName("Test encoding a point feature into the bytes of a vector tile")
+    public void testEncodePoint() {
+        VectorTileEncoder encoder = new VectorTileEncoder();
+        assertTrue(encoder.isEmpty(), "A new encoder should have no features");
+        assertEquals(0, encoder.encode().length, "A tile without features should be empty");
+
+        encoder.addPoint("w", 1L, 25, 17, Collections.singletonMap("a", "b"));
+
+        byte[] expected = {
+                // tile.layers
+                0x1a, 31,
+                // layer.name
+                0x0a, 1, 'w',
+                // layer.features: id, tags, type, geometry of MoveTo(25, 17)
+                0x12, 13, 0x08, 1, 0x12, 2, 0, 0, 0x18, 1, 0x22, 3, 9, 50, 34,
+                // layer.keys, layer.values
+                0x1a, 1, 'a', 0x22, 3, 0x0a, 1, 'b',
+                // layer.extent, layer.version
+                0x28, (byte) 0x80, 0x20, 0x78, 2 };
+        assertArrayEquals(expected, encoder.encode(), "The encoded tile does not match the expected bytes");
+    }
+
+    @Test
+    @DisplayName("Test encoding line strings into geometry commands")
+    public void testLineGeometry() {
+        List<int[]> lines = Arrays.asList(new int[] { 0, 0, 10, 0, 10, 0, 10, 10 }, new int[] { 5, 5 },
+                new int[] { 10, 12, 9, 12 });
+
+        List<Integer> geometry = VectorTileEncoder.lineGeometry(lines);
+
+        // MoveTo(0, 0) LineTo(+10, 0)(0, +10), the single point line is left out, MoveTo(0, +2) LineTo(-1, 0)
+        assertEquals(Arrays.asList(9, 0, 0, 18, 20, 0, 0, 20, 9, 0, 4, 10, 1, 0), geometry,
+                "The geometry commands do not match the expected values");
+        assertTrue(VectorTileEncoder.lineGeometry(Arrays.asList(new int[] { 3, 3, 3, 3 })).isEmpty(),
+                "A line string of one repeated point should be left out");
+    }
+}